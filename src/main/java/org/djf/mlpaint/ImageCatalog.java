@@ -0,0 +1,413 @@
+package org.djf.mlpaint;
+
+import java.awt.*;
+import java.awt.image.SampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.MoreFiles;
+
+import static org.djf.util.SwingApp.reportTime;
+
+/** The image files of a site directory, with their headers read once and cached.
+ *
+ * Each file's header is parsed a single time (dimensions, tiling, compression, bands, geo tags) and kept until
+ * the file's modification time or length changes.  The catalog also pairs up a site's files by name:
+ * the _RGB image, its labels, and extra layers of the same dimensions sharing the site prefix.
+ */
+public class ImageCatalog {
+
+	public static final ImmutableSet<String> IMAGE_EXTENSIONS = ImmutableSet.of("tif", "tiff", "png", "jpg", "jpeg", "bmp", "gif");
+
+	/** TIFF tags that georeference the image: GeoTIFF's, plus GDAL's metadata & nodata */
+	public static final int TAG_MODEL_PIXEL_SCALE = 33550;
+	public static final int TAG_MODEL_TIEPOINT = 33922;
+	public static final int TAG_MODEL_TRANSFORMATION = 34264;
+	public static final int TAG_GEO_KEY_DIRECTORY = 34735;
+	public static final int TAG_GEO_DOUBLE_PARAMS = 34736;
+	public static final int TAG_GEO_ASCII_PARAMS = 34737;
+	public static final int TAG_GDAL_METADATA = 42112;
+	public static final int TAG_GDAL_NODATA = 42113;
+	public static final int[] GEO_TAGS = {TAG_MODEL_PIXEL_SCALE, TAG_MODEL_TIEPOINT, TAG_MODEL_TRANSFORMATION,
+			TAG_GEO_KEY_DIRECTORY, TAG_GEO_DOUBLE_PARAMS, TAG_GEO_ASCII_PARAMS, TAG_GDAL_METADATA, TAG_GDAL_NODATA};
+	private static final int TAG_COMPRESSION = 259;
+	/** GeoKeys naming the coordinate system by EPSG code */
+	private static final int GEOKEY_GEOGRAPHIC_TYPE = 2048, GEOKEY_PROJECTED_CS_TYPE = 3072;
+
+	/** What a file is to a site, by the naming conventions MLPaint has always used. */
+	public enum Role { RGB, LABELS, EXTRA }
+
+	/** Header facts about one image file. */
+	public static class Entry {
+		public final File file;
+		public final long lastModified, length;
+		public final int width, height;
+		/** 0 if the image is stored in strips */
+		public final int tileWidth, tileHeight;
+		/** TIFF compression code, 1 = none; 0 for non-TIFF files */
+		public final int compression;
+		public final int bands;
+		/** summed over all the bands, e.g. 4 for our labels, 32 for RGBA */
+		public final int bitsPerPixel;
+		/** georeferencing TIFF fields by tag number, in file order; empty if none */
+		public final Map<Integer, TIFFField> geoTags;
+
+		Entry(File file, long lastModified, long length, int width, int height, int tileWidth, int tileHeight,
+				int compression, int bands, int bitsPerPixel, Map<Integer, TIFFField> geoTags) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.width = width;
+			this.height = height;
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+			this.compression = compression;
+			this.bands = bands;
+			this.bitsPerPixel = bitsPerPixel;
+			this.geoTags = geoTags;
+		}
+
+		public Dimension getDimension() {
+			return new Dimension(width, height);
+		}
+
+		public boolean isTiled() {
+			return tileWidth > 0;
+		}
+
+		public boolean isGeoreferenced() {
+			return !geoTags.isEmpty();
+		}
+
+		/** GDAL's declared nodata value, or NaN if none */
+		public double getNodata() {
+			TIFFField f = geoTags.get(TAG_GDAL_NODATA);
+			if (f == null) return Double.NaN;
+			try {
+				return Double.parseDouble(f.getAsString(0).trim());
+			} catch (NumberFormatException ex) {
+				return Double.NaN;
+			}
+		}
+
+		/** pixel corner (x, y) -> model X = t[0] + t[1] x + t[2] y, Y = t[3] + t[4] x + t[5] y, as GDAL's geotransform.
+		 * From ModelTransformation, or else ModelTiepoint & ModelPixelScale; null if neither.
+		 */
+		public double[] getGeoTransform() {
+			TIFFField m = geoTags.get(TAG_MODEL_TRANSFORMATION);
+			if (m != null && m.getCount() >= 16) {
+				return new double[] {m.getAsDouble(3), m.getAsDouble(0), m.getAsDouble(1),
+						m.getAsDouble(7), m.getAsDouble(4), m.getAsDouble(5)};
+			}
+			TIFFField tie = geoTags.get(TAG_MODEL_TIEPOINT), scale = geoTags.get(TAG_MODEL_PIXEL_SCALE);
+			if (tie == null || scale == null || tie.getCount() < 6 || scale.getCount() < 2) return null;
+			double sx = scale.getAsDouble(0), sy = scale.getAsDouble(1);
+			return new double[] {tie.getAsDouble(3) - tie.getAsDouble(0) * sx, sx, 0,
+					tie.getAsDouble(4) + tie.getAsDouble(1) * sy, 0, -sy};
+		}
+
+		/** EPSG code of the projected, else geographic, coordinate system in the GeoKeyDirectory; 0 if none */
+		public int getEpsg() {
+			int projected = geoKey(GEOKEY_PROJECTED_CS_TYPE), geographic = geoKey(GEOKEY_GEOGRAPHIC_TYPE);
+			if (projected > 0) return projected < 32767 ? projected : 0;// 32767 = user-defined
+			return geographic > 0 && geographic < 32767 ? geographic : 0;
+		}
+
+		/** a GeoKey's short value, 0 if absent or stored elsewhere */
+		private int geoKey(int key) {
+			TIFFField keys = geoTags.get(TAG_GEO_KEY_DIRECTORY);
+			for (int k = 4; keys != null && k + 3 < keys.getCount(); k += 4) {
+				if (keys.getAsInt(k) == key && keys.getAsInt(k + 1) == 0) return keys.getAsInt(k + 3);
+			}
+			return 0;
+		}
+
+		public String compressionName() {
+			switch (compression) {
+				case 0: return "n/a";
+				case 1: return "none";
+				case 5: return "LZW";
+				case 7: return "JPEG";
+				case 8: case 32946: return "Deflate";
+				case 32773: return "PackBits";
+				default: return "#" + compression;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %,d x %,d, %d bands, %d bits/pixel, %s, compression %s%s", file.getName(), width, height,
+					bands, bitsPerPixel, isTiled() ? "tiles " + tileWidth + "x" + tileHeight : "strips",
+					compressionName(), isGeoreferenced() ? ", georeferenced" : "");
+		}
+	}
+
+	/** The files making up one site, in load order: image first, then labels, then extra layers. */
+	public static class Site {
+		public final LinkedHashMap<File, Role> roles;
+
+		Site(LinkedHashMap<File, Role> roles) {
+			this.roles = roles;
+		}
+
+		public File[] files() {
+			return roles.keySet().toArray(new File[0]);
+		}
+
+		public Role roleOf(File file) {
+			return roles.getOrDefault(file, Role.EXTRA);
+		}
+
+		/** the first file of this role, or null */
+		public File fileOf(Role role) {
+			for (Map.Entry<File, Role> e : roles.entrySet()) {
+				if (e.getValue() == role) return e.getKey();
+			}
+			return null;
+		}
+
+		/** the same site but for this file, e.g. one whose pixels come from elsewhere */
+		public Site without(File file) {
+			LinkedHashMap<File, Role> rr = new LinkedHashMap<>(roles);
+			rr.remove(file);
+			return new Site(rr);
+		}
+
+		/** the file the others are paired to: the RGB if any, else the first selected */
+		public File primary() {
+			for (Map.Entry<File, Role> e : roles.entrySet()) {
+				if (e.getValue() == Role.RGB) return e.getKey();
+			}
+			return roles.keySet().iterator().next();
+		}
+	}
+
+	private static final Map<Path, ImageCatalog> catalogs = new ConcurrentHashMap<>();
+
+	/** The catalog of a directory, shared by all callers, refreshed for any files added or changed since last time. */
+	public static ImageCatalog forDirectory(Path dir) throws IOException {
+		ImageCatalog catalog = catalogs.computeIfAbsent(dir.toAbsolutePath().normalize(), ImageCatalog::new);
+		catalog.refresh();
+		return catalog;
+	}
+
+	/** The catalog entry for one file, via its directory's catalog. */
+	public static Entry entryFor(File file) throws IOException {
+		return forDirectory(file.getAbsoluteFile().toPath().getParent()).get(file);
+	}
+
+	private final Path dir;
+	private final Map<Path, Entry> entries = Maps.newConcurrentMap();
+
+	private ImageCatalog(Path dir) {
+		this.dir = dir;
+	}
+
+	/** Scan the directory listing, reading headers only for new or changed files.  Unreadable files are left out. */
+	public synchronized void refresh() throws IOException {
+		long t = System.currentTimeMillis();
+		int read = 0;
+		Map<Path, Entry> seen = Maps.newHashMap();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (!isImageFile(path)) continue;
+				File file = path.toFile();
+				Entry entry = entries.get(path);
+				if (entry == null || entry.lastModified != file.lastModified() || entry.length != file.length()) {
+					try {
+						entry = readHeader(file);
+						read++;
+					} catch (IOException ex) {
+						System.out.printf("ImageCatalog: skipping %s: %s\n", file, ex.getMessage());
+						continue;
+					}
+				}
+				seen.put(path, entry);
+			}
+		}
+		entries.keySet().retainAll(seen.keySet());
+		entries.putAll(seen);
+		if (read > 0) {
+			reportTime(t, "ImageCatalog: read %d headers of %d images in %s", read, entries.size(), dir);
+		}
+	}
+
+	/** The cached entry, reading the header now if the file wasn't there at the last refresh. */
+	public Entry get(File file) throws IOException {
+		Path path = file.getAbsoluteFile().toPath().normalize();
+		Entry entry = entries.get(path);
+		if (entry == null || entry.lastModified != file.lastModified() || entry.length != file.length()) {
+			entry = readHeader(path.toFile());
+			entries.put(path, entry);
+		}
+		return entry;
+	}
+
+	public static boolean isImageFile(Path path) {
+		String name = path.getFileName().toString();
+		return !name.startsWith(".") && Files.isRegularFile(path)
+				&& IMAGE_EXTENSIONS.contains(MoreFiles.getFileExtension(path).toLowerCase());
+	}
+
+	/** Role by filename: ending in "labels" is labels; ending in "rgb" (or with an _RGB_ part) is the image. */
+	public static Role roleByName(File file) {
+		String name = MoreFiles.getNameWithoutExtension(file.toPath()).toLowerCase();
+		if (name.endsWith("labels")) return Role.LABELS;
+		if (name.endsWith("rgb") || name.contains("_rgb_")) return Role.RGB;
+		return Role.EXTRA;
+	}
+
+	/** The part of an _RGB filename before "rgb", which the site's other layers share; else the whole name. */
+	public static String sitePrefix(File file) {
+		String name = MoreFiles.getNameWithoutExtension(file.toPath());
+		int i = name.toLowerCase().lastIndexOf("rgb");
+		return i > 0 ? name.substring(0, i) : name;
+	}
+
+	/** Roles for exactly the files the user selected, as before. */
+	public Site siteOf(File[] selected) {
+		LinkedHashMap<File, Role> roles = Maps.newLinkedHashMap();
+		for (File file : selected) {
+			roles.put(file, roleByName(file));
+		}
+		return new Site(roles);
+	}
+
+	/** Starting from any one file of a site, find its RGB image, its latest labels, and its extra layers.
+	 *
+	 * Labels are "<rgb name>_MLPaintlabels" if present, else the newest "*labels" file with the site prefix.
+	 * Extra layers are the other images with the site prefix and the same dimensions as the RGB,
+	 * excluding timestamped autosaves of labels.
+	 */
+	public Site discoverSite(File selected) throws IOException {
+		Entry chosen = get(selected);
+		Entry rgb = roleByName(selected) == Role.RGB ? chosen : null;
+		String prefix = sitePrefix(selected).toLowerCase();
+		if (rgb == null) {// find the RGB this file belongs to
+			for (Entry e : sortedEntries()) {
+				if (roleByName(e.file) == Role.RGB && prefix.startsWith(sitePrefix(e.file).toLowerCase())
+						&& e.width == chosen.width && e.height == chosen.height) {
+					rgb = e;
+					prefix = sitePrefix(e.file).toLowerCase();
+					break;
+				}
+			}
+		}
+		if (rgb == null) {// no RGB to pair with
+			return siteOf(new File[] {selected});
+		}
+
+		String rgbName = MoreFiles.getNameWithoutExtension(rgb.file.toPath());
+		Entry labels = null;
+		List<Entry> extras = Lists.newArrayList();
+		for (Entry e : sortedEntries()) {
+			String name = MoreFiles.getNameWithoutExtension(e.file.toPath());
+			if (e == rgb || !name.toLowerCase().startsWith(prefix)
+					|| e.width != rgb.width || e.height != rgb.height) continue;
+			if (roleByName(e.file) == Role.LABELS) {
+				boolean exact = name.equalsIgnoreCase(rgbName + "_MLPaintlabels");
+				if (labels == null || exact || (!MoreFiles.getNameWithoutExtension(labels.file.toPath())
+						.equalsIgnoreCase(rgbName + "_MLPaintlabels") && e.lastModified > labels.lastModified)) {
+					labels = e;
+				}
+			} else if (roleByName(e.file) == Role.EXTRA && !name.toLowerCase().contains("labels")) {
+				extras.add(e);
+			}
+		}
+		LinkedHashMap<File, Role> roles = Maps.newLinkedHashMap();
+		roles.put(rgb.file, Role.RGB);
+		if (labels != null) roles.put(labels.file, Role.LABELS);
+		for (Entry e : extras) roles.put(e.file, Role.EXTRA);
+		return new Site(roles);
+	}
+
+	/** true if every file has these dimensions */
+	public boolean isSameDimensions(Dimension xy, File[] files) throws IOException {
+		for (File file : files) {
+			Entry e = get(file);
+			if (e.width != xy.width || e.height != xy.height) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<Entry> sortedEntries() {
+		List<Entry> rr = Lists.newArrayList(entries.values());
+		rr.sort(Comparator.comparing(e -> e.file.getName()));
+		return rr;
+	}
+
+	/** Parse one header: the first reader to succeed wins, as in SwingUtil.readImageDimensions. */
+	public static Entry readHeader(File file) throws IOException {
+		long lastModified = file.lastModified(), length = file.length();
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			if (in == null) {
+				throw new IOException("Couldn't open the file: " + file);
+			}
+			List<ImageReader> readers = Lists.newArrayList(ImageIO.getImageReaders(in));
+			// the JDK's own TIFF reader first, if another plugin is registered:  only its metadata has the geo tags for TIFFDirectory
+			readers.sort(Comparator.comparing(r -> !r.getClass().getName().startsWith("com.sun.imageio.")));
+			for (ImageReader reader : readers) {
+				try {
+					in.seek(0);
+					reader.setInput(in, true, false);
+					int width = reader.getWidth(0), height = reader.getHeight(0);
+					int tileWidth = 0, tileHeight = 0;
+					if (reader.isImageTiled(0)) {
+						tileWidth = reader.getTileWidth(0);
+						tileHeight = reader.getTileHeight(0);
+					}
+					int bands = 0, bits = 0;
+					ImageTypeSpecifier raw = reader.getRawImageType(0);
+					if (raw != null) {
+						SampleModel sm = raw.getSampleModel();
+						bands = sm.getNumBands();
+						for (int size : sm.getSampleSize()) bits += size;
+					}
+					int compression = 0;
+					Map<Integer, TIFFField> geoTags = Collections.emptyMap();
+					IIOMetadata metadata = reader.getImageMetadata(0);
+					if (metadata != null && "javax_imageio_tiff_image_1.0".equals(metadata.getNativeMetadataFormatName())) {
+						TIFFDirectory ifd = TIFFDirectory.createFromMetadata(metadata);
+						TIFFField c = ifd.getTIFFField(TAG_COMPRESSION);
+						compression = c == null ? 1 : c.getAsInt(0);
+						geoTags = Maps.newLinkedHashMap();
+						for (int tag : GEO_TAGS) {
+							TIFFField f = ifd.getTIFFField(tag);
+							if (f != null) geoTags.put(tag, f);
+						}
+					}
+					return new Entry(file, lastModified, length, width, height, tileWidth, tileHeight,
+							compression, bands, bits, geoTags);
+				} catch (Exception ex) {
+					System.out.printf("ImageCatalog: %s couldn't read %s: %s\n", reader.getClass().getSimpleName(), file, ex);
+				} finally {
+					reader.dispose();
+				}
+			}
+		}
+		throw new IOException("Couldn't parse the file: " + file);
+	}
+
+}
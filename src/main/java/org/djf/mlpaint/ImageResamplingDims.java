@@ -1,10 +1,6 @@
 package org.djf.mlpaint;
 
-import org.djf.util.SwingUtil;
-
 import java.awt.*;
-import java.io.File;
-import java.io.IOException;
 
 /** A single object to keep track of the different resampling info
  * 
@@ -20,15 +16,15 @@ public class ImageResamplingDims {
 	//Sampling pixels on a side, thus 2 means 1/4 the size of image
 	public final int samplingEdge;
 
-	public ImageResamplingDims(File file, int maxPixels) throws IOException {
-		Dimension bigDim = SwingUtil.readImageDimensions(file);
+	/** Subsample bigDim in squares of samplingEdge, e.g. as chosen by the MemoryPlanner. */
+	public ImageResamplingDims(Dimension bigDim, int samplingEdge) {
 		this.bigx = bigDim.width;
 		this.bigy = bigDim.height;
 		this.bigDim = bigDim;
 
-		this.samplingEdge = getSamplingEdgeSize(maxPixels);
+		this.samplingEdge = samplingEdge;
 		System.out.printf(
-				"We downsample our image in squares of %d x %d, samplingEdge.",this.samplingEdge, this.samplingEdge);
+				"We downsample our image in squares of %d x %d, samplingEdge.\n",this.samplingEdge, this.samplingEdge);
 
 		//https://docs.oracle.com/javase/7/docs/api/javax/imageio/IIOParam.html
 		//truncate[(width  + sourceXSubsampling - 1) / sourceXSubsampling].
@@ -38,12 +34,20 @@ public class ImageResamplingDims {
 
 	}
 
-	private int getSamplingEdgeSize(int maxPixels) {
-		int imgPixels = this.bigx*this.bigy; //Static vs not static?
+	/** pixels of the working image when subsampling bigDim by samplingEdge */
+	public static long workingPixels(Dimension bigDim, int samplingEdge) {
+		long x = (bigDim.width + samplingEdge - 1) / samplingEdge;
+		long y = (bigDim.height + samplingEdge - 1) / samplingEdge;
+		return x * y;
+	}
+
+	/** Smallest edge whose working image has at most maxPixels.
+	 * (This used to divide the pixel count cumulatively by each edge^2, which picked too small an edge for big images.)
+	 */
+	public static int getSamplingEdgeSize(Dimension bigDim, int maxPixels) {
 		int edge = 1;
-		while (imgPixels > maxPixels) {
+		while (workingPixels(bigDim, edge) > maxPixels) {
 			edge += 1;
-			imgPixels /= (edge*edge);
 		}
 		return edge;
 	}
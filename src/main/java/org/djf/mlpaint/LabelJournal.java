@@ -0,0 +1,368 @@
+package org.djf.mlpaint;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.MoreFiles;
+
+/** Append-only journal of label edits since the last full save of the labels, for autosave & crash recovery.
+ *
+ * The header names the labels file the edits apply over (its name, length and modified time) and the working size.
+ * Each record is one accepted suggestion, no-data fill or undo:  a sequence number, the type, the class index,
+ * and the labels after the edit in each changed region, run-length encoded in raster order.
+ * Records are length-prefixed and CRC-checked, so a torn last record from a crash is simply dropped.
+ * A full save restarts the journal over the new file.
+ */
+public class LabelJournal implements Closeable {
+
+	public static final byte SUGGESTION = 1, NO_DATA = 2, UNDO = 3;
+
+	private static final int MAGIC = 0x4d4c504a;// "MLPJ"
+	private static final int VERSION = 1;
+
+	/** One edit:  the labels after it, in each region. */
+	public static class Record {
+		public final long seq;
+		public final byte type;
+		public final int labelIndex;
+		public final List<Rectangle> regions = Lists.newArrayList();
+		private final List<byte[]> values = Lists.newArrayList();
+		/** bytes of payload on disk */
+		private int length;
+
+		Record(long seq, byte type, int labelIndex) {
+			this.seq = seq;
+			this.type = type;
+			this.labelIndex = labelIndex;
+		}
+
+		/** Write the edit's labels back into labels. */
+		public void apply(WritableRaster labels) {
+			int[] row = null;
+			for (int k = 0; k < regions.size(); k++) {
+				Rectangle r = regions.get(k);
+				byte[] v = values.get(k);
+				if (row == null || row.length < r.width) row = new int[r.width];
+				for (int y = 0; y < r.height; y++) {
+					for (int x = 0; x < r.width; x++) row[x] = v[y * r.width + x];
+					labels.setSamples(r.x, r.y + y, r.width, 1, 0, row);
+				}
+			}
+		}
+	}
+
+	/** The records of a journal that matches the session, and where its last good record ends. */
+	public static class Contents {
+		public final List<Record> records = Lists.newArrayList();
+		long validLength;
+		long nextSeq = 0;
+	}
+
+	private final Path file;
+	private final int width, height, samplingEdge;
+	/** null once closed, or if a restart couldn't reopen the file */
+	private FileChannel channel;
+	/** bytes in the file */
+	private long length = 0;
+	private long nextSeq;
+	/** records in the file:  edits not yet in a full save */
+	private int records = 0;
+	/** by close, not just between files */
+	private boolean closed = false;
+
+	private LabelJournal(Path file, int width, int height, int samplingEdge) {
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.samplingEdge = samplingEdge;
+	}
+
+	/** e.g. site05_RGB_MLPaintlabels.tif -> site05_RGB_MLPaintlabels.journal */
+	public static Path pathFor(Path labelsFile) {
+		return labelsFile.resolveSibling(MoreFiles.getNameWithoutExtension(labelsFile) + ".journal");
+	}
+
+	/** A new, empty journal over base (null if no labels were loaded), replacing any old one. */
+	public static LabelJournal start(Path file, int width, int height, int samplingEdge, Path base) throws IOException {
+		LabelJournal rr = new LabelJournal(file, width, height, samplingEdge);
+		try {
+			rr.restart(base);
+		} catch (IOException | RuntimeException ex) {
+			rr.close();
+			throw ex;
+		}
+		return rr;
+	}
+
+	/** Carry on appending to the journal read into contents, after its last good record. */
+	public static LabelJournal resume(Path file, int width, int height, int samplingEdge, Contents contents) throws IOException {
+		LabelJournal rr = new LabelJournal(file, width, height, samplingEdge);
+		rr.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		rr.channel.truncate(contents.validLength);
+		rr.channel.position(contents.validLength);
+		rr.length = contents.validLength;
+		rr.nextSeq = contents.nextSeq;
+		rr.records = contents.records.size();
+		return rr;
+	}
+
+	/** Where the next record will go:  pass to restart once the labels as of now are saved. */
+	public synchronized long mark() {
+		return length;
+	}
+
+	/** After a full save to base:  drop all records and start over. */
+	public synchronized void restart(Path base) throws IOException {
+		restart(base, mark());
+	}
+
+	/** After base was saved with the labels as of mark:  drop the records before mark, keeping any since.
+	 * The new journal replaces the old atomically, so there is always one to replay.
+	 * If that fails, appending carries on to whichever file is there; if even that can't be reopened,
+	 * append & sync throw from then on, rather than drop edits unnoticed.
+	 */
+	public synchronized void restart(Path base, long mark) throws IOException {
+		if (closed) return;// e.g. another image opened meanwhile
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(samplingEdge);
+		writeBase(out, base);
+		int kept = 0;
+		if (channel != null && mark < length) {// edits made during the save
+			ByteBuffer since = ByteBuffer.allocate((int) (length - mark));
+			while (since.hasRemaining()) {
+				if (channel.read(since, mark + since.position()) < 0) break;
+			}
+			out.write(since.array(), 0, since.position());
+			for (int p = 0; p + 4 <= since.position(); p += 8 + since.getInt(p)) {
+				kept++;
+			}
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(tmp, bytes.toByteArray());
+		closeChannel();// Windows won't replace an open file
+		try {
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			records = kept;
+			reopen();
+			channel.force(false);
+		} catch (IOException | RuntimeException ex) {
+			if (channel == null) {
+				try {
+					reopen();// the old journal, or the new if it was moved
+				} catch (IOException ex2) {
+					ex.addSuppressed(ex2);
+				}
+			}
+			throw ex;
+		}
+	}
+
+	/** open the file to append to */
+	private void reopen() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		length = channel.size();
+		channel.position(length);
+	}
+
+	/** identify the labels file by name, length & modified time */
+	static void writeBase(DataOutputStream out, Path base) throws IOException {
+		boolean exists = base != null && Files.exists(base);
+		out.writeUTF(exists ? base.getFileName().toString() : "");
+		out.writeLong(exists ? Files.size(base) : -1);
+		out.writeLong(exists ? Files.getLastModifiedTime(base).toMillis() : -1);
+	}
+
+	/** Append a record of the labels now in these regions.  Written through to the OS, but see sync. */
+	public synchronized void append(byte type, int labelIndex, List<Rectangle> regions, Raster labels) throws IOException {
+		if (closed) return;
+		checkOpen();
+		regions = Lists.newArrayList(regions);
+		regions.removeIf(Rectangle::isEmpty);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(nextSeq++);
+		out.writeByte(type);
+		out.writeByte(labelIndex);
+		out.writeInt(regions.size());
+		int[] row = new int[width];
+		for (Rectangle r : regions) {
+			out.writeInt(r.x);
+			out.writeInt(r.y);
+			out.writeInt(r.width);
+			out.writeInt(r.height);
+			int value = -1, run = 0;
+			for (int y = r.y; y < r.y + r.height; y++) {
+				labels.getSamples(r.x, y, r.width, 1, 0, row);
+				for (int x = 0; x < r.width; x++) {
+					if (row[x] != value) {
+						if (run > 0) writeRun(out, value, run);
+						value = row[x];
+						run = 0;
+					}
+					run++;
+				}
+			}
+			writeRun(out, value, run);
+		}
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+		record.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+		write(record.array());
+		records++;
+	}
+
+	private static void writeRun(DataOutputStream out, int value, int run) throws IOException {
+		out.writeByte(value);
+		while (run >= 0x80) {// varint
+			out.writeByte(run & 0x7f | 0x80);
+			run >>>= 7;
+		}
+		out.writeByte(run);
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		while (buf.hasRemaining()) {
+			length += channel.write(buf);
+		}
+	}
+
+	/** Force the records so far to disk. */
+	public synchronized void sync() throws IOException {
+		if (closed) return;
+		checkOpen();
+		channel.force(false);
+	}
+
+	private void checkOpen() throws IOException {
+		if (channel == null) {
+			throw new IOException("The label journal " + file.getFileName() + " couldn't be reopened after a save");
+		}
+	}
+
+	public synchronized long size() {
+		return length;
+	}
+
+	/** the edits since the last full save */
+	public synchronized int getNumRecords() {
+		return records;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		closeChannel();
+	}
+
+	private void closeChannel() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/** The journal's records, if it is for this working size and over the labels file base as it is now; else null. */
+	public static Contents read(Path file, int width, int height, int samplingEdge, Path base) throws IOException {
+		if (!Files.exists(file)) return null;
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		writeBase(new DataOutputStream(expected), base);
+		try (InputStream stream = Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ))) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != width || in.readInt() != height
+					|| in.readInt() != samplingEdge) {
+				return null;
+			}
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(actual);
+			out.writeUTF(in.readUTF());
+			out.writeLong(in.readLong());
+			out.writeLong(in.readLong());
+			if (!actual.toString("UTF-8").equals(expected.toString("UTF-8"))) {
+				System.out.printf("LabelJournal: %s is for another save of the labels, ignoring it\n", file.getFileName());
+				return null;
+			}
+			Contents rr = new Contents();
+			rr.validLength = 20 + actual.size();
+			while (true) {
+				Record record = readRecord(in, width, height);
+				if (record == null) break;
+				rr.records.add(record);
+				rr.nextSeq = record.seq + 1;
+				rr.validLength += 8 + record.length;
+			}
+			return rr;
+		} catch (EOFException ex) {
+			return null;// not even a whole header
+		}
+	}
+
+	/** the next record, or null at the end or at a torn or corrupt record */
+	private static Record readRecord(DataInputStream in, int width, int height) throws IOException {
+		byte[] payload;
+		try {
+			int length = in.readInt();
+			if (length <= 0 || length > 6L * width * height + (1 << 20)) return null;// at worst ~6 bytes per pixel
+			payload = new byte[length];
+			in.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if (in.readInt() != (int) crc.getValue()) return null;
+		} catch (EOFException ex) {
+			return null;
+		}
+		DataInputStream p = new DataInputStream(new ByteArrayInputStream(payload));
+		Record rr = new Record(p.readLong(), p.readByte(), p.readByte());
+		rr.length = payload.length;
+		int n = p.readInt();
+		for (int k = 0; k < n; k++) {
+			Rectangle r = new Rectangle(p.readInt(), p.readInt(), p.readInt(), p.readInt());
+			if (!new Rectangle(width, height).contains(r)) return null;
+			byte[] v = new byte[r.width * r.height];
+			for (int i = 0; i < v.length; ) {
+				byte value = p.readByte();
+				int run = 0;
+				for (int shift = 0; ; shift += 7) {
+					int b = p.readUnsignedByte();
+					run |= (b & 0x7f) << shift;
+					if (b < 0x80) break;
+				}
+				if (run > v.length - i) return null;
+				Arrays.fill(v, i, i + run, value);
+				i += run;
+			}
+			rr.regions.add(r);
+			rr.values.add(v);
+		}
+		return rr;
+	}
+
+}
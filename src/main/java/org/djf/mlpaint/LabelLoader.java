@@ -0,0 +1,141 @@
+package org.djf.mlpaint;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+import org.djf.util.MappedDataBuffer;
+import org.djf.util.SwingUtil;
+
+/** Reads a full-resolution labels file down to the working resolution, each samplingEdge block becoming its
+ * most frequent class, rather than whichever pixel a subsampled read happens to hit.  So thin classes survive
+ * wherever they are the block's majority, and the rest are at least no worse than a point sample.
+ *
+ * The file is read in strips of whole blocks as Rasters, and the blocks of a strip are voted on in parallel,
+ * while the next strip decodes.  The votes go straight into a 4-bit labels image, mapped if off-heap,
+ * which MLPaintPanel.resetData then takes as its labels without a copy.
+ */
+public class LabelLoader {
+
+	/** source pixels per strip, as SwingUtil.boxDownsampleImage */
+	private static final int STRIP_PIXELS = 1 << 22;
+	/** block columns per parallel task */
+	private static final int COLUMNS_PER_TASK = 256;
+
+	/** A blank labels image at the working size:  4 bits per pixel, in scratch files in offHeapDir unless null. */
+	public static BufferedImage newLabels(int width, int height, Path offHeapDir) throws IOException {
+		if (offHeapDir == null) {
+			return SwingUtil.newBinaryImage(width, height, MLPaintPanel.LABEL_COLORS);
+		}
+		return MappedDataBuffer.newBinaryImage(offHeapDir, width, height, SwingUtil.newBinaryICM(MLPaintPanel.LABEL_COLORS));
+	}
+
+	/** Majority-vote the labels file down by xy.samplingEdge.  Progress goes to the listener, which may abort the reader;
+	 * cancelled is checked between strips.
+	 */
+	public static BufferedImage read(File file, ImageResamplingDims xy, Path offHeapDir, IIOReadProgressListener listener,
+			BooleanSupplier cancelled) throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+			if (readers == null || !readers.hasNext()) {
+				throw new IOException("No reader available for " + file);
+			}
+			ImageReader reader = readers.next();
+			reader.setInput(stream, true, true);
+			try {
+				return read(reader, xy, offHeapDir, listener, cancelled);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private static BufferedImage read(ImageReader reader, ImageResamplingDims xy, Path offHeapDir, IIOReadProgressListener listener,
+			BooleanSupplier cancelled) throws IOException {
+		int edge = xy.samplingEdge, width = Math.min(xy.bigx, reader.getWidth(0)), height = Math.min(xy.bigy, reader.getHeight(0));
+		BufferedImage rr = newLabels(xy.smallx, xy.smally, offHeapDir);
+		WritableRaster out = rr.getRaster();
+		int blocksPerStrip = Math.max(1, STRIP_PIXELS / (width * edge));
+		int stripRows = blocksPerStrip * edge;
+		int nStrips = (height + stripRows - 1) / stripRows;
+		boolean raster = reader.canReadRaster();
+		CompletableFuture<Void> voting = CompletableFuture.completedFuture(null);
+		for (int s = 0; s < nStrips; s++) {
+			int y0 = s * stripRows, rows = Math.min(stripRows, height - y0);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(0, y0, width, rows));
+			Raster strip = raster ? reader.readRaster(0, param) : reader.read(0, param).getRaster();
+			if (cancelled.getAsBoolean()) {
+				throw new IIOException("Read aborted.");
+			}
+			join(voting);// the previous strip's votes are in before this one's
+			int outY = y0 / edge;
+			voting = CompletableFuture.runAsync(() -> vote(strip, edge, width, out, outY));
+			if (listener != null) {
+				listener.imageProgress(reader, 100.0f * (s + 1) / nStrips);
+			}
+		}
+		join(voting);
+		return rr;
+	}
+
+	private static void join(CompletableFuture<Void> voting) throws IOException {
+		try {
+			voting.join();
+		} catch (CompletionException ex) {
+			throw new IOException("Couldn't downsample the labels", ex.getCause());
+		}
+	}
+
+	/** The strip's blocks, most frequent class of each, into rows outY... of out.  Ties go to a labeled class, then the lower. */
+	private static void vote(Raster strip, int edge, int width, WritableRaster out, int outY) {
+		int outWidth = Math.min(out.getWidth(), (width + edge - 1) / edge);
+		int outRows = Math.min(out.getHeight() - outY, (strip.getHeight() + edge - 1) / edge);
+		int[][] votes = new int[outRows][outWidth];
+		int tasks = (outWidth + COLUMNS_PER_TASK - 1) / COLUMNS_PER_TASK;
+		IntStream.range(0, tasks).parallel().forEach(task -> {
+			int bx0 = task * COLUMNS_PER_TASK, bx1 = Math.min(outWidth, bx0 + COLUMNS_PER_TASK);
+			int x0 = bx0 * edge, x1 = Math.min(width, bx1 * edge);
+			int[] row = new int[x1 - x0];
+			int[][] counts = new int[bx1 - bx0][16];
+			for (int by = 0; by < outRows; by++) {
+				for (int[] c : counts) Arrays.fill(c, 0);
+				for (int y = by * edge; y < Math.min(strip.getHeight(), (by + 1) * edge); y++) {
+					strip.getSamples(strip.getMinX() + x0, strip.getMinY() + y, row.length, 1, 0, row);
+					for (int x = 0; x < row.length; x++) {
+						counts[x / edge][Math.min(row[x], MLPaintPanel.NO_DATA)]++;// codes over 15 aren't labels
+					}
+				}
+				for (int b = 0; b < counts.length; b++) {
+					int[] c = counts[b];
+					int best = MLPaintPanel.UNLABELED;
+					for (int k = 1; k < c.length; k++) {
+						if (c[k] > c[best] || c[k] == c[best] && best == MLPaintPanel.UNLABELED && c[k] > 0) best = k;
+					}
+					votes[by][bx0 + b] = best;
+				}
+			}
+		});
+		for (int by = 0; by < outRows; by++) {// packed 4-bit rows share bytes across columns, so written on one thread
+			out.setSamples(0, outY + by, outWidth, 1, 0, votes[by]);
+		}
+	}
+
+}
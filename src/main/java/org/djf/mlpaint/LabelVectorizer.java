@@ -0,0 +1,412 @@
+package org.djf.mlpaint;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/** Traces the class boundaries of a labels raster into polygons, and writes them as GeoJSON.
+ *
+ * Reads the labels a row at a time, so it can stream a full-resolution _MLPaintlabels.tif in strips,
+ * keeping only the boundary segments:  maximal straight runs between pixel corners, per class.
+ * These link into rings, each class on its right, so outer rings are clockwise on screen and holes anti-clockwise;
+ * where two pixels of a class touch only at a corner, the rings keep them apart (4-connected).
+ * Then each hole goes in the smallest outer ring around it, and the rings are simplified by Douglas-Peucker.
+ */
+public class LabelVectorizer {
+
+	/** Fills row with the labels of row y. */
+	public interface Rows {
+		void getRow(int y, int[] row);
+	}
+
+	private static final int NONE = -1;
+
+	public final int width, height;
+	/** by class code, up to the largest traced */
+	private final boolean[] traced;
+	/** per class:  segment start corner -> end corner; a second segment from the same corner (a pinch) in pinches */
+	private final Map<Integer, Map<Long, Long>> segments = new HashMap<>();
+	private final Map<Integer, Map<Long, Long>> pinches = new HashMap<>();
+
+	/** for labels width x height, tracing only these class codes */
+	public LabelVectorizer(int width, int height, int... classes) {
+		this.width = width;
+		this.height = height;
+		traced = new boolean[Arrays.stream(classes).max().orElse(-1) + 1];
+		for (int c : classes) {
+			Preconditions.checkArgument(c >= 0, "Class codes can't be negative: %s", c);
+			traced[c] = true;
+		}
+	}
+
+	/** whatever the labels' sample size:  16-bit codes beyond those traced are simply not */
+	private boolean isTraced(int cls) {
+		return cls >= 0 && cls < traced.length && traced[cls];
+	}
+
+	public static Rows rowsOf(Raster raster) {
+		return (y, row) -> raster.getSamples(raster.getMinX(), raster.getMinY() + y, row.length, 1, 0, row);
+	}
+
+	/** Rows read from image 0 of the reader stripRows at a time, holding one strip. */
+	public static Rows rowsOf(ImageReader reader, int stripRows) {
+		Raster[] strip = {null};
+		return (y, row) -> {
+			if (strip[0] == null || y < strip[0].getMinY() || y >= strip[0].getMinY() + strip[0].getHeight()) {
+				try {
+					int y0 = y / stripRows * stripRows;
+					ImageReadParam param = reader.getDefaultReadParam();
+					param.setSourceRegion(new Rectangle(0, y0, reader.getWidth(0), Math.min(stripRows, reader.getHeight(0) - y0)));
+					strip[0] = reader.readRaster(0, param).createTranslatedChild(0, y0);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+			}
+			strip[0].getSamples(0, y, row.length, 1, 0, row);
+		};
+	}
+
+	private long corner(int x, int y) {
+		return (long) y * (width + 1) + x;
+	}
+
+	private void addSegment(int cls, int x0, int y0, int x1, int y1) {
+		long from = corner(x0, y0), to = corner(x1, y1);
+		Map<Long, Long> map = segments.computeIfAbsent(cls, c -> new HashMap<>());
+		if (map.putIfAbsent(from, to) != null) {
+			pinches.computeIfAbsent(cls, c -> new HashMap<>()).put(from, to);
+		}
+	}
+
+	/** Read all the rows, collecting the boundary segments of the traced classes. */
+	public void trace(Rows rows) {
+		int[] above = new int[width], below = new int[width];
+		Arrays.fill(above, NONE);
+		// open vertical runs along each corner line x:  up (class on the right) & down (class on the left)
+		int[] upClass = new int[width + 1], upStart = new int[width + 1];
+		int[] downClass = new int[width + 1], downStart = new int[width + 1];
+		Arrays.fill(upClass, NONE);
+		Arrays.fill(downClass, NONE);
+		for (int y = 0; y <= height; y++) {
+			if (y < height) {
+				rows.getRow(y, below);
+			} else {
+				Arrays.fill(below, NONE);
+			}
+			horizontalSegments(y, above, below);
+			for (int x = 0; x <= width; x++) {
+				int left = x > 0 && y < height ? below[x - 1] : NONE, right = x < width && y < height ? below[x] : NONE;
+				boolean edge = left != right;
+				int up = edge && isTraced(right) ? right : NONE;
+				int down = edge && isTraced(left) ? left : NONE;
+				if (upClass[x] != up) {
+					if (upClass[x] != NONE) addSegment(upClass[x], x, y, x, upStart[x]);
+					upClass[x] = up;
+					upStart[x] = y;
+				}
+				if (downClass[x] != down) {
+					if (downClass[x] != NONE) addSegment(downClass[x], x, downStart[x], x, y);
+					downClass[x] = down;
+					downStart[x] = y;
+				}
+			}
+			int[] swap = above;
+			above = below;
+			below = swap;
+		}
+	}
+
+	/** along corner line y, between the rows above & below:  the class below runs right, the class above runs left */
+	private void horizontalSegments(int y, int[] above, int[] below) {
+		int topClass = NONE, topStart = 0, bottomClass = NONE, bottomStart = 0;
+		for (int x = 0; x <= width; x++) {
+			boolean edge = x < width && above[x] != below[x];
+			int top = edge && isTraced(below[x]) ? below[x] : NONE;
+			int bottom = edge && isTraced(above[x]) ? above[x] : NONE;
+			if (top != topClass) {
+				if (topClass != NONE) addSegment(topClass, topStart, y, x, y);
+				topClass = top;
+				topStart = x;
+			}
+			if (bottom != bottomClass) {
+				if (bottomClass != NONE) addSegment(bottomClass, x, y, bottomStart, y);
+				bottomClass = bottom;
+				bottomStart = x;
+			}
+		}
+	}
+
+	/** One polygon of a class:  an outer ring and its holes, each as x0, y0, x1, y1... without repeating the first corner. */
+	public static class Polygon {
+		public final int cls;
+		public final double[] outer;
+		public final List<double[]> holes = Lists.newArrayList();
+		/** in square pixels, holes subtracted */
+		public double area;
+
+		Polygon(int cls, double[] outer) {
+			this.cls = cls;
+			this.outer = outer;
+			this.area = signedArea(outer);
+		}
+	}
+
+	/** Link the segments into rings, put the holes in their polygons, and simplify with this tolerance in pixels. */
+	public List<Polygon> polygons(double tolerance) {
+		List<Polygon> rr = Lists.newArrayList();
+		for (int cls : segments.keySet()) {
+			List<double[]> outers = Lists.newArrayList(), holes = Lists.newArrayList();
+			Map<Long, Long> map = segments.get(cls), pinch = pinches.getOrDefault(cls, new HashMap<>());
+			while (!map.isEmpty()) {
+				double[] ring = linkRing(map, pinch);
+				(signedArea(ring) > 0 ? outers : holes).add(ring);
+			}
+			List<Polygon> polygons = Lists.newArrayList();
+			for (double[] ring : outers) {
+				polygons.add(new Polygon(cls, ring));
+			}
+			polygons.sort((a, b) -> Double.compare(a.area, b.area));// so the first to contain a hole is the smallest
+			for (double[] hole : holes) {
+				double[] inside = insidePoint(hole);
+				for (Polygon p : polygons) {
+					if (contains(p.outer, inside[0], inside[1])) {
+						p.holes.add(hole);
+						p.area += signedArea(hole);
+						break;
+					}
+				}
+			}
+			for (Polygon p : polygons) {
+				Polygon simple = new Polygon(cls, simplify(p.outer, tolerance));
+				for (double[] hole : p.holes) {
+					simple.holes.add(simplify(hole, tolerance));
+				}
+				simple.area = p.area;
+				rr.add(simple);
+			}
+		}
+		segments.clear();
+		pinches.clear();
+		return rr;
+	}
+
+	/** Follow segments from a corner until back there, removing them.  At a pinch, turn right, to keep to the class. */
+	private double[] linkRing(Map<Long, Long> map, Map<Long, Long> pinch) {
+		long start = -1;
+		for (Iterator<Long> it = map.keySet().iterator(); it.hasNext(); ) {
+			start = it.next();
+			if (!pinch.containsKey(start)) break;// begin where there's no choice to make
+		}
+		List<Long> corners = Lists.newArrayList();
+		long at = start;
+		int dx = 0, dy = 0;
+		do {
+			corners.add(at);
+			Long next = map.get(at), other = pinch.get(at);
+			if (other != null && dx != 0 | dy != 0) {
+				int rx = -dy, ry = dx;// a right turn, with y down
+				if (direction(at, other)[0] == rx && direction(at, other)[1] == ry) {
+					next = other;
+					other = map.get(at);
+				}
+			}
+			if (other != null) {
+				pinch.remove(at);
+				map.put(at, other);
+			} else {
+				map.remove(at);
+			}
+			int[] d = direction(at, next);
+			dx = d[0];
+			dy = d[1];
+			at = next;
+		} while (at != start);
+		double[] rr = new double[2 * corners.size()];
+		for (int i = 0; i < corners.size(); i++) {
+			rr[2 * i] = corners.get(i) % (width + 1);
+			rr[2 * i + 1] = corners.get(i) / (width + 1);
+		}
+		return rr;
+	}
+
+	/** unit direction of the axis-aligned segment */
+	private int[] direction(long from, long to) {
+		int fx = (int) (from % (width + 1)), fy = (int) (from / (width + 1));
+		int tx = (int) (to % (width + 1)), ty = (int) (to / (width + 1));
+		return new int[] {Integer.signum(tx - fx), Integer.signum(ty - fy)};
+	}
+
+	/** the center of the pixel on the right of a hole's first segment:  in the class, so inside its outer ring */
+	private static double[] insidePoint(double[] ring) {
+		double dx = Math.signum(ring[2] - ring[0]), dy = Math.signum(ring[3] - ring[1]);
+		return new double[] {ring[0] + 0.5 * dx - 0.5 * dy, ring[1] + 0.5 * dy + 0.5 * dx};
+	}
+
+	/** shoelace:  positive for rings clockwise on screen, as outer rings are */
+	static double signedArea(double[] ring) {
+		double sum = 0;
+		int n = ring.length / 2;
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			sum += ring[2 * i] * ring[2 * j + 1] - ring[2 * j] * ring[2 * i + 1];
+		}
+		return sum / 2;
+	}
+
+	/** even-odd ray casting */
+	static boolean contains(double[] ring, double x, double y) {
+		boolean inside = false;
+		int n = ring.length / 2;
+		for (int i = 0, j = n - 1; i < n; j = i++) {
+			double xi = ring[2 * i], yi = ring[2 * i + 1], xj = ring[2 * j], yj = ring[2 * j + 1];
+			if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/** Douglas-Peucker on a closed ring, split at the corner farthest from the first.  Unchanged if it would collapse. */
+	static double[] simplify(double[] ring, double tolerance) {
+		int n = ring.length / 2;
+		if (tolerance <= 0 || n <= 4) return ring;
+		int far = 0;
+		double best = -1;
+		for (int i = 1; i < n; i++) {
+			double d = Math.hypot(ring[2 * i] - ring[0], ring[2 * i + 1] - ring[1]);
+			if (d > best) {
+				best = d;
+				far = i;
+			}
+		}
+		boolean[] keep = new boolean[n + 1];
+		keep[0] = keep[far] = keep[n] = true;
+		double[] closed = Arrays.copyOf(ring, 2 * n + 2);
+		closed[2 * n] = ring[0];
+		closed[2 * n + 1] = ring[1];
+		douglasPeucker(closed, 0, far, tolerance, keep);
+		douglasPeucker(closed, far, n, tolerance, keep);
+		int kept = 0;
+		for (int i = 0; i < n; i++) {
+			if (keep[i]) kept++;
+		}
+		if (kept < 3) return ring;
+		double[] rr = new double[2 * kept];
+		for (int i = 0, k = 0; i < n; i++) {
+			if (keep[i]) {
+				rr[k++] = ring[2 * i];
+				rr[k++] = ring[2 * i + 1];
+			}
+		}
+		return rr;
+	}
+
+	private static void douglasPeucker(double[] pts, int first, int last, double tolerance, boolean[] keep) {
+		if (last - first < 2) return;
+		double ax = pts[2 * first], ay = pts[2 * first + 1], bx = pts[2 * last], by = pts[2 * last + 1];
+		double len = Math.hypot(bx - ax, by - ay);
+		int worst = -1;
+		double worstD = tolerance;
+		for (int i = first + 1; i < last; i++) {
+			double px = pts[2 * i], py = pts[2 * i + 1];
+			double d = len == 0 ? Math.hypot(px - ax, py - ay) : Math.abs((bx - ax) * (ay - py) - (ax - px) * (by - ay)) / len;
+			if (d > worstD) {
+				worstD = d;
+				worst = i;
+			}
+		}
+		if (worst < 0) return;
+		keep[worst] = true;
+		douglasPeucker(pts, first, worst, tolerance, keep);
+		douglasPeucker(pts, worst, last, tolerance, keep);
+	}
+
+	/** Write the polygons as a GeoJSON FeatureCollection, with properties class & area (in source pixels).
+	 * Labels pixel corners scale by samplingEdge to source pixels, clipped to sourceDim, then go through
+	 * geoTransform (see ImageCatalog.Entry.getGeoTransform) if not null.  epsg names the CRS, if not 0.
+	 */
+	public static int writeGeoJSON(Path file, List<Polygon> polygons, int samplingEdge, Dimension sourceDim,
+			double[] geoTransform, int epsg) throws IOException {
+		// enough decimals for ~1/1000 of a source pixel, be it degrees or meters
+		int decimals = geoTransform == null ? 0
+				: Math.max(0, Math.min(12, 3 - (int) Math.floor(Math.log10(Math.abs(geoTransform[1]) + Math.abs(geoTransform[2])))));
+		try (Writer out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			out.write("{\"type\": \"FeatureCollection\",\n");
+			if (epsg > 0 && geoTransform != null) {
+				out.write("\"crs\": {\"type\": \"name\", \"properties\": {\"name\": \"urn:ogc:def:crs:EPSG::" + epsg + "\"}},\n");
+			}
+			out.write("\"features\": [\n");
+			StringBuilder sb = new StringBuilder();
+			for (int k = 0; k < polygons.size(); k++) {
+				Polygon p = polygons.get(k);
+				sb.setLength(0);
+				sb.append("{\"type\": \"Feature\", \"properties\": {\"class\": ").append(p.cls)
+						.append(", \"area\": ").append(Math.round(p.area * samplingEdge * samplingEdge))
+						.append("}, \"geometry\": {\"type\": \"Polygon\", \"coordinates\": [");
+				appendRing(sb, p.outer, samplingEdge, sourceDim, geoTransform, decimals);
+				for (double[] hole : p.holes) {
+					sb.append(", ");
+					appendRing(sb, hole, samplingEdge, sourceDim, geoTransform, decimals);
+				}
+				sb.append("]}}").append(k + 1 < polygons.size() ? ",\n" : "\n");
+				out.write(sb.toString());
+			}
+			out.write("]}\n");
+		}
+		return polygons.size();
+	}
+
+	/** [[x, y], ...] closed, mapped to source pixels & the model */
+	private static void appendRing(StringBuilder sb, double[] ring, int samplingEdge, Dimension sourceDim,
+			double[] gt, int decimals) {
+		sb.append('[');
+		int n = ring.length / 2;
+		for (int i = 0; i <= n; i++) {
+			int j = i % n;
+			double px = Math.min(ring[2 * j] * samplingEdge, sourceDim.width);
+			double py = Math.min(ring[2 * j + 1] * samplingEdge, sourceDim.height);
+			double x = gt == null ? px : gt[0] + gt[1] * px + gt[2] * py;
+			double y = gt == null ? py : gt[3] + gt[4] * px + gt[5] * py;
+			sb.append(i == 0 ? "[" : ", [");
+			appendNumber(sb, x, decimals);
+			sb.append(", ");
+			appendNumber(sb, y, decimals);
+			sb.append(']');
+		}
+		sb.append(']');
+	}
+
+	/** fixed point, trailing zeros dropped, never scientific */
+	private static void appendNumber(StringBuilder sb, double v, int decimals) {
+		long scale = (long) Math.pow(10, decimals);
+		long fixed = Math.round(Math.abs(v) * scale);
+		if (v < 0 && fixed != 0) sb.append('-');
+		sb.append(fixed / scale);
+		long frac = fixed % scale;
+		if (frac != 0) {
+			String digits = Long.toString(frac + scale).substring(1);
+			int end = digits.length();
+			while (digits.charAt(end - 1) == '0') end--;
+			sb.append('.').append(digits, 0, end);
+		}
+	}
+
+}
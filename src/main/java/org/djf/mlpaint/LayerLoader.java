@@ -0,0 +1,221 @@
+package org.djf.mlpaint;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.djf.util.PixelStore;
+import org.djf.util.SwingUtil;
+
+import static org.djf.util.SwingApp.reportTime;
+
+/** Decodes the selected layer files (RGB, labels, extra layers) in parallel on a small I/O pool.
+ * Progress of all the readers is combined into one percentage, and the whole load can be cancelled.
+ */
+public class LayerLoader {
+
+	/** bounded so a big stack of layers doesn't thrash the disk */
+	public static final int MAX_THREADS = 4;
+	/** longer side of the first, coarse preview, and of the finer one shown for big images */
+	public static final int PREVIEW_EDGE = 512;
+	public static final int FINER_PREVIEW_EDGE = 2048;
+
+	/** Receives combined progress, 0 to 100.  Called from the loading threads. */
+	public interface Progress {
+		void update(int percent, String note);
+	}
+
+	private final File[] files;
+	private final ImageCatalog.Site site;
+	private final ImageResamplingDims xy;
+	private final float[] fractions;
+	private volatile boolean cancelled = false;
+	/** where to map the labels, or null for the heap */
+	private Path offHeapDir = null;
+
+	public LayerLoader(ImageCatalog.Site site, ImageResamplingDims xy) {
+		this.site = site;
+		this.files = site.files();
+		this.xy = xy;
+		this.fractions = new float[files.length];
+	}
+
+	/** Decode the labels into memory-mapped scratch files in this directory, as MLPaintPanel.setOffHeap. */
+	public void setOffHeap(Path offHeapDir) {
+		this.offHeapDir = offHeapDir;
+	}
+
+	public String getPrimaryName() {
+		return site.primary().getName();
+	}
+
+	/** Ask the readers to stop; loadAll then throws CancellationException. */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** Decode every file, returning the images in the same order as the files. */
+	public LinkedHashMap<File, BufferedImage> loadAll(Progress progress) throws IOException {
+		long t = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(MAX_THREADS, files.length), r -> {
+			Thread thread = new Thread(r, "LayerLoader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<BufferedImage>> futures = Lists.newArrayList();
+			for (int i = 0; i < files.length; i++) {
+				int index = i;
+				futures.add(pool.submit(() -> decode(index, progress)));
+			}
+			LinkedHashMap<File, BufferedImage> rr = Maps.newLinkedHashMap();
+			for (int i = 0; i < files.length; i++) {
+				rr.put(files[i], futures.get(i).get());
+			}
+			if (cancelled) {
+				throw new CancellationException("Loading cancelled.");
+			}
+			reportTime(t, "Loaded %d layers in parallel.", files.length);
+			return rr;
+		} catch (InterruptedException ex) {
+			cancelled = true;
+			throw new CancellationException("Loading interrupted.");
+		} catch (ExecutionException ex) {
+			if (cancelled) {// the readers were aborted on purpose
+				throw new CancellationException("Loading cancelled.");
+			}
+			cancelled = true;// stop the others
+			if (ex.getCause() instanceof IOException) {
+				throw (IOException) ex.getCause();
+			}
+			throw new IOException(ex.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** A quick coarse look at the image, about maxEdge pixels on its longer side, as TYPE_INT_RGB:
+	 * a level of the overview pyramid if cached, else a subsampled decode of the source.
+	 * Returns null if the working image itself is hardly bigger, so not worth previewing.
+	 */
+	public BufferedImage loadPreview(int maxEdge) throws IOException {
+		int workingEdge = Math.max(xy.smallx, xy.smally);
+		if (workingEdge <= 2 * maxEdge) return null;
+		long t = System.currentTimeMillis();
+		File file = site.primary();
+		OverviewPyramid pyramid = new OverviewPyramid(file, xy.samplingEdge);
+		BufferedImage img;
+		if (pyramid.isCached()) {
+			int level = 1;
+			while (level < pyramid.numLevels() - 1 && (workingEdge >> level) > maxEdge) {
+				level++;
+			}
+			img = pyramid.readLevel(level);
+		} else {
+			int edge = (Math.max(xy.bigx, xy.bigy) + maxEdge - 1) / maxEdge;
+			img = SwingUtil.subsampleImageFile(file, new ImageResamplingDims(xy.bigDim, edge), new Listener(-1, null));
+			img = SwingUtil.setRGBNoAlpha(img);
+		}
+		reportTime(t, "preview %d x %d of %s", img.getWidth(), img.getHeight(), file.getName());
+		return img;
+	}
+
+	private BufferedImage decode(int index, Progress progress) throws IOException {
+		File file = files[index];
+		long t = System.currentTimeMillis();
+		boolean isRGB = site.roleOf(file) == ImageCatalog.Role.RGB;
+		boolean isLabels = site.roleOf(file) == ImageCatalog.Role.LABELS;// labels change as we work, so never from a cache
+		RasterCache rasterCache = new RasterCache(file, xy.samplingEdge);
+		OverviewPyramid pyramid = new OverviewPyramid(file, xy.samplingEdge);
+		BufferedImage img;
+		if (!isLabels && rasterCache.isCached()) {
+			img = rasterCache.read();
+			t = reportTime(t, "mapped %s from the raster cache", file.toPath());
+			setFraction(index, 1.0f, progress);
+			return img;
+		} else if (isRGB && pyramid.isCached()) {
+			img = pyramid.readLevel(0);
+			t = reportTime(t, "loaded %s from the overview cache", file.toPath());
+		} else {
+			if (isLabels) {// majority class of each block, not a point sample
+				img = LabelLoader.read(file, xy, offHeapDir, new Listener(index, progress), this::isCancelled);
+			} else {
+				double nodata = ImageCatalog.entryFor(file).getNodata();// left out of the block averages
+				img = SwingUtil.boxDownsampleImageFile(file, xy, nodata, new Listener(index, progress));
+			}
+			t = reportTime(t, "loaded %s", file.toPath()); //GROK: Why toPath not getAbsolutePath?
+		}
+		if (isRGB) {// planar R, G, B bytes, as MLPaintPanel keeps it
+			img = PixelStore.wrap(img).asImage();
+		}
+		if (!isLabels && !cancelled && rasterCache.write(img)) {
+			t = reportTime(t, "wrote the raster cache for %s", file.toPath());
+		}
+		setFraction(index, 1.0f, progress);
+		return img;
+	}
+
+	private void setFraction(int index, float fraction, Progress progress) {
+		float sum = 0;
+		synchronized (fractions) {
+			fractions[index] = fraction;
+			for (float f : fractions) {
+				sum += f;
+			}
+		}
+		progress.update((int) (100 * sum / fractions.length), "Loading " + files[index].getName());
+	}
+
+	/** Forwards one reader's progress, and aborts that reader once the load is cancelled.  index -1 forwards nothing. */
+	private class Listener implements IIOReadProgressListener {
+		private final int index;
+		private final Progress progress;
+
+		Listener(int index, Progress progress) {
+			this.index = index;
+			this.progress = progress;
+		}
+
+		@Override
+		public void imageProgress(ImageReader source, float percentageDone) {
+			if (cancelled) {
+				source.abort();
+				return;
+			}
+			if (index >= 0) {
+				setFraction(index, percentageDone / 100.0f, progress);
+			}
+		}
+
+		@Override
+		public void readAborted(ImageReader source) {
+			cancelled = true;
+		}
+
+		@Override public void sequenceStarted(ImageReader source, int minIndex) {}
+		@Override public void sequenceComplete(ImageReader source) {}
+		@Override public void imageStarted(ImageReader source, int imageIndex) {}
+		@Override public void imageComplete(ImageReader source) {}
+		@Override public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+		@Override public void thumbnailProgress(ImageReader source, float percentageDone) {}
+		@Override public void thumbnailComplete(ImageReader source) {}
+	}
+
+}
@@ -9,29 +9,45 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.Key;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import org.djf.util.ImageTileCache;
+import org.djf.util.LayerStack;
+import org.djf.util.PixelStore;
 import org.djf.util.SwingApp;
+import org.djf.util.TiffWriter;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.MoreFiles;
 import org.djf.util.SwingUtil;
 
-import static org.djf.util.SwingUtil.setRGBNoAlpha;
 
 import org.yaml.snakeyaml.Yaml;
 
@@ -45,20 +61,49 @@ public class MLPaintApp extends SwingApp {
 		SwingUtilities.invokeLater(() -> new MLPaintApp(false));
 	}
 
-	private static int SMALLER_PIXELS = (int) Math.pow(2,23); //(2,26); //(int) Math.pow(2,31) / 4; //Used to be 196,000,000 = 14,000^2 //GROC: Static vs. non-static
-	private static int BIGGER_PIXELS = (int) Math.pow(2,27); //(2,26); //(int) Math.pow(2,31) / 4; //Used to be 196,000,000 = 14,000^2 //GROC: Static vs. non-static
+	// PixelStore takes 3 bytes per pixel where TYPE_INT_RGB took 4, so these are 4/3 what they were
+	private static int SMALLER_PIXELS = (int) Math.pow(2,23) / 3 * 4; //(2,26); //(int) Math.pow(2,31) / 4; //Used to be 196,000,000 = 14,000^2 //GROC: Static vs. non-static
+	private static int BIGGER_PIXELS = (int) Math.pow(2,27) / 3 * 4; //(2,26); //(int) Math.pow(2,31) / 4; //Used to be 196,000,000 = 14,000^2 //GROC: Static vs. non-static
 	private static int maxPixels = BIGGER_PIXELS;
 	private ImageResamplingDims xy;
+	/** bytes of native-resolution tiles kept for zooming in past the working resolution */
+	private static long TILE_CACHE_BYTES = 64L * 4 * ImageTileCache.TILE_EDGE * ImageTileCache.TILE_EDGE;
+	/** the MemoryPlanner's estimate for the open session, which is reclaimable when opening the next */
+	private long sessionBytes = 0;
+	private ImageTileCache sourceTiles = null;
 
 	private Path currentImageFile;
 
-	private boolean alreadyTold = false;
-
 	/** magic label paint panel that holds the secret sauce */
 	private MLPaintPanel mlp = new MLPaintPanel();
 
 	private IIOMetadata currentImageMetadata = null;
 	private IIOMetadata currentLabelsMetadata = null;
+	/** edge of the tiles labels are saved in, at full resolution */
+	private static final int LABELS_TILE = 256;
+	/** save labels as cloud-optimized GeoTIFF, with overviews, always rewriting the whole file (config cog: true) */
+	private boolean saveCloudOptimized = false;
+	/** the labels file saveLabels last wrote this session, and its modified time then:  if unchanged, save only dirty tiles */
+	private volatile Path savedLabelsFile = null;
+	private volatile long savedLabelsModified = 0;
+	/** saves, one at a time and in order, off the Swing thread */
+	private final ExecutorService saveExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "MLPaint save");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** label edits since the last save, see LabelJournal.  Read by the autosave thread too. */
+	private volatile LabelJournal journal = null;
+	/** the working state saved with the labels, for a quick resume.  Only the save thread touches it. */
+	private SessionBundle sessionBundle = null;
+	/** the next save starts a new session bundle, e.g. a new image was opened */
+	private boolean newSessionBundle = true;
+	/** classes exported as polygons:  all but UNLABELED and NO_DATA */
+	private static final int[] POLYGON_CLASSES = IntStream.range(MLPaintPanel.NEGATIVE, MLPaintPanel.NO_DATA).toArray();
+	/** Douglas-Peucker tolerance for polygons, in labels pixels */
+	private static final double POLYGON_TOLERANCE = 0.75;
+	/** autosave folds the journal into a full save beyond this */
+	private static final long JOURNAL_COMPACT_BYTES = 4 << 20;
 
 
 	JSlider brushRadiusSlider = new JSlider(JSlider.VERTICAL,(int) (mlp.radiusFromChDigit('1')*10),
@@ -155,25 +200,27 @@ public class MLPaintApp extends SwingApp {
 		@Override
         public void run() {
 			status ("Autosave started with interval %d seconds", mlp.getAutosave());
-    		try {
-    			autoSaveLabels();
-    		} catch (IOException e) {
-    			
-    		}
+    		autoSaveLabelsReporting();
         	while (running) {
         		try {
         			Thread.sleep(mlp.getAutosave() * 1000);
         		} catch (InterruptedException e) {
         			return;
         		}
-        		try {
-        			autoSaveLabels();
-        		} catch (IOException e) {
-        			
-        		}
+        		autoSaveLabelsReporting();
         	}
 
         }
+
+		/** autoSaveLabels, reporting rather than dying of any failure, so the next round tries again */
+		private void autoSaveLabelsReporting() {
+			try {
+				autoSaveLabels();
+			} catch (IOException | RuntimeException ex) {
+				ex.printStackTrace();
+				statusRed("Autosave failed: %s", ex.getMessage());
+			}
+		}
         
         public void terminate() {
         	running = false;
@@ -224,6 +271,18 @@ public class MLPaintApp extends SwingApp {
 	        } catch (Exception e) {
 	        	throw new RuntimeException("autosave not found");
 	        }
+	        if (conf.get("cog") != null) {
+	        	saveCloudOptimized = (boolean) conf.get("cog");
+	        }
+	        if (conf.get("queue") != null) {
+	        	mlp.setFrontierQueue((String) conf.get("queue"));
+	        }
+	        if (conf.get("distances") != null) {
+	        	mlp.setDistancePrecision((String) conf.get("distances"));
+	        }
+	        if (conf.get("engine") != null) {
+	        	mlp.setGrowthEngine((String) conf.get("engine"));
+	        }
 	        
 	    } catch (FileNotFoundException e) {
 	        System.out.println("No such file " + confPath);
@@ -618,6 +677,9 @@ public class MLPaintApp extends SwingApp {
 				newMenuItem("Open image, labels...|control O", this::openImage),
 				loadHighRes,
 				save.menuItem,
+				newMenuItem("Export labels as polygons (GeoJSON)", this::exportPolygons),
+				newMenuItem("Export a saved labels file as polygons (GeoJSON)...", this::exportPolygonsFromFile),
+				newMenuItem("Export classifier output (TIFF)", this::exportClassifierOutput),
 				newMenuItem("Exit the Program After Saving the Labels", this::exit),
 				null);
 
@@ -675,66 +737,171 @@ public class MLPaintApp extends SwingApp {
 	private void openImage() throws IOException {
 
 		JFileChooser jfc = new JFileChooser();
-		jfc.setDialogTitle("Select your image, any pre-existing labels, and other layers.");
+		jfc.setDialogTitle("Select your image (its labels & layers are found too), or select exactly the files to load.");
 		jfc.setCurrentDirectory(directory.toFile());
 		jfc.setPreferredSize(new Dimension(800,400));
 		// test for JUnit
 		jfc.setName("opener");
 
-		// currently the user selects all the layers to load
-		// MAYDO: instead, the user could just select the main file,
-		// and we could auto-identify the others somehow; (optionally offering to the user to filter away some
-		// that they don't want to spent time/RAM/network loading)
+		// The user selects just one file of a site and the catalog pairs up the rest,
+		// or selects several files to load exactly those.
 		jfc.setMultiSelectionEnabled(true);
 		int rr = jfc.showOpenDialog(this);
 		if (rr != JFileChooser.APPROVE_OPTION) {
 			return;
 		}
 
-		xy = new ImageResamplingDims(jfc.getSelectedFiles()[0], maxPixels);
-		if (xy.bigx > 4000 && !alreadyTold) {
-			JOptionPane.showMessageDialog(this, "This may take a moment to load. MLPaint will be unresponsive for maybe a minute after you proceed.");
-			alreadyTold = true;
-		}
+		File[] selected = jfc.getSelectedFiles();
 		directory = jfc.getCurrentDirectory().toPath();
 		storeDirectory(MLPaintApp.class);// remember it for future runs of the program
 
+		// 1. read every header in the directory once, via the ImageCatalog
+		ImageCatalog catalog = ImageCatalog.forDirectory(selected[0].getAbsoluteFile().toPath().getParent());
+		ImageCatalog.Site site = selected.length == 1 ? catalog.discoverSite(selected[0]) : catalog.siteOf(selected);
+		File[] files = site.files();
+		for (File file : files) {
+			System.out.printf("%s: %s\n", site.roleOf(file), catalog.get(file));
+		}
+
+		// 2. Size every per-pixel buffer of the session, and down-sample enough that they all fit in the heap,
+		//    or memory-map the big ones to scratch files if only that way they fit,
+		//    or refuse now rather than run out of memory partway into the session.
+		Dimension bigDim = catalog.get(site.primary()).getDimension();
+		MemoryPlanner planner = MemoryPlanner.forSite(site, catalog, TILE_CACHE_BYTES);
+		long available = MemoryPlanner.availableBytes(sessionBytes);
+		Path scratchDir = OverviewPyramid.cacheDir(site.primary()).resolve("scratch");
+		int samplingEdge;
+		try {
+			samplingEdge = planner.chooseSamplingEdge(bigDim, maxPixels, available, MemoryPlanner.availableDisk(scratchDir));
+		} catch (IllegalArgumentException ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage());
+			throw ex;// appears in status bar in red
+		}
+		// the current session keeps its xy until the new one has loaded, e.g. for autosave meanwhile
+		ImageResamplingDims newXY = new ImageResamplingDims(bigDim, samplingEdge);
+		long planned = planner.estimateBytes((long) newXY.smallx * newXY.smally);
+		Path offHeapDir = planner.isOffHeap() ? scratchDir : null;
 
-		// 1. determine image dimensions on disk via Util.readImageDimensions
-		// 2. If too big to load, determine how much down-sampling:  2x2?  3x3? 4x4?
-		boolean consistent = SwingUtil.isSameDimensions(xy.bigDim, jfc.getSelectedFiles());
+		boolean consistent = catalog.isSameDimensions(newXY.bigDim, files);
 		if (!consistent) {
 			status("Not all the selected images had the same dimensions.");
 			//return;
 		}
-		// 3. Load downsampled images for all the layers
+		// 3. Show a coarse preview within a second, then finer ones, while
+		//    loading downsampled images for all the layers, in parallel and off the Swing thread
 		// 4. When saving to _labels.png, remember to upsample the result    //REDUCE the DEM layer to 8 bits, grayscale, per pixel, reduce distances to a byte, not a double. Size of things match.
+		// 5. If the session was saved with these labels, take them and the rest of the session from its bundle
+		File labelsFile = site.fileOf(ImageCatalog.Role.LABELS);
+		SessionBundle.Contents bundle = null;
+		if (labelsFile != null) {
+			try {
+				bundle = SessionBundle.load(SessionBundle.pathFor(labelsOutputFile(site.primary().toPath())),
+						newXY.smallx, newXY.smally, samplingEdge, labelsFile.toPath());
+			} catch (IOException ex) {
+				System.out.printf("Can't read the session bundle: %s\n", ex);
+			}
+		}
+		SessionBundle.Contents sessionToResume = bundle;
+		LayerLoader loader = new LayerLoader(bundle == null ? site : site.without(labelsFile), newXY);
+		loader.setOffHeap(offHeapDir);
+		ProgressMonitor monitor = new ProgressMonitor(this, "Loading the image and its layers", "", 0, 100);
+		monitor.setMillisToDecideToPopup(200);
+		Timer cancelWatch = new Timer(200, event -> {
+			if (monitor.isCanceled()) {
+				loader.cancel();
+			}
+		});
+		cancelWatch.start();
+		AtomicBoolean done = new AtomicBoolean(false);
+		runBackground(() -> {
+			boolean loaded = false;
+			try {
+				showPreview(loader, LayerLoader.PREVIEW_EDGE, newXY, done);
+				runBackground(() -> showPreview(loader, LayerLoader.FINER_PREVIEW_EDGE, newXY, done));
+				LinkedHashMap<File, BufferedImage> layers = loader.loadAll((percent, note) -> SwingUtilities.invokeLater(() -> {
+					monitor.setProgress(percent);
+					monitor.setNote(note);
+				}));
+				if (sessionToResume != null) {
+					layers.put(labelsFile, readBundledLabels(sessionToResume, newXY, offHeapDir));
+				}
+				done.set(true);
+				runForeground(() -> {
+					xy = newXY;
+					mlp.setOffHeap(offHeapDir);
+					showLayers(site, layers, offHeapDir, sessionToResume);
+					sessionBytes = planned;
+					return null;
+				});
+				loaded = true;
+			} catch (CancellationException ex) {
+				status("Cancelled loading %s", files[0].getName());
+			} finally {
+				done.set(true);
+				boolean cancelPreview = !loaded;
+				SwingUtilities.invokeLater(() -> {
+					cancelWatch.stop();
+					monitor.close();
+					if (cancelPreview) {
+						mlp.cancelPreview();
+					}
+				});
+			}
+			return null;
+		});
+	}
+
+	/** Decode a preview in this background thread and show it, unless the full load is done by then. */
+	private Void showPreview(LayerLoader loader, int maxEdge, ImageResamplingDims newXY, AtomicBoolean done) throws IOException {
+		if (done.get()) return null;
+		BufferedImage preview = loader.loadPreview(maxEdge);
+		if (preview == null) return null;
+		runForeground(() -> {
+			if (done.get()) return;
+			mlp.showPreview(preview, newXY.smallx, newXY.smally);
+			status("Previewing %s at %d x %d while it loads.  Painting starts once it's loaded.",
+					loader.getPrimaryName(), preview.getWidth(), preview.getHeight());
+		});
+		return null;
+	}
+
+	/** In the background:  the labels straight out of a session bundle, mapped if the session is off-heap. */
+	private BufferedImage readBundledLabels(SessionBundle.Contents bundle, ImageResamplingDims newXY, Path offHeapDir) throws IOException {
+		long t = System.currentTimeMillis();
+		BufferedImage rr = LabelLoader.newLabels(newXY.smallx, newXY.smally, offHeapDir);
+		bundle.readRaster(SessionBundle.LABELS, rr.getRaster());
+		reportTime(t, "Read %,d x %,d labels from the session bundle.", newXY.smallx, newXY.smally);
+		return rr;
+	}
 
+	/** Sort the freshly decoded layers into image, labels & extra layers by their role in the site, and hand them to the panel.
+	 * Then resume the session from its bundle, if any.
+	 */
+	private void showLayers(ImageCatalog.Site site, LinkedHashMap<File, BufferedImage> layers, Path offHeapDir,
+			SessionBundle.Contents bundle) throws IOException {
 		BufferedImage image = null;
 		BufferedImage labels = null;
 		Path possibleImageFileNo_RGB = null;
 		Path labelsFile = null;
-		LinkedHashMap<String, BufferedImage> extraLayers = Maps.newLinkedHashMap();// keeps order
-		long t = System.currentTimeMillis();
-		for (File file : jfc.getSelectedFiles()) {
+		LinkedHashMap<File, BufferedImage> extraLayers = Maps.newLinkedHashMap();// keeps order
+		for (Map.Entry<File, BufferedImage> layer : layers.entrySet()) {
+			File file = layer.getKey();
+			BufferedImage img = layer.getValue();
 			IIOMetadata metadata = null;
-			BufferedImage img = SwingUtil.subsampleImageFile(file, xy, metadata);
-			//BufferedImage img = ImageIO.read(file);
-			t = reportTime(t, "loaded %s", file.toPath()); //GROK: Why toPath not getAbsolutePath?
 			System.out.println(file.toString());
-			if (MoreFiles.getNameWithoutExtension(file.toPath()).toLowerCase().endsWith("rgb")) {
-				image = setRGBNoAlpha(img);
+			if (site.roleOf(file) == ImageCatalog.Role.RGB) {
+				image = img;
 				currentImageFile = file.toPath();
 				//currentImageMetadata = metadata;
 				//System.out.print(metadata);
-			} else if (MoreFiles.getNameWithoutExtension(file.toPath()).toLowerCase().endsWith("labels")) {
+			} else if (site.roleOf(file) == ImageCatalog.Role.LABELS) {
 				labels = img;
 				labelsFile = file.toPath();
 				currentLabelsMetadata = metadata;
 				//System.out.print(metadata);
 				System.out.println("We got a labels file.");
 			} else {
-				extraLayers.put(file.getName(), img);
+				extraLayers.put(file, img);
 				possibleImageFileNo_RGB = file.toPath();
 			}
 		}
@@ -754,71 +921,350 @@ public class MLPaintApp extends SwingApp {
 					"MLPaint depend on filename--2 files: one filename must end in \"rgb\" OR \"labels\"; 3 files: one must end in \"rgb\".");
 			throw new IllegalArgumentException("Must provide the _RGB image");// appears in status bar in red
 		}
+		PixelStore store = PixelStore.wrap(image);// no copy if the loader already made planes
+		if (offHeapDir != null) {
+			store = PixelStore.mapped(store, offHeapDir);
+			System.out.printf("Memory-mapping the session's big buffers under %s\n", offHeapDir);
+		}
+		image = store.asImage();
+		// pack the extra layers into compact planes, and let go of their decoded images
+		LayerStack stack = new LayerStack(image.getWidth(), image.getHeight());
+		for (Map.Entry<File, BufferedImage> layer : extraLayers.entrySet()) {
+			stack.add(layer.getKey().getName(), layer.getValue(), ImageCatalog.entryFor(layer.getKey()).getNodata(), 5);
+		}
+		extraLayers.clear();
 		// My original design REPLACED the mlp, but it was forever not re-painting.
 		// Instead, I'll just change its data.
 		showClassifier.setSelected(false);
 		noRelabel.setSelected(true);
-		mlp.resetData(image, labels, extraLayers);
+		mlp.resetData(image, labels, stack);
+		savedLabelsFile = null;
+		newSessionBundle = true;
+		try {
+			openJournal(labelsFile);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			statusRed("Can't journal label edits: %s", ex.getMessage());
+		}
+		if (bundle != null) {
+			try {
+				mlp.restoreSession(bundle);
+			} catch (IOException | RuntimeException ex) {
+				ex.printStackTrace();
+				statusRed("Can't resume the rest of the session: %s", ex.getMessage());
+			}
+		}
+		if (sourceTiles != null) {
+			sourceTiles.close();
+		}
+		sourceTiles = xy.samplingEdge > 1 ? new ImageTileCache(currentImageFile.toFile(), TILE_CACHE_BYTES) : null;
+		mlp.setSourceTiles(sourceTiles, xy.samplingEdge);
+		loadOrBuildOverviews(image);
 		mlp.revalidate();// https://docs.oracle.com/javase/8/docs/api/javax/swing/JComponent.html#revalidate--
 		status("Opened %s  %,d x %,d       %s", currentImageFile, image.getWidth(), image.getHeight(),
 				image.getColorModel().toString());
 		System.out.printf("image color model: %s \n", image.getColorModel().toString());
 	}
 
-	private void saveLabels(String command, ActionEvent ev) throws IOException {
+	/** Give the panel its zoomed-out overviews: from the sidecar cache if there, else build and cache them in background. */
+	private void loadOrBuildOverviews(BufferedImage image) {
+		File source = currentImageFile.toFile();
+		OverviewPyramid pyramid = new OverviewPyramid(source, xy.samplingEdge);
+		runBackground(() -> {
+			long t = System.currentTimeMillis();
+			List<BufferedImage> overviews;
+			if (pyramid.isCached()) {
+				overviews = pyramid.readOverviews();
+				reportTime(t, "Read %d overviews from the cache.", overviews.size());
+			} else {
+				overviews = OverviewPyramid.buildOverviews(image);
+				pyramid.write(image, overviews);
+				reportTime(t, "Built and cached %d overviews in %s.", overviews.size(), OverviewPyramid.cacheDir(source));
+			}
+			runForeground(() -> mlp.setOverviews(image, overviews));
+			return null;
+		});
+	}
+
+	private void saveLabels(String command, ActionEvent ev) {
 		saveLabels();
 	}
-	private void saveLabels() throws IOException {
-		//TODO  figure out exactly how to output for downstream consumption
-		// For now: compressed TIFF is good
-		
-		// if no image, return
-		if (currentImageFile == null) return;
-		 
+	/** where saveLabels writes, beside the image */
+	private Path labelsOutputFile() {
+		return labelsOutputFile(currentImageFile);
+	}
+
+	private Path labelsOutputFile(Path imageFile) {
 		String extension = ".tif"; //".tif"".png";
-		String formatName = "tiff"; //"tiff" "png";
-		String filename = MoreFiles.getNameWithoutExtension(currentImageFile) + "_MLPaintlabels" + extension;
-		Path outfile = directory.resolve(filename);
-		// There is a 2^31 limit on the number of pixels in an image, a limit divided by four for RGBA.
-		// It makes sense that an 8-bit grayscale as opposed to a RGBA 32-bit image allows 4x the image size, full 2^31.
-		//  It seems that  4-bit image rather than 8-bit allows for double the image size, 2^32, or 65,500^2.
-		BufferedImage labelsToScale = SwingUtil.upsampleImage0Channel(mlp.labels, xy.bigDim, xy.samplingEdge);
-		boolean a = ImageIO.write(labelsToScale, formatName, outfile.toFile());
-		status("Saved %d x %d labels to %s, with message %s", labelsToScale.getWidth(), labelsToScale.getHeight(), outfile, a);
+		String filename = MoreFiles.getNameWithoutExtension(imageFile) + "_MLPaintlabels" + extension;
+		return directory.resolve(filename);
+	}
+
+	/** Journal label edits beside the labels output, first offering to replay what an unsaved session left there. */
+	private void openJournal(Path loadedLabels) throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		Path file = LabelJournal.pathFor(labelsOutputFile());
+		int w = mlp.labels.getWidth(), h = mlp.labels.getHeight();
+		LabelJournal.Contents old = LabelJournal.read(file, w, h, xy.samplingEdge, loadedLabels);
+		if (old != null && !old.records.isEmpty() && JOptionPane.showConfirmDialog(this,
+				String.format("%s has %d label edits made since the labels were last saved.  Replay them?",
+						file.getFileName(), old.records.size()),
+				"Recover unsaved labels", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+			mlp.replayJournal(old.records);
+			journal = LabelJournal.resume(file, w, h, xy.samplingEdge, old);
+			status("Replayed %d label edits from %s", old.records.size(), file.getFileName());
+		} else {
+			journal = LabelJournal.start(file, w, h, xy.samplingEdge, loadedLabels);
+		}
+		mlp.setJournal(journal);
+	}
+
+	/** Snapshot the labels, and save them on the save thread while labeling carries on.  Call on the Swing thread. */
+	private Future<?> saveLabels() {
+		// if no image, return
+		if (currentImageFile == null) return CompletableFuture.completedFuture(null);
+		BufferedImage snapshot = mlp.snapshotLabels();// O(1), as labels are copy-on-write
+		List<Rectangle> dirty = mlp.takeDirtyLabels();
+		ImageResamplingDims dims = xy;
+		Path outfile = labelsOutputFile();
+		Path imageFile = currentImageFile;
+		LabelJournal savedJournal = journal;
+		long mark = journal == null ? 0 : journal.mark();
 		mlp.safeToSave = true;
-		//https://docs.oracle.com/en/java/javase/11/docs/api/java.desktop/javax/imageio/metadata/IIOMetadata.html
+		boolean newBundle = newSessionBundle;
+		Map<String, byte[]> session;
+		try {
+			session = mlp.sessionSections(newBundle);
+			newSessionBundle = false;
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			session = null;
+		}
+		Map<String, byte[]> sessionSections = session;
+		return saveExecutor.submit(() -> {
+			try {
+				writeLabels(snapshot, dirty, dims, outfile, geoTags(imageFile));
+				if (savedJournal != null) {
+					savedJournal.restart(outfile, mark);// its edits up to the snapshot are all in the file now
+				}
+				if (sessionSections != null) {
+					writeSessionBundle(snapshot, newBundle ? null : dirty, sessionSections, dims, outfile);
+				}
+			} catch (IOException | RuntimeException ex) {
+				SwingUtilities.invokeLater(() -> {
+					mlp.markAllLabelsDirty();
+					mlp.safeToSave = false;
+					// sessionSections counted its paint & classifiers as bundled, but no bundle took them
+					newSessionBundle = true;
+					mlp.markSessionDirty();
+				});
+				savedLabelsFile = null;
+				ex.printStackTrace();
+				statusRed("Failed to save labels to %s: %s", outfile, ex.getMessage());
+				throw ex;
+			}
+			return null;
+		});
 	}
-	
+
+	/** On the save thread:  write the snapshot at full resolution, georeferenced by geoTags, all at once to a temp file
+	 * renamed over outfile, or by rewriting just the dirty tiles if we wrote outfile last time and it has no overviews.
+	 */
+	private void writeLabels(BufferedImage snapshot, List<Rectangle> dirty, ImageResamplingDims dims, Path outfile,
+			List<TIFFField> geoTags) throws IOException {
+		// Stream it out at full resolution a row of tiles at a time, rather than upsample a full-size image
+		// (limited to 2^31 pixels, and gigabytes of heap) for ImageIO.
+		long t = System.currentTimeMillis();
+		boolean incremental = !saveCloudOptimized && outfile.equals(savedLabelsFile) && Files.exists(outfile)
+				&& Files.getLastModifiedTime(outfile).toMillis() == savedLabelsModified;
+		if (incremental) {
+			List<Rectangle> bigDirty = Lists.newArrayList();
+			for (Rectangle r : dirty) {
+				int e = dims.samplingEdge;
+				bigDirty.add(new Rectangle(r.x * e, r.y * e, r.width * e, r.height * e));
+			}
+			TiffWriter.RowSource rows = TiffWriter.upsampled(snapshot.getRaster(), dims.bigDim, dims.samplingEdge,
+					TiffWriter.bitsFor(snapshot));
+			incremental = TiffWriter.rewriteTiles(outfile, rows, bigDirty);
+		}
+		if (!incremental) {
+			Path tmp = outfile.resolveSibling(outfile.getFileName() + ".tmp");
+			TiffWriter.writeUpsampled(tmp, snapshot, dims.bigDim, dims.samplingEdge, LABELS_TILE, geoTags, saveCloudOptimized);
+			Files.move(tmp, outfile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		savedLabelsFile = outfile;
+		savedLabelsModified = Files.getLastModifiedTime(outfile).toMillis();
+		reportTime(t, "%s %,d bytes of labels.", incremental ? "Updated" : "Wrote", Files.size(outfile));
+		status("Saved %d x %d labels to %s", dims.bigDim.width, dims.bigDim.height, outfile);
+	}
+
+	/** the image's GeoTIFF tags, to georeference what we write at its full resolution; not GDAL's metadata & nodata,
+	 * which describe its bands.  Empty if none, or if its header can't be read.
+	 */
+	private static List<TIFFField> geoTags(Path imageFile) {
+		List<TIFFField> rr = Lists.newArrayList();
+		try {
+			for (TIFFField f : ImageCatalog.entryFor(imageFile.toFile()).geoTags.values()) {
+				if (f.getTagNumber() != ImageCatalog.TAG_GDAL_METADATA && f.getTagNumber() != ImageCatalog.TAG_GDAL_NODATA) {
+					rr.add(f);
+				}
+			}
+		} catch (IOException ex) {
+			System.out.printf("No geo tags from %s: %s\n", imageFile, ex);
+		}
+		return rr;
+	}
+
+	/** On the save thread, after the labels:  bring the session bundle up to date with them, just the bands of labels
+	 * that changed (dirty) unless starting a new bundle (null).  A failure here costs only the quick resume.
+	 */
+	private void writeSessionBundle(BufferedImage snapshot, List<Rectangle> dirty, Map<String, byte[]> sections,
+			ImageResamplingDims dims, Path outfile) {
+		Path file = SessionBundle.pathFor(outfile);
+		try {
+			if (dirty == null) {
+				if (sessionBundle != null) sessionBundle.close();
+				sessionBundle = SessionBundle.create(file, snapshot.getWidth(), snapshot.getHeight(), dims.samplingEdge);
+			} else if (sessionBundle == null) {
+				return;// a failed write left no bundle to add to; the next new one is on its way
+			}
+			sessionBundle.putAll(SessionBundle.rasterSections(SessionBundle.LABELS, snapshot.getRaster(), dirty));
+			sessionBundle.putAll(sections);
+			sessionBundle.putBase(outfile);
+			sessionBundle.commit();
+		} catch (IOException | RuntimeException ex) {
+			ex.printStackTrace();
+			try {
+				if (sessionBundle != null) sessionBundle.close();
+			} catch (IOException ignored) {
+			}
+			sessionBundle = null;
+			SwingUtilities.invokeLater(() -> {
+				newSessionBundle = true;
+				mlp.markSessionDirty();
+			});
+			statusRed("Couldn't update the session bundle %s: %s", file.getFileName(), ex.getMessage());
+		}
+	}
+
+	/** Trace the labels into polygons, and write them beside the image as GeoJSON, in the background. */
+	private void exportPolygons(String command, ActionEvent ev) throws IOException {
+		if (currentImageFile == null) return;
+		BufferedImage snapshot = mlp.snapshotLabels();
+		ImageResamplingDims dims = xy;
+		ImageCatalog.Entry entry = ImageCatalog.entryFor(currentImageFile.toFile());
+		Path out = directory.resolve(MoreFiles.getNameWithoutExtension(currentImageFile) + "_MLPaintlabels.geojson");
+		runBackground(() -> vectorize(LabelVectorizer.rowsOf(snapshot.getRaster()), snapshot.getWidth(), snapshot.getHeight(),
+				dims.samplingEdge, dims.bigDim, entry, out));
+	}
+
+	/** Trace a saved labels TIFF into polygons at full resolution, reading it in strips, georeferenced like its site's image. */
+	private void exportPolygonsFromFile(String command, ActionEvent ev) throws IOException {
+		JFileChooser jfc = new JFileChooser();
+		jfc.setDialogTitle("Select the labels file to export as polygons");
+		jfc.setCurrentDirectory(directory.toFile());
+		if (jfc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File file = jfc.getSelectedFile();
+		runBackground(() -> {
+			ImageCatalog.Entry entry = ImageCatalog.entryFor(file);
+			if (!entry.isGeoreferenced()) {// ours are if the image was, but older ones aren't
+				File primary = ImageCatalog.forDirectory(file.getAbsoluteFile().toPath().getParent()).discoverSite(file).primary();
+				ImageCatalog.Entry image = ImageCatalog.entryFor(primary);
+				if (image.width == entry.width && image.height == entry.height) {
+					entry = image;
+				}
+			}
+			Path out = file.toPath().resolveSibling(MoreFiles.getNameWithoutExtension(file.toPath()) + ".geojson");
+			try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+				ImageReader reader = ImageIO.getImageReaders(stream).next();
+				reader.setInput(stream, true, true);
+				try {
+					vectorize(LabelVectorizer.rowsOf(reader, LABELS_TILE), entry.width, entry.height, 1, entry.getDimension(), entry, out);
+				} finally {
+					reader.dispose();
+				}
+			}
+			return null;
+		});
+	}
+
+	/** Write the classifier output as shown, 0-255 gray, at full resolution beside the image, in the background,
+	 * as a cloud-optimized GeoTIFF.
+	 */
+	private void exportClassifierOutput(String command, ActionEvent ev) {
+		if (currentImageFile == null) return;
+		BufferedImage output = mlp.classifierOutput;
+		if (output == null) {
+			JOptionPane.showMessageDialog(this, "No classifier output yet:  put down select-paint, or show the classifier output.");
+			throw new IllegalArgumentException("No classifier output to export");// appears in status bar in red
+		}
+		ImageResamplingDims dims = xy;
+		Path out = directory.resolve(MoreFiles.getNameWithoutExtension(currentImageFile) + "_MLPaintclassifier.tif");
+		Path imageFile = currentImageFile;
+		runBackground(() -> {
+			long t = System.currentTimeMillis();
+			TiffWriter.writeUpsampled(out, output, dims.bigDim, dims.samplingEdge, LABELS_TILE, geoTags(imageFile), true);
+			reportTime(t, "Wrote %,d bytes of classifier output.", Files.size(out));
+			status("Exported %d x %d classifier output to %s", dims.bigDim.width, dims.bigDim.height, out);
+			return null;
+		});
+	}
+
+	/** trace the rows' polygon classes, simplify and write GeoJSON, georeferenced by entry */
+	private Void vectorize(LabelVectorizer.Rows rows, int width, int height, int samplingEdge, Dimension sourceDim,
+			ImageCatalog.Entry entry, Path out) throws IOException {
+		long t = System.currentTimeMillis();
+		LabelVectorizer vectorizer = new LabelVectorizer(width, height, POLYGON_CLASSES);
+		vectorizer.trace(rows);
+		t = reportTime(t, "Traced the label boundaries of %,d x %,d labels.", width, height);
+		List<LabelVectorizer.Polygon> polygons = vectorizer.polygons(POLYGON_TOLERANCE);
+		LabelVectorizer.writeGeoJSON(out, polygons, samplingEdge, sourceDim, entry.getGeoTransform(), entry.getEpsg());
+		reportTime(t, "Exported %,d polygons to %s", polygons.size(), out);
+		return null;
+	}
+
+	/** Make the journal of label edits durable, and every so often compact it into a full save of the labels.
+	 * The edits themselves were appended as they happened, a few KB each.
+	 */
 	private void autoSaveLabels() throws IOException {
-		//TODO  figure out exactly how to output for downstream consumption
-		// For now: compressed TIFF is good
-		
+		LabelJournal journal = this.journal;// once, as opening an image replaces it
 		// if no image, return
-		if (currentImageFile == null) return;
-		
-		SimpleDateFormat formatter = new SimpleDateFormat("_dd-MM-yyyy_HH.mm.ss");  
-		Date date = new Date();  
-		String extension = ".tif"; //".tif"".png";
-		String formatName = "tiff"; //"tiff" "png";
-		String filename = MoreFiles.getNameWithoutExtension(currentImageFile) + "_MLPaintlabels" + formatter.format(date) + extension;
-		Path outfile = directory.resolve(filename);
-		// There is a 2^31 limit on the number of pixels in an image, a limit divided by four for RGBA.
-		// It makes sense that an 8-bit grayscale as opposed to a RGBA 32-bit image allows 4x the image size, full 2^31.
-		//  It seems that  4-bit image rather than 8-bit allows for double the image size, 2^32, or 65,500^2.
-		BufferedImage labelsToScale = SwingUtil.upsampleImage0Channel(mlp.labels, xy.bigDim, xy.samplingEdge);
-		boolean a = ImageIO.write(labelsToScale, formatName, outfile.toFile());
-		status("Saved %d x %d labels to %s, with message %s at %s", labelsToScale.getWidth(), labelsToScale.getHeight(), outfile, a, date);
-		mlp.safeToSave = true;
-		//https://docs.oracle.com/en/java/javase/11/docs/api/java.desktop/javax/imageio/metadata/IIOMetadata.html
+		if (currentImageFile == null || journal == null) return;
+		journal.sync();
+		if (journal.size() > JOURNAL_COMPACT_BYTES) {
+			SwingUtilities.invokeLater(this::saveLabels);// restarts the journal
+		}
+		status("Autosaved %d unsaved label edits in %s", journal.getNumRecords(), LabelJournal.pathFor(labelsOutputFile()).getFileName());
 	}
 
+	/** Save the labels, then close once they're on disk, without holding up the Swing thread meanwhile. */
 	private void exit(String command, ActionEvent ev) {
-		//TODO: if latest changes not saved
-		// JOptionDialog "Do you want to save your labels first?
-		// save and quit
-		try {
-			this.saveLabels();
-		} catch (IOException e) {
+		Future<?> saved = this.saveLabels();
+		setEnabled(false);// no more edits to lose
+		status("Saving the labels before exiting...");
+		saveExecutor.execute(() -> {// after the save, as the executor has just the one thread
+			Throwable failure = null;
+			try {
+				saved.get();
+			} catch (ExecutionException ex) {
+				failure = ex.getCause();
+			} catch (InterruptedException ex) {
+				failure = ex;
+			}
+			Throwable f = failure;
+			SwingUtilities.invokeLater(() -> finishExit(f));
+		});
+	}
+
+	/** Close, unless the save failed and the user would rather stay */
+	private void finishExit(Throwable saveFailure) {
+		setEnabled(true);
+		if (saveFailure != null && JOptionPane.showConfirmDialog(this,
+				String.format("Couldn't save the labels: %s\nQuit anyway?", saveFailure.getMessage()),
+				"Exit", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION) {
 			return;
 		}
 		this.dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
@@ -11,8 +11,19 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.geom.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
 import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.List;
 import java.util.stream.IntStream;
@@ -20,10 +31,20 @@ import java.util.stream.IntStream;
 import javax.swing.JComponent;
 
 import com.google.common.math.StatsAccumulator;
+import org.djf.util.BucketQueue;
+import org.djf.util.DistanceField;
+import org.djf.util.DirtyTiles;
+import org.djf.util.FloatIndexHeap;
+import org.djf.util.FrontierQueue;
+import org.djf.util.ImageTileCache;
+import org.djf.util.LayerStack;
+import org.djf.util.MappedDataBuffer;
+import org.djf.util.PixelStore;
 import org.djf.util.SwingUtil;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import com.google.common.collect.Streams;
 
 import org.djf.util.Utils;
@@ -74,12 +95,41 @@ public class MLPaintPanel extends JComponent
 
 
 	private static final double EDGE_DISTANCE_FRESH_POS = 0.00001;
+	/** Dijkstra seeds' starting cost:  nonzero, as distances of 0 mean not reached yet */
+	private static final float SEED_COST = 1.0f;
+	/** the 4-neighbours, in dijkstraSteps */
+	private static final int[] NEIGHBOUR_DX = {0, 0, 1, -1}, NEIGHBOUR_DY = {1, -1, 0, 0};
+	/** BucketQueue quantum, and its range:  a step costs a probability to scorePower, at most 1 */
+	private static final float BUCKET_WIDTH = 1f / 1024, BUCKET_RANGE = 2f;
+	/** image pixels beyond the visible area that drawVisibleImage copies too, for panning */
+	private static final int VIEW_IMAGE_MARGIN = 256;
+	/** about how many screen pixels a suggestion grid step should span, whatever the zoom */
+	private static final double SUGGESTION_SCREEN_STEP = 3.0;
 	public static final int DEFAULT_DIJSKTRA_GROWTH = 40;
+	/** r, g, b, hue, saturation, brightness:  see putColorFeatures */
+	public static final int NUM_COLOR_FEATURES = 6;
 	public static final int INTERIOR_STEPS = 20; //Interior steps should be less than or equal to DEFAULT_DIJKSTRA_GROWTH
 	public static int dijkstraGrowth = DEFAULT_DIJSKTRA_GROWTH;
 
 	/** current RGB image (possibly huge) in "world coordinates" */
 	public BufferedImage image;
+	/** the same pixels as image, which is just a view of these planes.  Features read from here. */
+	private PixelStore pixels;
+	/** where the big buffers are memory-mapped, or null to keep them on the heap.  See setOffHeap. */
+	private Path offHeapDir = null;
+	/** per thread feature vector & classifier outputs, reused for every pixel */
+	private final ThreadLocal<double[][]> featureScratch = ThreadLocal.withInitial(() -> new double[][] {new double[0], new double[2]});
+	/** a row of one suggestion grid cell, for isCellOpen on each thread */
+	private final ThreadLocal<int[]> cellScratch = ThreadLocal.withInitial(() -> new int[0]);
+	/** coarse stand-in for the next image while it loads, drawn stretched to width x height.
+	 * Non-null means we are previewing: pan & zoom only, no painting, until resetData. */
+	private BufferedImage preview = null;
+	/** the part of image last drawn at full size, as TYPE_INT_RGB, which Java2D draws fast unlike the planar image;
+	 * covering viewImageBounds from its top left.  See drawImageOrOverview. */
+	private BufferedImage viewImage = null;
+	private Rectangle viewImageBounds = null;
+	/** image at 1/2, 1/4, ... size, for drawing when zoomed out.  See OverviewPyramid. */
+	private List<BufferedImage> overviews = Collections.emptyList();
 	/** width and height of image, extraLayers, labels, freshPaint, etc.  NOT the size of this Swing component on the screen, which may be smaller typically. */
 	int width, height;
 	int JPanelWidth, JPanelHeight;
@@ -87,7 +137,7 @@ public class MLPaintPanel extends JComponent
 	/** extra image layers:  filename & image.  Does not contain master image or labels layers.
 	 * Might have computed layers someday.
 	 */
-	public LinkedHashMap<String, BufferedImage> extraLayers;
+	public LayerStack extraLayers;
 
 	/** matching image labels, like this: 0=UNLABELED, 1=POSITIVE, 2=NEGATIVE, ... */
 	public BufferedImage labels;
@@ -95,12 +145,18 @@ public class MLPaintPanel extends JComponent
 	/** clients can toggle this property and we automatically re-initDijkstra */
 	public boolean noRelabel = true;
 	public boolean hideLabeled = false;
-	private static final int UNDO_MEM = 10;
+	static final int UNDO_MEM = 10;
 	private boolean undoInProgress = false;
 	private boolean isPaintPreDelete = false;
 	private List<BufferedImage> undoLabels = Lists.newArrayListWithCapacity(UNDO_MEM);
 
 	public boolean safeToSave = true;
+	/** edge of the working-resolution cells dirtyLabels tracks */
+	private static final int DIRTY_CELL = 64;
+	/** where labels changed since the last save took them */
+	private DirtyTiles dirtyLabels;
+	/** where each label edit is appended, if anywhere */
+	private LabelJournal journal = null;
 
 	/** binary image mask.  pixel index = FRESH_POS where the user has freshly painted positive.
 	 * Colors for display are transparent & transparent-green, currently.
@@ -110,6 +166,8 @@ public class MLPaintPanel extends JComponent
 	private Area freshPaintArea = new Area();
 	private Area antiPaintArea = new Area();
 	private List<Point2D> dijkstraPossibleSeeds = Lists.newArrayListWithCapacity(1000);
+	/** bumped by every change to the fresh paint, so a session save can tell whether to write it again */
+	private int paintVersion = 0;
 
 	/** pixel size of the brush.  */
 
@@ -120,18 +178,42 @@ public class MLPaintPanel extends JComponent
 	private final int maxNegatives = 8000;
 	private final int nRFTrees = 30;
 	private boolean isPULearning = true;
+	/** what the last sessionSections call took, to leave out what's unchanged since */
+	private int bundledPaintVersion = -1;
+	private Object bundledClassifier = null, bundledSpareClassifier = null;
 
 
 	/** Distance to each pixel from fresh paint-derived seed points, initially +infinity.
 	 * Allocated for (width x height) of image, but maybe not computed for 100% of image to reduce computation.
 	 */
-	private float[][] distances;
+	private DistanceField distances;
 	private float[][] spareDistances = null; //= new double[width][height];
 	public double scorePower = 2.0;
-	public ArrayList<PriorityQueue<MyPoint>> listQueues = null;
+	/** the Dijkstra frontier, queued by discovery number in history */
+	private FrontierQueue frontier = null;
+	/** how the suggestion grew:  each growth step's threshold, bounds & frontier */
+	public SettledHistory history = null;
 	public int queueBoundsIdx = -10;
-	//MAYDO: Optimize this to go even bigger when we're on huge scale and shrink to 1 when we are zoomed in.
+	/** quantized-cost BucketQueue for the frontier, rather than the exact FloatIndexHeap.  See setFrontierQueue. */
+	private boolean bucketQueue = false;
+	/** grow suggestions by parallel delta-stepping, ParallelGrowth, rather than one sequential loop.  See setGrowthEngine. */
+	private boolean parallelEngine = false;
+	/** the engine growing the current suggestion:  SequentialGrowth, or ParallelGrowth if parallelEngine */
+	private SuggestionGrowth growth = null;
+	/** distances kept as 16-bit bfloat16 rather than float.  See setDistancePrecision. */
+	private boolean bfloat16Distances = false;
 	public MLPaintPixelConstants c = new MLPaintPixelConstants();
+	/** the suggestion's grid step, a multiple of c.dijkstraStep fit to the zoom when the stroke began.  See stepForView. */
+	private int suggestionStep = 1;
+	/** finer-step costs over the boundary band of level refinedLevel, 0 outside the band.  See refineBoundary. */
+	private DistanceField refined = null;
+	private int refinedLevel = -1;
+	/** step costs of the fine cells in that band, already scaled by fine / coarse */
+	private DistanceField bandCosts = null;
+	/** non-0 over the cells settled by level regionLevel:  what's in its suggestion, by what settled rather than by
+	 * distances, which may be rounded.  See markRegion. */
+	private DistanceField region = null;
+	private int regionLevel = -1;
 
 	/** suggested area to transfer to labels.  TBD. just a binary mask?  or does it have a few levels?  Or what?? */
 	public BufferedImage proposed;
@@ -140,6 +222,11 @@ public class MLPaintPanel extends JComponent
 	/** map from screen frame of reference down to image "world coordinates" frame of reference, so we can pan & zoom */
 	private AffineTransform view = new AffineTransform();
 
+	/** native-resolution tiles of the source image file, drawn when zoomed in past the working resolution.  May be null. */
+	private ImageTileCache sourceTiles = null;
+	/** source pixels per working pixel on a side, see ImageResamplingDims.samplingEdge */
+	private int samplingEdge = 1;
+
 	/** previous mouse event when drawing/dragging */
 	private MouseEvent mousePrev;
 	private Point2D cursor;
@@ -174,9 +261,32 @@ public class MLPaintPanel extends JComponent
 		return AUTOSAVE_INTERVAL;
 	}
 
-	public void resetData(BufferedImage masterImage, BufferedImage labels2,
-			LinkedHashMap<String, BufferedImage> extraLayers2) {
-		image = masterImage;
+	/** "heap" for the exact FloatIndexHeap, or "bucket" for the quantized BucketQueue.  Takes effect at the next initDijkstra. */
+	public void setFrontierQueue(String kind) {
+		Preconditions.checkArgument(kind.equals("heap") || kind.equals("bucket"), "queue must be heap or bucket: %s", kind);
+		bucketQueue = kind.equals("bucket");
+	}
+
+	/** "sequential" or "parallel", for delta-stepping across cores.  Takes effect at the next initDijkstra. */
+	public void setGrowthEngine(String kind) {
+		Preconditions.checkArgument(kind.equals("sequential") || kind.equals("parallel"), "engine must be sequential or parallel: %s", kind);
+		parallelEngine = kind.equals("parallel");
+	}
+
+	/** "float" or "bfloat16", to halve the distances' memory for costs good to 8 bits.  Takes effect at the next resetData. */
+	public void setDistancePrecision(String kind) {
+		Preconditions.checkArgument(kind.equals("float") || kind.equals("bfloat16"), "distances must be float or bfloat16: %s", kind);
+		bfloat16Distances = kind.equals("bfloat16");
+	}
+
+	public void resetData(BufferedImage masterImage, BufferedImage labels2, LayerStack extraLayers2) {
+		// keep the view the user panned & zoomed to over the preview
+		boolean keepView = preview != null && width == masterImage.getWidth() && height == masterImage.getHeight();
+		preview = null;
+		pixels = PixelStore.wrap(masterImage);// mapped already, if the app mapped it
+		image = pixels.asImage();
+		viewImageBounds = null;
+		overviews = Collections.emptyList();
 		width = image.getWidth();
 		height = image.getHeight();
 
@@ -190,31 +300,116 @@ public class MLPaintPanel extends JComponent
 //		}
 		if (labels2 == null) {
 			//labels = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-			labels = SwingUtil.newBinaryImage(width, height, LABEL_COLORS);
+			labels = newBinaryImage(width, height, LABEL_COLORS);
 			System.out.println("We created a blank labels object.");
 			//TODO: make this a toggle
 			//TODO: scrub any isolated Color.white pixels, make sure it's connected to a no_data component.
 		} else {
 			IndexColorModel icm = SwingUtil.newBinaryICM(LABEL_COLORS);
 			WritableRaster raster = labels2.getRaster();
-			labels = new BufferedImage(icm, raster, false, null);
+			if (offHeapDir == null) {
+				labels = new BufferedImage(icm, raster, false, null);
+			} else if (raster.getDataBuffer() instanceof MappedDataBuffer) {// e.g. from a session bundle
+				labels = new BufferedImage(icm, raster, false, null);
+			} else {// copy the codes into mapped 4-bit labels
+				labels = newBinaryImage(raster.getWidth(), raster.getHeight(), LABEL_COLORS);
+				labels.getRaster().setRect(raster);
+			}
 		}
 		undoLabels.clear();
+		dirtyLabels = new DirtyTiles(width, height, DIRTY_CELL);
 		visLabels = getDisplayLabels(labels);
 
 		extraLayers = extraLayers2;
 		Preconditions.checkArgument(width  == labels.getWidth() && height == labels.getHeight(),
 				"The labels size does not match the image size.");
-		extraLayers.values().forEach(im -> {
-			Preconditions.checkArgument(width  < im.getWidth() + 5 && height < im.getHeight()+5
-												&& width  > im.getWidth()- 5 && height > im.getHeight()-5,
-					"The extra layer size does not match the image size, is not within 5 pixels.");
-		});
+		Preconditions.checkArgument(width == extraLayers.width && height == extraLayers.height,
+				"The extra layers were not padded to the image size.");
+		distances = new DistanceField(width, height, bfloat16Distances);
 		initializeFreshPaint();
-		distances = new float[width][height];
 
 		setPreferredSize(new Dimension(width, height));
-		resetView();
+		if (keepView) {
+			repaint();
+		} else {
+			resetView();
+		}
+	}
+
+	/** Show a coarse image in place of a working image of workingWidth x workingHeight that is still loading.
+	 * Called again with finer previews as they decode; the first call sets up the view.
+	 */
+	public void showPreview(BufferedImage coarse, int workingWidth, int workingHeight) {
+		boolean first = preview == null;
+		preview = coarse;
+		if (first) {
+			width = workingWidth;
+			height = workingHeight;
+			setPreferredSize(new Dimension(width, height));
+			resetView();
+		}
+		repaint();
+	}
+
+	/** Give up on previewing, e.g. the load was cancelled, and go back to the current image. */
+	public void cancelPreview() {
+		if (preview == null) return;
+		preview = null;
+		if (image != null) {
+			width = image.getWidth();
+			height = image.getHeight();
+			setPreferredSize(new Dimension(width, height));
+			resetView();
+		}
+		repaint();
+	}
+
+	public boolean isPreviewing() {
+		return preview != null;
+	}
+
+	/** Keep the big per-pixel buffers (image, labels, visLabels, freshPaint, classifier output, undo copies)
+	 * in memory-mapped scratch files in this directory, or on the heap if null.  Takes effect at the next resetData.
+	 */
+	public void setOffHeap(Path scratchDir) {
+		this.offHeapDir = scratchDir;
+	}
+
+	/** a blank TYPE_BYTE_BINARY image with these colors, off the heap if setOffHeap gave a directory */
+	private BufferedImage newBinaryImage(int w, int h, Color... colors) {
+		if (offHeapDir == null) {
+			return SwingUtil.newBinaryImage(w, h, colors);
+		}
+		try {
+			return MappedDataBuffer.newBinaryImage(offHeapDir, w, h, SwingUtil.newBinaryICM(colors));
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private BufferedImage newGrayImage(int w, int h) {
+		if (offHeapDir == null) {
+			return new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		}
+		try {
+			return MappedDataBuffer.newGrayImage(offHeapDir, w, h);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/** Let paintComponent fetch sharper pixels from the source file when zoomed in.  tiles may be null. */
+	public void setSourceTiles(ImageTileCache tiles, int samplingEdge) {
+		this.sourceTiles = tiles;
+		this.samplingEdge = samplingEdge;
+		repaint();
+	}
+
+	/** Install zoomed-out overviews of the image, unless another image has been opened meanwhile. */
+	public void setOverviews(BufferedImage forImage, List<BufferedImage> overviews) {
+		if (forImage != image) return;
+		this.overviews = overviews;
+		repaint();
 	}
 
 	public void resetView() {
@@ -228,9 +423,11 @@ public class MLPaintPanel extends JComponent
 
 	public void initializeFreshPaint() {
 		long t = System.currentTimeMillis();
-		freshPaint = SwingUtil.newBinaryImage(width, height, c.FRESH_COLORS);// 2 bits per pixel
+		freshPaint = newBinaryImage(width, height, c.FRESH_COLORS);// 2 bits per pixel
+		paintVersion++;
 		t = reportTime(t, "We have made a new freshpaint image.");
-		listQueues = null;
+		frontier = null;
+		history = null;
 		queueBoundsIdx = dijkstraGrowth;
 		freshPaintArea = new Area();
 		antiPaintArea = new Area();
@@ -256,7 +453,7 @@ public class MLPaintPanel extends JComponent
 	public void mousePressed(MouseEvent e) {
 		System.out.printf("MousePress %s\n", e.toString());
 		mousePrev = e;
-		if (e.isControlDown() || e.getButton() == MouseEvent.BUTTON2) {
+		if (preview != null || e.isControlDown() || e.getButton() == MouseEvent.BUTTON2) {
 			// start dragging to pan the image
 		} else if (e.isAltDown()) {
 			eraseFreshPaint(e);
@@ -271,7 +468,7 @@ public class MLPaintPanel extends JComponent
 	@Override
 	public void mouseDragged(MouseEvent e) {
 		//System.out.printf("MouseDrag %s\n", e.toString());
-		if (e.isControlDown() || e.getButton() == MouseEvent.BUTTON2) {
+		if (preview != null || e.isControlDown() || e.getButton() == MouseEvent.BUTTON2) {
 			// pan the image
 			System.out.println("Dragging.");
 			double dx = e.getPoint().getX() - mousePrev.getPoint().getX();
@@ -293,7 +490,7 @@ public class MLPaintPanel extends JComponent
 	public void mouseReleased(MouseEvent e) {
 		System.out.printf("MouseRelease %s\n", e.toString());
 		// if it was painting, then extract the training set
-		if (!e.isControlDown() && !(e.getButton() == MouseEvent.BUTTON2)) {
+		if (preview == null && !e.isControlDown() && !(e.getButton() == MouseEvent.BUTTON2)) {
 			initAutoSuggest();
 		}
 		mousePrev = null;
@@ -311,7 +508,7 @@ public class MLPaintPanel extends JComponent
 		mousePrev = null;
 		repaint();
 		if (allowSpareClassifier) {
-			runBackground(() -> spareClassifierForGrowth(listQueues.get(listQueues.size() - 1)));
+			runBackground(() -> spareClassifierForGrowth(history.levels() - 1));
 		}
 		//spareClassifierForGrowth(); //TODO: Help? I need to run this after repaint.
 	}
@@ -433,6 +630,7 @@ public class MLPaintPanel extends JComponent
 		Color color = new Color(cm.getRGB(index));
 		Graphics2D g = (Graphics2D) freshPaint.getGraphics();
 		g.setColor(color);
+		paintVersion++;
 		try {
 			AffineTransform inverse = view.createInverse();
 			if (index == FRESH_POS) {
@@ -476,19 +674,27 @@ public class MLPaintPanel extends JComponent
 		JPanelWidth = getWidth();
 		JPanelHeight = getHeight();
 		g2.fillRect(0, 0, getWidth(), getHeight());// background may have already been filled in
-		if (image == null) {
+		if (image == null && preview == null) {
 			g2.dispose();
 			return;
 		}
 		g2.transform(view);
+		if (preview != null) {// just the coarse image until the working resolution is ready
+			g2.drawImage(preview, 0, 0, width, height, null);
+			g2.setColor(Color.BLACK);
+			g2.drawRect(0, 0, width, height);
+			g2.dispose();
+			return;
+		}
 		//t = reportTime(t, "Initialized the g2 graphic for repainting.");
 
 		if (showClassifierC) {                           // MAYDO: instead have a transparency slider??  That'd be cool.
 			g2.drawImage(classifierOutput, 0, 0, null);
 //			t = reportTime(t, "Classifier output drawn.");
 		} else {
-			g2.drawImage(image, 0, 0, null);
+			drawImageOrOverview(g2);
 //			t = reportTime(t, "Image drawn.");
+			drawSourceTiles(g2);
 		}
 
 		//g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.2f));
@@ -525,15 +731,15 @@ public class MLPaintPanel extends JComponent
 			}
 			//t = reportTime(t, "cross hatched fresh paint drawn");
 
-			if (listQueues != null && listQueues.size() > queueBoundsIdx && queueBoundsIdx >= 0) {
+			if (history != null && history.levels() > queueBoundsIdx && queueBoundsIdx >= 0) {
+				int[] edge = history.frontier(queueBoundsIdx);
 				g2.setColor(c.FRESH_COLORS[FRESH_POS]);
-				for (MyPoint edgePoint : listQueues.get(queueBoundsIdx)) {
-					g2.drawRect(edgePoint.x, edgePoint.y, c.dijkstraStep, c.dijkstraStep);
+				for (int edgePoint : edge) {
+					g2.drawRect(edgePoint % width, edgePoint / width, suggestionStep, suggestionStep);
 				}
 				g2.setColor(c.BACKDROP_COLORS[FRESH_POS]);
-				for (MyPoint edgePoint : listQueues.get(queueBoundsIdx)) {
-					//g2.drawRect(edgePoint.x,edgePoint.y,2,2);
-					g2.fillRect(edgePoint.x, edgePoint.y, c.dijkstraStep, c.dijkstraStep);
+				for (int edgePoint : edge) {
+					g2.fillRect(edgePoint % width, edgePoint / width, suggestionStep, suggestionStep);
 				}
 				//	t = reportTime(t, "Dijkstra suggestion outline drawn from priorityQueue.");
 			}
@@ -544,6 +750,82 @@ public class MLPaintPanel extends JComponent
 		g2.dispose();
 	}
 
+	/** Draw the image, or when zoomed out a smaller overview of it, so we don't resample the whole image every paint. */
+	private void drawImageOrOverview(Graphics2D g2) {
+		double scale = Math.sqrt(Math.abs(view.getDeterminant()));// screen pixels per working pixel
+		int level = OverviewPyramid.levelForScale(scale, overviews.size());
+		if (level == 0) {
+			drawVisibleImage(g2);
+		} else {
+			g2.drawImage(overviews.get(level - 1), AffineTransform.getScaleInstance(1 << level, 1 << level), null);
+		}
+	}
+
+	/** Draw the visible part of image from viewImage, copying it there from the planes if it's not covered yet,
+	 * with a margin so small pans needn't copy again.  If the whole of a big image is visible, e.g. zoomed out before
+	 * the overviews are ready, draw image itself, slowly, rather than copy it all. */
+	private void drawVisibleImage(Graphics2D g2) {
+		Rectangle clip = g2.getClipBounds();// in image coordinates, as g2 has the view
+		Rectangle visible = new Rectangle(0, 0, width, height);
+		if (clip != null) {
+			visible = visible.intersection(clip);
+		}
+		if (visible.isEmpty()) return;
+		if ((long) visible.width * visible.height > 4L * Math.max(1, getWidth()) * Math.max(1, getHeight())) {
+			g2.drawImage(image, 0, 0, null);
+			return;
+		}
+		if (viewImageBounds == null || !viewImageBounds.contains(visible)) {
+			Rectangle r = new Rectangle(visible);
+			r.grow(VIEW_IMAGE_MARGIN, VIEW_IMAGE_MARGIN);
+			r = r.intersection(new Rectangle(0, 0, width, height));
+			if (viewImage == null || viewImage.getWidth() < r.width || viewImage.getHeight() < r.height) {
+				viewImage = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+			}
+			int[] rgb = ((DataBufferInt) viewImage.getRaster().getDataBuffer()).getData();
+			pixels.copyRGB(r.x, r.y, r.width, r.height, rgb, viewImage.getWidth());
+			viewImageBounds = r;
+		}
+		Rectangle r = viewImageBounds;
+		g2.drawImage(viewImage, r.x, r.y, r.x + r.width, r.y + r.height, 0, 0, r.width, r.height, null);
+	}
+
+	/** Over the working image, draw whatever native-resolution source tiles are cached for the visible area,
+	 * and ask for the missing ones in the background.  g2 is already transformed by the view.
+	 */
+	private void drawSourceTiles(Graphics2D g2) {
+		if (sourceTiles == null || samplingEdge <= 1) return;
+		double scale = Math.sqrt(Math.abs(view.getDeterminant()));// screen pixels per working pixel
+		if (scale <= 1.0) return;// the working image already has a pixel for every screen pixel
+		int f = ImageTileCache.levelFor(samplingEdge / scale);
+		if (f >= samplingEdge) return;
+
+		Rectangle2D visible;
+		try {
+			visible = view.createInverse().createTransformedShape(new Rectangle(0, 0, getWidth(), getHeight())).getBounds2D();
+		} catch (NoninvertibleTransformException e) {// won't happen
+			return;
+		}
+		int span = ImageTileCache.tileSpan(f);
+		int tx0 = Math.max(0, (int) (visible.getMinX() * samplingEdge / span));
+		int ty0 = Math.max(0, (int) (visible.getMinY() * samplingEdge / span));
+		int tx1 = Math.min((sourceTiles.width - 1) / span, (int) (visible.getMaxX() * samplingEdge / span));
+		int ty1 = Math.min((sourceTiles.height - 1) / span, (int) (visible.getMaxY() * samplingEdge / span));
+		for (int tx = tx0; tx <= tx1; tx++) {
+			for (int ty = ty0; ty <= ty1; ty++) {
+				BufferedImage tile = sourceTiles.getCached(f, tx, ty);
+				if (tile == null) {
+					sourceTiles.request(f, tx, ty, this::repaint);
+					continue;
+				}
+				AffineTransform at = AffineTransform.getTranslateInstance(
+						tx * span / (double) samplingEdge, ty * span / (double) samplingEdge);
+				at.scale(f / (double) samplingEdge, f / (double) samplingEdge);
+				g2.drawImage(tile, at, null);
+			}
+		}
+	}
+
 	private void crossHatchArea(Graphics2D g2, Shape thisArea, TexturePaint textureP, Color foregroundColor, Color backdropColor) {
 		Composite memComposite = g2.getComposite();
 		Stroke memStroke = g2.getStroke();
@@ -691,7 +973,7 @@ public class MLPaintPanel extends JComponent
 			int y = rand.nextInt(height);
 			int index = rawdata.getSample(x, y, 0);// returns 0 or 1
 			if 	 (threshold <= 0 && index == FRESH_UNLABELED
-				|| threshold > 0 && index == FRESH_UNLABELED && (distances[x][y] == 0 || distances[x][y] > threshold)) {
+				|| threshold > 0 && index == FRESH_UNLABELED && (distances.get(x, y) == 0 || distances.get(x, y) > threshold)) {
 				negatives.add(new int[]{x, y});
 			}
 		}
@@ -703,16 +985,16 @@ public class MLPaintPanel extends JComponent
 	/** Prepare a new classifier for if the labeler likes a suggested region and grows it.
 	 * Extract training set and train.
 	 * We're going to assume an initialized distances matrix.
-	 * Check nneg1 if extending this to apply to any but the biggest queue.
+	 * Check nneg1 if extending this to apply to any but the biggest growth level.
 	 * This code is run in background. It accesses freshPaint, antiPaintArea, and especially distances. It could be useless if those things changed.*/
-	public int spareClassifierForGrowth(PriorityQueue<MyPoint> thisQueue) {
+	public int spareClassifierForGrowth(int level) {
 		long t = System.currentTimeMillis();
 
 		WritableRaster rawdata = freshPaint.getRaster();// for direct access to the bitmap index, not its mapped color
 
 		// extract positive examples from each fresh paint pixel where distances[x][y] < thresholdIndex
-		int[] boundsPositives = getQueueBounds(thisQueue);
-		double thresh = getThresholdDistance(thisQueue);
+		int[] boundsPositives = getQueueBounds(level);
+		double thresh = getThresholdDistance(level);
 		List<int[]> positives = sampleInSuggestion(boundsPositives, thresh, maxNegatives);
 		int npos1 = positives.size();
 
@@ -806,7 +1088,8 @@ public class MLPaintPanel extends JComponent
 					if (y >= capy) continue;
 
 					if (rawdata == null) {
-						if (distances[x][y] != 0 && distances[x][y] < thresh) {
+						float distance = distances.get(x, y);
+						if (distance != 0 && distance < thresh) {
 							acquisitions.add(new int[]{x, y});
 						}
 					} else {
@@ -851,32 +1134,62 @@ public class MLPaintPanel extends JComponent
 	}
 
 	private double[] getFeatureVector(int... xy) {
-		double[] cv = getColorVector(xy);
-//		double[] cv = getPatchFeatures(xy);
-		double[] xlv = extraLayersVector(xy);
+		double[] fv = new double[NUM_COLOR_FEATURES + extraLayers.size()];
+		fillFeatureVector(xy[0], xy[1], fv);
+		return fv;
+	}
 
-		double[] jointFv = Streams.concat(
-				Arrays.stream(cv), Arrays.stream(xlv)
-		).toArray();
-		return jointFv;
+	/** Write the features of pixel x,y into fv, allocating nothing:  color features, then the extra layers. */
+	private void fillFeatureVector(int x, int y, double[] fv) {
+		putColorFeatures(x, y, fv);
+//		double[] cv = getPatchFeatures(xy);
+		extraLayers.fill(x, y, fv, NUM_COLOR_FEATURES);
 	}
 
 	private double[] getColorVector(int... xy){
-		//Preconditions.checkArgument(xy.length == 2, "This is not an xy pair.");
-		int x = xy[0];
-		int y = xy[1];
-		//MAYDO: iff this gets to be the CPU bottleneck, then we could cache answers
-		Color clr = new Color(image.getRGB(x, y));
-        int red =   clr.getRed();
-        int green = clr.getGreen();
-        int blue =   clr.getBlue();
-        // TODO include other image layers, possibly also computed textures/etc.
-        float[] hsb = new float[3];
-		Color.RGBtoHSB(red, green, blue, hsb);
-		double[] rr = {red/255.0, green/255.0, blue/255.0, hsb[0], hsb[1], hsb[2]};
+		double[] rr = new double[NUM_COLOR_FEATURES];
+		putColorFeatures(xy[0], xy[1], rr);
 		return rr;
 	}
 
+	/** r, g, b in [0,1], then hue, saturation, brightness, straight from the pixel store */
+	private void putColorFeatures(int x, int y, double[] fv) {
+		int i = pixels.index(x, y);
+		int red = pixels.get(PixelStore.RED, i);
+		int green = pixels.get(PixelStore.GREEN, i);
+		int blue = pixels.get(PixelStore.BLUE, i);
+		// TODO include other image layers, possibly also computed textures/etc.
+		fv[0] = red / 255.0;
+		fv[1] = green / 255.0;
+		fv[2] = blue / 255.0;
+		putHSB(red, green, blue, fv, 3);
+	}
+
+	/** Color.RGBtoHSB, same float arithmetic, but into fv without a float[] per pixel */
+	private static void putHSB(int r, int g, int b, double[] fv, int offset) {
+		int cmax = Math.max(r, Math.max(g, b));
+		int cmin = Math.min(r, Math.min(g, b));
+		float saturation = cmax != 0 ? ((float) (cmax - cmin)) / ((float) cmax) : 0;
+		float hue = 0;
+		if (saturation != 0) {
+			float redc = ((float) (cmax - r)) / ((float) (cmax - cmin));
+			float greenc = ((float) (cmax - g)) / ((float) (cmax - cmin));
+			float bluec = ((float) (cmax - b)) / ((float) (cmax - cmin));
+			if (r == cmax) {
+				hue = bluec - greenc;
+			} else if (g == cmax) {
+				hue = 2.0f + redc - bluec;
+			} else {
+				hue = 4.0f + greenc - redc;
+			}
+			hue = hue / 6.0f;
+			if (hue < 0) hue = hue + 1.0f;
+		}
+		fv[offset] = hue;
+		fv[offset + 1] = saturation;
+		fv[offset + 2] = ((float) cmax) / 255.0f;
+	}
+
 	private double[] getPatchFeatures(int... xy) {
 		//Preconditions.checkArgument(xy.length == 2, "This is not an xy pair.");
 		int x = xy[0];
@@ -908,94 +1221,57 @@ public class MLPaintPanel extends JComponent
 		).toArray();
 	}
 
-	private double[] extraLayersVector(int... xy) {
-		//Preconditions.checkArgument(xy.length == 2, "This is not an xy pair.");
-		int x = xy[0];
-		int y = xy[1];
-		int sizeExtraLayers = extraLayers.size();
-		double[] rr = new double[sizeExtraLayers];
-		int i = 0;
-		for (BufferedImage bi : extraLayers.values()) {
-			WritableRaster wr = bi.getRaster();
-			try {
-				rr[i] = wr.getSample(x, y, 0);
-			} catch (IndexOutOfBoundsException e) {
-				rr[i] = 0.0;
-			}
-			i++;
-		}
-		return rr;
-	}
-
 	void initDijkstra() {
 		long t = System.currentTimeMillis();
-		// set all of doubles[width][height] to ZERO. Should be done beforehand with the initializeFreshPaint.
-		setDistancesZero(distances);
-		t = reportTime(t, "Set Dijkstra distances matrix to 0, width x height, %,d x %,d",
-				distances.length, distances[0].length);
-		// initialize empty listQueues for fuelCost MyPoints
-		listQueues = new ArrayList<PriorityQueue<MyPoint>>();
-		PriorityQueue<MyPoint> queue = new PriorityQueue<>(1000);// lowest totalCost first
+		// set all distances to ZERO:  a new generation, whatever the size
+		distances.clear();
+		t = reportTime(t, "Cleared Dijkstra distances, width x height, %,d x %,d, %,d bytes of tiles",
+				distances.width, distances.height, distances.allocatedBytes());
+		// initialize an empty frontier of pixels by cost, and its history
+		Preconditions.checkState((long) width * height <= Integer.MAX_VALUE, "Too many pixels to index: %s x %s", width, height);
+		frontier = bucketQueue ? new BucketQueue(BUCKET_WIDTH, BUCKET_RANGE, 1000) : new FloatIndexHeap(1000);
+		history = new SettledHistory(width, 1000);
+		refinedLevel = -1;
+		regionLevel = -1;
+		suggestionStep = stepForView();
+		int step = suggestionStep;
+		growth = parallelEngine
+				? new ParallelGrowth(width, height, step, frontier, history, distances, (x, y) -> getCellEdgeDistance(x, y, step))
+				: new SequentialGrowth(width, height, step, frontier, history, distances, (x, y) -> getCellEdgeDistance(x, y, step));
 		// Add seedPoints to the queue and thence to distances  MAYDO: More than one
-		for (MyPoint item: getDijkstraSeedPoints()) {
-			queue.add(item);
-			fillDistancesBiggerXY(item.fuelCost, item.x, item.y, c.dijkstraStep);
+		for (int[] xy : getDijkstraSeedPoints()) {
+			if (distances.get(xy[0], xy[1]) != 0) continue;// another seed in the same grid step
+			growth.seed(xy[0], xy[1], SEED_COST);
 		}
-		listQueues.add(queue);
-		t = reportTime(t, "Initialized the queue.");
+		history.endLevel(frontier.isEmpty() ? Float.POSITIVE_INFINITY : frontier.peekCost());
+		t = reportTime(t, "Initialized the queue, on a grid step of %d.", suggestionStep);
 
-		if (queue.size() == 0) {
+		if (frontier.size() == 0) {
 			//initializeFreshPaint(); This was getting rid of all-negative labeling if I start that way.
 			return;
 		}
 
 		double repsIncrementAbs = (double) (freshPaintNumPositives / (double) INTERIOR_STEPS);
-		int repsIncrement = (int) (repsIncrementAbs / (c.dijkstraStep*c.dijkstraStep) );
+		int repsIncrement = (int) (repsIncrementAbs / (suggestionStep*suggestionStep) );
 		t = reportTime(t, "");
 		for (int i = 0; i < INTERIOR_STEPS; i++) {
 			growDijkstra(repsIncrement);
 		}
 		for (int i = INTERIOR_STEPS; i<queueBoundsIdx; i++) {
-			repsIncrement = c.getRepsIncrement(freshPaintNumPositives,queueBoundsIdx, INTERIOR_STEPS);
+			repsIncrement = c.getRepsIncrement(freshPaintNumPositives,queueBoundsIdx, INTERIOR_STEPS, suggestionStep);
 			growDijkstra(repsIncrement);
 		}
 		t = reportTime(t, "Initialized Dijkstra with 20 growDijkstras.");
 	}
 
 	/* Given existence of distances only up till this point,
-	 * and then taking the final queue in the listQueues,
-	 * add to listQueues a new queue enclosing int reps more area.
+	 * and then taking the frontier as the last level left it,
+	 * settle int reps more pixels and record the new level in history.
 	 */
 	private void growDijkstra(int reps) {
-		//https://math.mit.edu/~rothvoss/18.304.3PM/Presentations/1-Melissa.pdf
 		long t = System.currentTimeMillis();
-		PriorityQueue<MyPoint> prevQueue = listQueues.get(listQueues.size()-1);
-		PriorityQueue<MyPoint> queue = new PriorityQueue<MyPoint>(prevQueue);
-		for (int i=0; i < reps; i++) {
-			// Repeat until stopping condition... for now, 2x positive training examples//MAYDO: Find shoulders in the advance
-			//		choicePoint = least getTotalDistance in queue, & delete
-			MyPoint choicePoint = queue.poll(); //Maydo: bugsafe this
-			if (choicePoint.fuelCost == Double.POSITIVE_INFINITY) {
-				break;
-			}
-			int[][] adjFour = {		{choicePoint.x,choicePoint.y+c.dijkstraStep}, //Maydo: 8-connectivity w/*sqrt2 penalty on diagonals
-									{choicePoint.x,choicePoint.y-c.dijkstraStep},
-									{choicePoint.x+c.dijkstraStep,choicePoint.y},
-									{choicePoint.x-c.dijkstraStep,choicePoint.y}};
-			//		for (x,y) in [(x+1,y), (x-1,y), (x,y+1), (x,y-1)]:
-			for (int[] pair : adjFour) {
-				int xmine = pair[0];
-				int ymine = pair[1];
-				if (isXYOutsideImage(xmine, ymine)) continue; //	if isOutsideImage: continue
-				if (distances[xmine][ymine] == 0) { //Maydo: consider safer way to tell it's new
-					double proposedCost = getEdgeDistance(xmine, ymine) + (double) distances[choicePoint.x][choicePoint.y];
-					MyPoint queuePoint = new MyPoint(proposedCost,xmine, ymine);
-					queue.add(queuePoint);
-					fillDistancesBiggerXY(proposedCost, queuePoint.x, queuePoint.y, c.dijkstraStep);
-				}
-			}
-		}
-		listQueues.add(queue);
+		growth.grow(reps);
+		history.endLevel(frontier.isEmpty() ? Float.POSITIVE_INFINITY : frontier.peekCost());
 		t = reportTime(t, "Grow Dijkstra by one step.");
 	}
 
@@ -1007,27 +1283,6 @@ public class MLPaintPanel extends JComponent
 		return failure;
 	}
 
-	/** Fill in a _x_ patch in the distances array with a cost. Ensure not too big.
-	 * I assume that x,y is within the bounds. */
-	private void fillDistancesBiggerXY(double proposedCost, int x, int y, int dijkstraStep) {
-		int greaterx = Math.min(x + dijkstraStep, width);
-		int greatery = Math.min(y + dijkstraStep, height);
-		for (int i=x; i < greaterx; i++) {
-			for (int j=y; j < greatery; j++) {
-				distances[i][j] = (float) proposedCost;
-				//TODO: This currently allows for (dijkstraGridLength -1) pixels of encroachment on previous labels.
-				// also on no_data
-			}
-		}
-	}
-
-	private void setDistancesZero(float[][] x) {
-		for (float[] row: x) {
-			Arrays.fill(row, (float) 0.0);
-		}
-		return;
-	}
-
 	//This is not needed
 	/** initialize Dijkstra distance grid
 	private void initDistances(PriorityQueue<MyPoint> queue) {
@@ -1044,6 +1299,35 @@ public class MLPaintPanel extends JComponent
 		}
 	}*/
 
+	/** Whether the size x size cell at (x,y) may be labeled:  none of its pixels NO_DATA, labeled while noRelabel,
+	 * or avoid-painted.  All are checked, as a coarse cell may cover a thin labeled strip its corner misses.
+	 * Row by row into a per-thread scratch row, so the relaxation loops allocate nothing. */
+	private boolean isCellOpen(int x, int y, int size) {
+		int w = Math.min(size, width - x), h = Math.min(size, height - y);
+		int[] row = cellScratch.get();
+		if (row.length < w) {
+			row = new int[w];
+			cellScratch.set(row);
+		}
+		WritableRaster labels0 = labels.getRaster(), fresh = freshPaint.getRaster();
+		for (int j = 0; j < h; j++) {
+			labels0.getSamples(x, y + j, w, 1, 0, row);
+			for (int i = 0; i < w; i++) {
+				if (row[i] == NO_DATA || noRelabel && row[i] != UNLABELED) return false;
+			}
+			fresh.getSamples(x, y + j, w, 1, 0, row);
+			for (int i = 0; i < w; i++) {
+				if (row[i] == FRESH_NEG) return false;
+			}
+		}
+		return true;
+	}
+
+	/** The cost of stepping into the size x size cell at (x,y):  infinite unless isCellOpen, else getEdgeDistance at (x,y). */
+	private double getCellEdgeDistance(int x, int y, int size) {
+		return size > 1 && !isCellOpen(x, y, size) ? Double.POSITIVE_INFINITY : getEdgeDistance(x, y);
+	}
+
 	/* This function gets the cost of traversing a single pixel——the classifier score modified by labels.
 	*   	Warning: The cost could be infinite. */
 	private double getEdgeDistance(int x, int y){
@@ -1077,20 +1361,18 @@ public class MLPaintPanel extends JComponent
 		return out;
 	}
 
-	/** Return a bunch of seed MyPoints with close to zero initialization distance
+	/** Return a bunch of seed [x,y] points, to start at SEED_COST
 	 * 	Maydo: Do not allow a suggestion outside of view
 	 */
-	private List<MyPoint> getDijkstraSeedPoints() {
+	private List<int[]> getDijkstraSeedPoints() {
 		System.out.printf("Possible seedPoints for Dijkstra is length %,d. /n",dijkstraPossibleSeeds.size());
 
-		List<MyPoint> rr = new ArrayList<MyPoint>();
+		List<int[]> rr = new ArrayList<int[]>();
 		WritableRaster labels0 = labels.getRaster();
 		WritableRaster fp = freshPaint.getRaster();
 		for (Point2D p2 : dijkstraPossibleSeeds) {
 			int x = (int) p2.getX();
 			int y = (int) p2.getY();
-			x -= x%c.dijkstraStep;
-			y -= y%c.dijkstraStep;
 			if (isXYOutsideImage(x, y)) continue;
 			int labelSample = labels0.getSample(x, y, 0);
 			if (noRelabel == true && labelSample != UNLABELED) continue;
@@ -1099,16 +1381,20 @@ public class MLPaintPanel extends JComponent
 			System.out.println("That was a seed sample label.");
 			if (fp.getSample(x,y,0) != FRESH_POS) continue;
 
-			rr.add(new MyPoint(1.0, x,y));
+			rr.add(new int[] {x - x % suggestionStep, y - y % suggestionStep});// snapped to the grid, once painted
 		}
 		return rr;
 	}
 
 	/**Return the probability of a negative value, so positive is low. */
 	private double getClassifierProbNeg(int x, int y, SoftClassifier<double[]> classifier) {
-		double[] fv = getFeatureVector(x, y);
-		double score0 = getClassifierProbNeg(fv, classifier);
-		return score0;
+		double[][] fvOutputs = featureScratch.get();
+		if (fvOutputs[0].length != NUM_COLOR_FEATURES + extraLayers.size()) {
+			fvOutputs[0] = new double[NUM_COLOR_FEATURES + extraLayers.size()];
+		}
+		fillFeatureVector(x, y, fvOutputs[0]);
+		classifier.predict(fvOutputs[0], fvOutputs[1]);
+		return fvOutputs[1][0];// probability in [0,1] of class 0, negative
 	}
 
 	private double getClassifierProbNeg(double[] fv, SoftClassifier<double[]> classifier) {
@@ -1133,14 +1419,13 @@ public class MLPaintPanel extends JComponent
 		Preconditions.checkNotNull(classifier, "Must put positive paint down first");
 		BufferedImage out = classifierOutput;
 		if (out == null ) {
-			out = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);// grayscale from 0.0 to 1.0 (aka 255)
+			out = newGrayImage(width, height);// grayscale from 0.0 to 1.0 (aka 255)
 		}
-		WritableRaster raster = out.getRaster();
+		DataBuffer gray = out.getRaster().getDataBuffer();// heap or mapped, either way indexed y * width + x
 		IntStream.range(0, width).parallel().forEach(x -> {// run in parallle for speed
 			for (int y = 0; y < height; y++) {
 				double score0 = getClassifierProbNeg(x,y, classifier);
-				int index = (int) (255 * score0);
-				raster.setSample(x, y, 0, index);
+				gray.setElem(y * width + x, (int) (255 * score0));
 			}
 		});
 		//reportTime(t,"Computed classifier on whole image.");
@@ -1149,28 +1434,29 @@ public class MLPaintPanel extends JComponent
 
 	public void growSuggestion() {
 		System.out.println("Grow suggestion was called.\n");
-		if (queueBoundsIdx < 0) return;
+		if (queueBoundsIdx < 0 || preview != null) return;
 		queueBoundsIdx += 1;
-		Preconditions.checkArgument(!(listQueues.size() < queueBoundsIdx), "You will need select-paint, not avoid-paint alone.");
-		if (listQueues.size() == queueBoundsIdx) {
+		Preconditions.checkArgument(!(history.levels() < queueBoundsIdx), "You will need select-paint, not avoid-paint alone.");
+		if (history.levels() == queueBoundsIdx) {
 			System.out.printf("Here is our spare classifier: %s",spareClassifier);
 			if (spareClassifier != null) {
 				classifier = spareClassifier;
 				System.out.println("We replaced the classifier with the spare classifier.");
 				spareClassifier = null;
-				runBackground(() -> spareClassifierForGrowth( listQueues.get(listQueues.size()-1) ) );
+				int level = history.levels() - 1;
+				runBackground(() -> spareClassifierForGrowth(level));
 				if (showClassifierC){
 					classifierOutput = runClassifier();
 				}
 			}
-			int repsIncrement = c.getRepsIncrement(freshPaintNumPositives,queueBoundsIdx, INTERIOR_STEPS);
+			int repsIncrement = c.getRepsIncrement(freshPaintNumPositives,queueBoundsIdx, INTERIOR_STEPS, suggestionStep);
 			growDijkstra(repsIncrement);
 		}
 		repaint();
 	}
 
 	public void shrinkSuggestion() {
-		if (queueBoundsIdx <= 0) return;
+		if (queueBoundsIdx <= 0 || preview != null) return;
 		queueBoundsIdx -= 1;
 		repaint();
 	}
@@ -1180,66 +1466,215 @@ public class MLPaintPanel extends JComponent
 		safeToSave = false;
 		long t = System.currentTimeMillis();
 		System.out.println("writeSuggestionToLabels called \n");
-		if (listQueues == null || distances == null || labels == null || queueBoundsIdx < 0) {
+		if (history == null || distances == null || labels == null || queueBoundsIdx < 0 || preview != null) {
 			return;
 		}
-		copyToUndoLabels(labels);
-		double thresholdDistance = getThresholdDistance();
+		copyOnWriteLabels();
+		float thresholdDistance = (float) getThresholdDistance();
 		int[] bounds = getCurrentQueueBounds(); //xmin, ymin, xmax, ymax
 		WritableRaster labels0 = labels.getRaster();
+		boolean refine = suggestionStep > c.dijkstraStep;
+		markRegion(queueBoundsIdx);
+		if (refine) {
+			refineBoundary(queueBoundsIdx);
+		}
 
 		WritableRaster displayRast = visLabels.getRaster();
+		WritableRaster fresh = freshPaint.getRaster();
 		for (int x=bounds[0]; x<bounds[2]; x++){
 			for (int y=bounds[1]; y<bounds[3]; y++){
-				float distance = distances[x][y];
-				if (distance < thresholdDistance && distance > 0) {
+				// a grid step is more than a pixel:  never let it spill onto what isCellOpen protects
+				int code = labels0.getSample(x, y, 0);
+				if (code == NO_DATA || noRelabel && code != UNLABELED || fresh.getSample(x, y, 0) == FRESH_NEG) {
+					continue;
+				}
+				boolean inside = refine ? isSuggested(x, y, thresholdDistance) : region.get(x, y) != 0;
+				if (inside) {
 					labels0.setSample( x, y, 0, labelIndex);
 					visLabelPointPosNegData( displayRast, x, y, labelIndex);
 				}
 			}
 		}
+		labelsEdited(LabelJournal.SUGGESTION, labelIndex,
+				Collections.singletonList(new Rectangle(bounds[0], bounds[1], bounds[2] - bounds[0], bounds[3] - bounds[1])));
 		isPaintPreDelete = true; //initializeFreshPaint();
 		repaint();
-		t = reportTime(t, "We wrote the suggestion to labels via distances[][] < threshold & >0.");
+		t = reportTime(t, "We wrote the suggestion to labels from the cells settled, refined cost < threshold in the band.");
+	}
+
+	/** the suggestion grid step for the current zoom:  about SUGGESTION_SCREEN_STEP screen pixels, c.dijkstraStep times
+	 * a power of 2, so zoomed out a suggestion covers the screen in few steps, and zoomed in it's c.dijkstraStep. */
+	private int stepForView() {
+		double scale = Math.sqrt(Math.abs(view.getDeterminant()));// screen pixels per working pixel
+		int multiple = (int) (SUGGESTION_SCREEN_STEP / (scale * c.dijkstraStep));
+		return c.dijkstraStep * Integer.highestOneBit(Math.max(1, multiple));
+	}
+
+	/** the suggestion at (x,y) as refined so far:  its refined cost in the bands refined, else its coarse cost */
+	private float suggestedCost(int x, int y) {
+		float r = refined.get(x, y);
+		return r != 0 ? r : distances.get(x, y);
+	}
+
+	/** whether (x,y) is in the suggestion as refined so far:  its exact refined cost under the threshold in the bands
+	 * refined, else whether its coarse cell settled.  After markRegion. */
+	private boolean isSuggested(int x, int y, float threshold) {
+		float r = refined.get(x, y);
+		return r != 0 ? r < threshold : region.get(x, y) != 0;
+	}
+
+	/** Mark the cells settled by level into region, unless already. */
+	private void markRegion(int level) {
+		if (regionLevel == level) return;
+		if (region == null || region.width != width || region.height != height) {
+			region = new DistanceField(width, height, true);// 1 is exact in 16 bits
+		}
+		region.clear();
+		history.forEachSettled(level, p -> region.fill(p % width, p / width, suggestionStep, suggestionStep, 1f));
+		regionLevel = level;
+	}
+
+	/** Redo the boundary of a coarse suggestion level at finer steps, halving down to c.dijkstraStep, into refined.
+	 * Each stage takes the band of the last stage's frontier cells and the settled cells beside them, and runs
+	 * Dijkstra across it at half the step, from the settled cells around it, or the seeds, with step costs scaled
+	 * by step / suggestionStep to match the threshold.  Cells then cost less than the threshold or are out, and
+	 * those out beside ones in are the next stage's frontier.  So only a thin band is ever classified at the fine step.
+	 * The classifier runs once per cell of a band, in parallel, before the sequential Dijkstra.
+	 */
+	private void refineBoundary(int level) {
+		if (refinedLevel == level) return;
+		long t = System.currentTimeMillis();
+		float threshold = history.threshold(level);
+		markRegion(level);
+		if (refined == null || refined.width != width || refined.height != height) {
+			refined = new DistanceField(width, height, false);// exact, as it's compared with the threshold
+			bandCosts = new DistanceField(width, height, false);
+		}
+		refined.clear();
+		int[] edge = history.frontier(level);
+		int classified = 0;
+		for (int coarse = suggestionStep; coarse > c.dijkstraStep && edge.length > 0; coarse /= 2) {
+			int fine = Math.max(c.dijkstraStep, coarse / 2);
+			float ratio = (float) fine / suggestionStep;
+			bandCosts.clear();
+			// the band, each cell once
+			List<int[]> band = Lists.newArrayList();
+			for (int p : edge) {
+				int x = p % width, y = p / width;
+				for (int k = -1; k < NEIGHBOUR_DX.length; k++) {// the frontier cell itself, then its neighbours
+					int xn = x + (k < 0 ? 0 : NEIGHBOUR_DX[k] * coarse), yn = y + (k < 0 ? 0 : NEIGHBOUR_DY[k] * coarse);
+					if (isXYOutsideImage(xn, yn) || bandCosts.get(xn, yn) != 0) continue;
+					if (k < 0 || isSuggested(xn, yn, threshold)) {
+						bandCosts.fill(xn, yn, coarse, coarse, Float.POSITIVE_INFINITY);
+						band.add(new int[]{xn, yn});
+					}
+				}
+			}
+			// each fine cell's step cost, never 0 so as to stay in the band; then all the band unreached
+			int across = (coarse + fine - 1) / fine;
+			float[][] costs = new float[band.size()][across * across];
+			IntStream.range(0, band.size()).parallel().forEach(i -> {
+				int[] xy = band.get(i);
+				for (int j = 0; j < across; j++) {
+					for (int k = 0; k < across; k++) {
+						int x = xy[0] + k * fine, y = xy[1] + j * fine;
+						costs[i][j * across + k] = isXYOutsideImage(x, y) ? Float.POSITIVE_INFINITY
+								: Math.max(Float.MIN_VALUE, ratio * (float) getCellEdgeDistance(x, y, fine));
+					}
+				}
+			});
+			classified += band.size() * across * across;
+			for (int i = 0; i < band.size(); i++) {
+				int[] xy = band.get(i);
+				for (int j = 0; j < across; j++) {
+					for (int k = 0; k < across; k++) {
+						bandCosts.fill(xy[0] + k * fine, xy[1] + j * fine, fine, fine, costs[i][j * across + k]);
+					}
+				}
+			}
+			// seed the band's fine cells beside settled cells around it, and the band's seeds
+			FrontierQueue queue = new FloatIndexHeap(band.size() * across);
+			for (int[] xy : band) {
+				boolean seed = distances.get(xy[0], xy[1]) == SEED_COST;
+				for (int x = xy[0]; x < Math.min(xy[0] + coarse, width); x += fine) {
+					for (int y = xy[1]; y < Math.min(xy[1] + coarse, height); y += fine) {
+						float least = seed ? SEED_COST : Float.POSITIVE_INFINITY;
+						for (int k = 0; k < NEIGHBOUR_DX.length; k++) {
+							int xn = x + NEIGHBOUR_DX[k] * fine, yn = y + NEIGHBOUR_DY[k] * fine;
+							if (isXYOutsideImage(xn, yn) || bandCosts.get(xn, yn) != 0) continue;
+							if (isSuggested(xn, yn, threshold)) {
+								least = Math.min(least, suggestedCost(xn, yn) + bandCosts.get(x, y));
+							}
+						}
+						if (least < threshold) {
+							queue.offer(y * width + x, least);
+						}
+					}
+				}
+			}
+			for (int[] xy : band) {
+				refined.fill(xy[0], xy[1], coarse, coarse, Float.POSITIVE_INFINITY);
+			}
+			// fine Dijkstra within the band, as far as the threshold
+			while (!queue.isEmpty() && queue.peekCost() < threshold) {
+				float cost = queue.peekCost();
+				int p = queue.poll();
+				int x = p % width, y = p / width;
+				refined.fill(x, y, fine, fine, cost);
+				for (int k = 0; k < NEIGHBOUR_DX.length; k++) {
+					int xn = x + NEIGHBOUR_DX[k] * fine, yn = y + NEIGHBOUR_DY[k] * fine;
+					if (isXYOutsideImage(xn, yn) || bandCosts.get(xn, yn) == 0
+							|| refined.get(xn, yn) != Float.POSITIVE_INFINITY) continue;
+					queue.offer(yn * width + xn, cost + bandCosts.get(xn, yn));
+				}
+			}
+			// the next frontier:  band cells left out, beside cells in
+			List<Integer> next = Lists.newArrayList();
+			for (int[] xy : band) {
+				for (int x = xy[0]; x < Math.min(xy[0] + coarse, width); x += fine) {
+					for (int y = xy[1]; y < Math.min(xy[1] + coarse, height); y += fine) {
+						if (refined.get(x, y) < threshold) continue;
+						for (int k = 0; k < NEIGHBOUR_DX.length; k++) {
+							int xn = x + NEIGHBOUR_DX[k] * fine, yn = y + NEIGHBOUR_DY[k] * fine;
+							if (isXYOutsideImage(xn, yn)) continue;
+							if (isSuggested(xn, yn, threshold)) {
+								next.add(y * width + x);
+								break;
+							}
+						}
+					}
+				}
+			}
+			edge = Ints.toArray(next);
+		}
+		refinedLevel = level;
+		reportTime(t, "Refined the suggestion's boundary from a step of %d to %d, classifying %,d cells.",
+				suggestionStep, c.dijkstraStep, classified);
 	}
 
 	private double getThresholdDistance() {
 		return getThresholdDistance(queueBoundsIdx);
 	}
 
+	/** the least cost on the level's frontier; infinite if it was empty, as all that can be reached was */
 	private double getThresholdDistance(int queueIndex) {
-		PriorityQueue<MyPoint> thisQueue = listQueues.get(queueIndex);
-		MyPoint lowestPoint = thisQueue.peek();
-		return lowestPoint.fuelCost;
-	}
-
-	private double getThresholdDistance(PriorityQueue<MyPoint> thisQueue) {
-		return thisQueue.peek().fuelCost;
+		return history.threshold(queueIndex);
 	}
 
 	private int[] getCurrentQueueBounds() {
 		return getQueueBounds(queueBoundsIdx);
 	}
+	/** what the level discovered, give or take a step */
 	private int[] getQueueBounds(int queueIndex) {
-		PriorityQueue<MyPoint> thisQueue = listQueues.get(queueIndex);
-		return getQueueBounds(thisQueue);
-	}
-	private int[] getQueueBounds(PriorityQueue<MyPoint> thisQueue) {
-		int xmin = width-1;
-		int ymin = height-1;
-		int xmax = 0;
-		int ymax = 0;
-		for (Iterator<MyPoint> it = thisQueue.iterator(); it.hasNext(); ) {
-			MyPoint xy = it.next();
-			if (xy.x < xmin) xmin = xy.x;
-			if (xy.y < ymin) ymin = xy.y;
-			if (xy.x > xmax) xmax = xy.x;
-			if (xy.y > ymax) ymax = xy.y;
-		}
-		xmin -= c.dijkstraStep; //Why not? A bit of leeway for +/- errors is hard to hurt.
-		ymin -= c.dijkstraStep;
-		xmax += c.dijkstraStep;
-		ymax += c.dijkstraStep;
+		int[] found = history.bounds(queueIndex);
+		int xmin = found[0], ymin = found[1], xmax = found[2], ymax = found[3];
+		if (xmax < xmin) {// nothing discovered
+			return new int[]{0, 0, 0, 0};
+		}
+		xmin -= suggestionStep; //Why not? A bit of leeway for +/- errors is hard to hurt.
+		ymin -= suggestionStep;
+		xmax += suggestionStep;
+		ymax += suggestionStep;
 		xmin = Math.max(0, xmin);
 		ymin = Math.max(0, ymin);
 		xmax = Math.min(width-1, xmax);
@@ -1250,21 +1685,22 @@ public class MLPaintPanel extends JComponent
 
 	/** Fill in swaths of the image with NO_DATA */
 	public void getNoData() {
+		if (preview != null) return;
 		WritableRaster rawdata = freshPaint.getRaster();
 		Rectangle f = freshPaintArea.getBounds();
 		List<int[]> selected = sampleFreshPosNeg(rawdata, f, FRESH_POS, 50);
 		if (selected.size() == 0 ) return;
 
-		WritableRaster imageRaster = image.getRaster();
-		int code = imageRaster.getSample(selected.get(0)[0], selected.get(0)[1], 0);
+		int code = pixels.red(selected.get(0)[0], selected.get(0)[1]);
 
 		for (int i = 0; i < selected.size(); i++) {
-			if (imageRaster.getSample(selected.get(i)[0], selected.get(i)[1], 0) != code) {
+			if (pixels.red(selected.get(i)[0], selected.get(i)[1]) != code) {
 				return;
 			}
 		}
-		copyToUndoLabels(labels);
+		copyOnWriteLabels();
 		SwingUtil.connCompFillLabelCodeByImgCode(image, code, labels, NO_DATA, 3);
+		labelsEdited(LabelJournal.NO_DATA, NO_DATA, changedRegions(undoLabels.get(undoLabels.size() - 1), labels));
 //		SwingUtil.fillCodeByCornerColor(image, labels, NO_DATA);
 		repaint();
 	}
@@ -1275,7 +1711,7 @@ public class MLPaintPanel extends JComponent
 
 		WritableRaster l = myLabels.getRaster();
 
-		BufferedImage displayLabels = SwingUtil.newBinaryImage(width, height, LABEL_ETCH_COLORS);
+		BufferedImage displayLabels = newBinaryImage(width, height, LABEL_ETCH_COLORS);
 		WritableRaster displayRast = displayLabels.getRaster();
 
 		//Fill it all as unlabeled, unnecessary since zero initialized
@@ -1361,15 +1797,203 @@ public class MLPaintPanel extends JComponent
 		}
 	}
 
-	private void copyToUndoLabels(BufferedImage in) {
+	/** Copy-on-write:  push the current labels onto the undo memory, and carry on with a copy of them.
+	 * So a labels image is never modified once it's been replaced, and a save can hold on to one as a snapshot.
+	 */
+	private void copyOnWriteLabels() {
 		if (undoLabels.size() > UNDO_MEM) {
 			undoLabels.remove(0);
 		}
 		System.out.println("We are adding to undo memory.");
-		undoLabels.add(SwingUtil.deepCopy(in));
+		undoLabels.add(labels);
+		labels = offHeapDir == null ? SwingUtil.deepCopy(labels) : MappedDataBuffer.copyOf(offHeapDir, labels);
+	}
+
+	/** The labels as they are now, never to be modified:  see copyOnWriteLabels.  Call on the Swing thread. */
+	public BufferedImage snapshotLabels() {
+		return labels;
+	}
+
+	/** where two versions of the labels differ, in DIRTY_CELL cells */
+	private List<Rectangle> changedRegions(BufferedImage before, BufferedImage after) {
+		DirtyTiles changed = new DirtyTiles(width, height, DIRTY_CELL);
+		changed.markChanged(before.getRaster(), after.getRaster());
+		return changed.take();
+	}
+
+	/** Note the regions of labels an edit changed, for the next save and in the journal. */
+	private void labelsEdited(byte type, int labelIndex, List<Rectangle> regions) {
+		for (Rectangle r : regions) {
+			dirtyLabels.mark(r);
+		}
+		if (journal != null) {
+			try {
+				journal.append(type, labelIndex, regions, labels.getRaster());
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				System.out.println("Label journal failed; edits are no longer journaled until the next save.");
+				journal = null;
+			}
+		}
+	}
+
+	/** Journal each label edit to this, or not if null. */
+	public void setJournal(LabelJournal journal) {
+		this.journal = journal;
+	}
+
+	/** Redo the edits of a journal left by a session that didn't save them. */
+	public void replayJournal(List<LabelJournal.Record> records) {
+		copyOnWriteLabels();
+		for (LabelJournal.Record record : records) {
+			record.apply(labels.getRaster());
+			for (Rectangle r : record.regions) {
+				dirtyLabels.mark(r);
+			}
+		}
+		undoLabels.clear();
+		visLabels = getDisplayLabels(labels);
+		safeToSave = records.isEmpty();
+		repaint();
+	}
+
+	/** The working state but the labels, as SessionBundle sections:  fresh paint, its areas & seeds, the classifiers,
+	 * the view and suggestion settings.  Leaves out the paint & classifiers if unchanged since the last call, unless all.
+	 * Call on the Swing thread.
+	 */
+	public Map<String, byte[]> sessionSections(boolean all) throws IOException {
+		Map<String, byte[]> rr = new LinkedHashMap<>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeDouble(scorePower);
+		out.writeInt(queueBoundsIdx);
+		out.writeInt(freshPaintNumPositives == null ? -1 : freshPaintNumPositives);
+		out.writeBoolean(isPaintPreDelete);
+		double[] matrix = new double[6];
+		view.getMatrix(matrix);
+		for (double m : matrix) out.writeDouble(m);
+		List<String> layout = featureLayout();// what the classifiers were trained on
+		out.writeInt(layout.size());
+		for (String feature : layout) out.writeUTF(feature);
+		rr.put("state", bytes.toByteArray());
+		if (all || paintVersion != bundledPaintVersion) {
+			bytes.reset();
+			SessionBundle.writeArea(out, freshPaintArea);
+			SessionBundle.writeArea(out, antiPaintArea);
+			out.writeInt(dijkstraPossibleSeeds.size());
+			for (Point2D p : dijkstraPossibleSeeds) {
+				out.writeDouble(p.getX());
+				out.writeDouble(p.getY());
+			}
+			rr.put("paint", bytes.toByteArray());
+			rr.putAll(SessionBundle.rasterSections("freshPaint", freshPaint.getRaster(), null));
+			bundledPaintVersion = paintVersion;
+		}
+		SoftClassifier<double[]> spare = spareClassifier;// trained in the background
+		if (all || classifier != bundledClassifier || spare != bundledSpareClassifier) {
+			bytes.reset();
+			try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+				objects.writeObject(classifier);
+				objects.writeObject(spare);
+			}
+			rr.put("classifiers", bytes.toByteArray());
+			bundledClassifier = classifier;
+			bundledSpareClassifier = spare;
+		}
+		return rr;
+	}
+
+	/** what each feature vector holds, in order:  the color features, then the extra layers by name */
+	private List<String> featureLayout() {
+		List<String> rr = Lists.newArrayList(NUM_COLOR_FEATURES + " color features");
+		for (int k = 0; k < extraLayers.size(); k++) {
+			rr.add(extraLayers.getName(k));
+		}
+		return rr;
+	}
+
+	/** Classifiers deserialize only from these, as a .session file may come from a shared data directory. */
+	private static final ObjectInputFilter CLASSIFIER_FILTER = ObjectInputFilter.Config.createFilter(
+			"maxdepth=64;maxrefs=10000000;maxarray=100000000;smile.**;java.lang.*;java.util.*;!*");
+
+	/** e.g. when a session save failed, so the next one writes everything */
+	public void markSessionDirty() {
+		bundledPaintVersion = -1;
+		bundledClassifier = bundledSpareClassifier = null;
+	}
+
+	/** After resetData, take up the fresh paint, classifiers & view saved in a session bundle,
+	 * and make the suggestions again, without retraining.  Classifiers trained on other layers than these are
+	 * dropped, to retrain from the paint.
+	 */
+	@SuppressWarnings("unchecked")
+	public void restoreSession(SessionBundle.Contents bundle) throws IOException {
+		long t = System.currentTimeMillis();
+		if (bundle.has("paint")) {
+			DataInputStream in = bundle.input("paint");
+			freshPaintArea = SessionBundle.readArea(in);
+			antiPaintArea = SessionBundle.readArea(in);
+			dijkstraPossibleSeeds = Lists.newArrayListWithCapacity(1000);
+			for (int n = in.readInt(); n > 0; n--) {
+				dijkstraPossibleSeeds.add(new Point2D.Double(in.readDouble(), in.readDouble()));
+			}
+			bundle.readRaster("freshPaint", freshPaint.getRaster());
+			paintVersion++;
+		}
+		List<String> layout = null;
+		if (bundle.has("state")) {
+			DataInputStream in = bundle.input("state");
+			scorePower = in.readDouble();
+			queueBoundsIdx = in.readInt();
+			int positives = in.readInt();
+			freshPaintNumPositives = positives < 0 ? null : positives;
+			isPaintPreDelete = in.readBoolean();
+			double[] matrix = new double[6];
+			for (int i = 0; i < matrix.length; i++) matrix[i] = in.readDouble();
+			view = new AffineTransform(matrix);
+			if (in.available() > 0) {// none from a bundle that predates it
+				layout = Lists.newArrayList();
+				for (int n = in.readInt(); n > 0; n--) {
+					layout.add(in.readUTF());
+				}
+			}
+		}
+		if (bundle.has("classifiers") && !featureLayout().equals(layout)) {
+			System.out.printf("Dropping the session's classifiers, trained on %s, not %s.\n", layout, featureLayout());
+			if (freshPaintNumPositives != null) {
+				trainClassifier();
+			}
+		} else if (bundle.has("classifiers")) {
+			try (ObjectInputStream objects = new ObjectInputStream(bundle.input("classifiers"))) {
+				objects.setObjectInputFilter(CLASSIFIER_FILTER);
+				classifier = (SoftClassifier<double[]>) objects.readObject();
+				spareClassifier = (SoftClassifier<double[]>) objects.readObject();
+			} catch (ClassNotFoundException ex) {
+				throw new IOException("Can't read the classifiers: " + ex.getMessage(), ex);
+			}
+		}
+		if (classifier != null && freshPaintNumPositives != null) {
+			initDijkstra();
+		}
+		reportTime(t, "Restored the session:  %s classifier, %,d seeds.", classifier == null ? "no" : "a",
+				dijkstraPossibleSeeds.size());
+		repaint();
+	}
+
+	/** Working-resolution regions of labels changed since the last call, now considered clean. */
+	public List<Rectangle> takeDirtyLabels() {
+		return dirtyLabels == null ? Collections.emptyList() : dirtyLabels.take();
+	}
+
+	/** e.g. when a save failed, so the next one rewrites everything */
+	public void markAllLabelsDirty() {
+		if (dirtyLabels != null) {
+			dirtyLabels.markAll();
+		}
 	}
 
 	public void undo() {
+		if (preview != null) return;
 		if (undoLabels.size() < 1 ) {
 			System.out.println("There is not more history saved to undo.");
 			return;
@@ -1377,7 +2001,10 @@ public class MLPaintPanel extends JComponent
 			return;
 		}
 		undoInProgress = true;
-		labels = undoLabels.get(undoLabels.size() -1);
+		BufferedImage restored = undoLabels.get(undoLabels.size() -1);
+		List<Rectangle> changed = changedRegions(labels, restored);
+		labels = restored;
+		labelsEdited(LabelJournal.UNDO, UNLABELED, changed);
 		undoLabels.remove(undoLabels.size()-1);
 		isPaintPreDelete = false;
 		visLabels = getDisplayLabels(labels);
@@ -34,7 +34,7 @@ public class MLPaintPixelConstants {
 	public int bRad;
 	public int bRadPlus;
 
-	public int dijkstraStep; // 3 for squares of 9 //This could be optimized so that if we zoom in   SIZE
+	public int dijkstraStep; // 3 for squares of 9:  the finest suggestion grid; zoomed out, MLPaintPanel uses a multiple
 
 
 	public MLPaintPixelConstants() {
@@ -54,8 +54,9 @@ public class MLPaintPixelConstants {
 		}
 	}
 
-	public int getRepsIncrement(int freshPaintNumPositives, int queueBoundsIdx, int INTERIOR_STEPS) {
-		int repsIncrement = (int) (freshPaintNumPositives * Math.pow(1.01, queueBoundsIdx - 1 - INTERIOR_STEPS) * 0.09 / (dijkstraStep*dijkstraStep));
+	/** how many grid steps of step pixels to grow the suggestion by at queueBoundsIdx */
+	public int getRepsIncrement(int freshPaintNumPositives, int queueBoundsIdx, int INTERIOR_STEPS, int step) {
+		int repsIncrement = (int) (freshPaintNumPositives * Math.pow(1.01, queueBoundsIdx - 1 - INTERIOR_STEPS) * 0.09 / (step*step));
 		return repsIncrement;
 	}
 
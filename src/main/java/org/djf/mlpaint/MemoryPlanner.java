@@ -0,0 +1,155 @@
+package org.djf.mlpaint;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Sizes every per-pixel buffer of a session before anything is loaded, and picks a samplingEdge that fits the heap.
+ *
+ * A session that opens is then not going to run out of memory later when MLPaintPanel allocates
+ * distances, classifier output, undo copies and so on.
+ */
+public class MemoryPlanner {
+
+	/** fraction of Runtime.maxMemory() we plan to fill, leaving the rest for Swing, SMILE, and the GC */
+	public static final double HEADROOM = 0.75;
+	/** beyond this the working image is too blurry to label, so refuse instead */
+	public static final int MAX_SAMPLING_EDGE = 32;
+
+	// bytes per working pixel for each buffer of MLPaintPanel
+	public static final double IMAGE_BYTES = 3;				// PixelStore R, G, B planes
+	public static final double OVERVIEW_BYTES = 4 / 3.0;	// 1/4 + 1/16 + ... of the image
+	public static final double LABELS_BYTES = 0.5;			// 4-bit
+	public static final double VIS_LABELS_BYTES = 0.5;		// 4-bit
+	public static final double FRESH_PAINT_BYTES = 0.25;	// 2-bit
+	public static final double CLASSIFIER_OUTPUT_BYTES = 1;	// TYPE_BYTE_GRAY
+	public static final double DISTANCES_BYTES = 4;			// float
+	public static final double UNDO_BYTES = (MLPaintPanel.UNDO_MEM + 1) * LABELS_BYTES;
+	/** the decoded image before conversion to planes, alive at the same time as the converted one */
+	public static final double LOAD_TRANSIENT_BYTES = 4;
+
+	/** decoded bytes per pixel of each extra layer, and of a labels file, as the readers will produce them */
+	private final double extraLayersBytes;
+	/** bytes per pixel of the extra layers once packed in the LayerStack: 1 for byte layers, else 2 */
+	private final double stackBytes;
+	private final double labelsFileBytes;
+	private final int numExtraLayers;
+	/** fixed costs not proportional to the image, like the source tile cache */
+	private final long fixedBytes;
+	/** decided by chooseSamplingEdge */
+	private boolean offHeap = false;
+
+	public MemoryPlanner(int numExtraLayers, double extraLayersBytes, double stackBytes, double labelsFileBytes, long fixedBytes) {
+		this.numExtraLayers = numExtraLayers;
+		this.extraLayersBytes = extraLayersBytes;
+		this.stackBytes = stackBytes;
+		this.labelsFileBytes = labelsFileBytes;
+		this.fixedBytes = fixedBytes;
+	}
+
+	/** Plan for a site's files, with decoded sizes from the catalog's headers: bands x bits / 8 per pixel. */
+	public static MemoryPlanner forSite(ImageCatalog.Site site, ImageCatalog catalog, long fixedBytes) throws IOException {
+		int numExtra = 0;
+		double extraBytes = 0;
+		double stackBytes = 0;
+		double labelsBytes = 0;
+		for (File file : site.files()) {
+			ImageCatalog.Role role = site.roleOf(file);
+			if (role == ImageCatalog.Role.RGB) continue;
+			int bits = catalog.get(file).bitsPerPixel;
+			double bytes = bits == 0 ? 4 : bits / 8.0;// unknown, assume 32 bits
+			if (role == ImageCatalog.Role.LABELS) {
+				labelsBytes = bytes;
+			} else {
+				numExtra++;
+				extraBytes += bytes;
+				stackBytes += bits > 0 && bits <= 8 ? 1 : 2;
+			}
+		}
+		return new MemoryPlanner(numExtra, extraBytes, stackBytes, labelsBytes, fixedBytes);
+	}
+
+	/** bytes of every per-pixel buffer of a session, per working pixel */
+	public double bytesPerPixel() {
+		return IMAGE_BYTES + OVERVIEW_BYTES + LABELS_BYTES + VIS_LABELS_BYTES + FRESH_PAINT_BYTES
+				+ CLASSIFIER_OUTPUT_BYTES + DISTANCES_BYTES + UNDO_BYTES + stackBytes + labelsFileBytes;
+	}
+
+	/** peak bytes per working pixel while loading: the session buffers are not allocated yet, but the transients are,
+	 * and the decoded extra layers are alive while being packed into the stack */
+	public double loadBytesPerPixel() {
+		return IMAGE_BYTES + LOAD_TRANSIENT_BYTES + extraLayersBytes + stackBytes + labelsFileBytes;
+	}
+
+	/** the buffers MLPaintPanel can keep in a MappedDataBuffer instead, see setOffHeap */
+	public static double offHeapBytesPerPixel() {
+		return IMAGE_BYTES + LABELS_BYTES + VIS_LABELS_BYTES + FRESH_PAINT_BYTES + CLASSIFIER_OUTPUT_BYTES + UNDO_BYTES;
+	}
+
+	/** heap bytes for a session of this many working pixels, as planned:  on the heap, or partly mapped */
+	public long estimateBytes(long workingPixels) {
+		return estimateBytes(workingPixels, offHeap);
+	}
+
+	private long estimateBytes(long workingPixels, boolean mapped) {
+		double session = mapped ? bytesPerPixel() - offHeapBytesPerPixel() : bytesPerPixel();
+		return fixedBytes + (long) (Math.max(session, loadBytesPerPixel()) * workingPixels);
+	}
+
+	/** true if the chosen plan needs the big buffers memory-mapped to fit the heap */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/** usable bytes on the disk holding the scratch files, 0 if unknown */
+	public static long availableDisk(Path scratchDir) {
+		try {
+			Path existing = scratchDir;
+			while (existing != null && !Files.exists(existing)) {
+				existing = existing.getParent();
+			}
+			return existing == null ? 0 : Files.getFileStore(existing).getUsableSpace();
+		} catch (IOException ex) {
+			return 0;
+		}
+	}
+
+	/** bytes we may plan for: the heap limit less headroom less what is in use, counting the old session as reclaimable */
+	public static long availableBytes(long reclaimableBytes) {
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		return (long) (rt.maxMemory() * HEADROOM) - Math.max(0, used - reclaimableBytes);
+	}
+
+	/** Smallest samplingEdge whose working image fits both the pixel cap and the memory available:
+	 * on the heap if it fits, else with the big buffers memory-mapped if availableDisk has room for them.
+	 * Throws IllegalArgumentException with the estimate if even MAX_SAMPLING_EDGE won't fit.
+	 */
+	public int chooseSamplingEdge(Dimension bigDim, int maxPixels, long availableBytes, long availableDisk) {
+		for (int edge = 1; edge <= MAX_SAMPLING_EDGE; edge++) {
+			long pixels = ImageResamplingDims.workingPixels(bigDim, edge);
+			if (pixels > maxPixels) continue;
+			offHeap = estimateBytes(pixels, false) > availableBytes;
+			if (!offHeap || estimateBytes(pixels, true) <= availableBytes
+					&& offHeapBytesPerPixel() * pixels <= availableDisk * HEADROOM) {
+				System.out.printf("MemoryPlanner: samplingEdge %d%s, %s\n", edge, offHeap ? " memory-mapped" : "",
+						describe(pixels, availableBytes));
+				return edge;
+			}
+		}
+		offHeap = false;
+		long pixels = ImageResamplingDims.workingPixels(bigDim, MAX_SAMPLING_EDGE);
+		throw new IllegalArgumentException(String.format(
+				"Not enough memory for a %,d x %,d image with %d extra layers, even at 1/%d scale: %s. Run with a larger -Xmx.",
+				bigDim.width, bigDim.height, numExtraLayers, MAX_SAMPLING_EDGE, describe(pixels, availableBytes)));
+	}
+
+	public String describe(long workingPixels, long availableBytes) {
+		return String.format("%,d working pixels x %.1f bytes = %,d MB needed of %,d MB available",
+				workingPixels, Math.max(offHeap ? bytesPerPixel() - offHeapBytesPerPixel() : bytesPerPixel(), loadBytesPerPixel()),
+				estimateBytes(workingPixels) >> 20, availableBytes >> 20);
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.djf.mlpaint;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.MoreFiles;
+import org.djf.util.SwingUtil;
+
+/** Power-of-two overviews of the working image, persisted in a sidecar cache directory next to the image.
+ *
+ * Level 0 is the working image itself (the source subsampled by samplingEdge), level k is 2^k times smaller again.
+ * Built once in the background on first open; later opens read level 0 instead of decoding the source,
+ * and zoomed-out rendering draws the coarser levels.
+ */
+public class OverviewPyramid {
+
+	/** stop halving once both sides are this small */
+	public static final int SMALLEST_EDGE = 256;
+	public static final String CACHE_DIR = ".mlpaint";
+
+	private final Path cacheDir;
+	/** filename prefix identifying source file, its modification time, and the samplingEdge */
+	private final String key;
+
+	public OverviewPyramid(File source, int samplingEdge) {
+		this.cacheDir = cacheDir(source);
+		this.key = String.format("%s_%x_e%d", MoreFiles.getNameWithoutExtension(source.toPath()),
+				source.lastModified(), samplingEdge);
+	}
+
+	/** the sidecar cache directory for an image file, shared by all MLPaint caches */
+	public static Path cacheDir(File source) {
+		return source.getAbsoluteFile().toPath().resolveSibling(CACHE_DIR);
+	}
+
+	private Path levelFile(int level) {
+		return cacheDir.resolve(key + "_ovr" + level + ".png");
+	}
+
+	private Path countFile() {
+		return cacheDir.resolve(key + "_ovr.count");
+	}
+
+	/** true if a complete pyramid was written for this source, mtime, and samplingEdge */
+	public boolean isCached() {
+		return Files.isRegularFile(countFile());
+	}
+
+	/** number of cached levels, including level 0 */
+	public int numLevels() throws IOException {
+		return Integer.parseInt(new String(Files.readAllBytes(countFile())).trim());
+	}
+
+	public BufferedImage readLevel(int level) throws IOException {
+		BufferedImage img = ImageIO.read(levelFile(level).toFile());
+		if (img == null) {
+			throw new IOException("Couldn't parse the overview " + levelFile(level));
+		}
+		return SwingUtil.setRGBNoAlpha(img);
+	}
+
+	/** Read overview levels 1..n from the cache, not level 0. */
+	public List<BufferedImage> readOverviews() throws IOException {
+		int n = numLevels();
+		List<BufferedImage> rr = Lists.newArrayListWithCapacity(n);
+		for (int level = 1; level < n; level++) {
+			rr.add(readLevel(level));
+		}
+		return rr;
+	}
+
+	/** Write level 0 and all the overviews.  The count file goes last, so a partial pyramid is never used. */
+	public void write(BufferedImage level0, List<BufferedImage> overviews) throws IOException {
+		Files.createDirectories(cacheDir);
+		writeLevel(0, level0);
+		for (int i = 0; i < overviews.size(); i++) {
+			writeLevel(i + 1, overviews.get(i));
+		}
+		Files.write(countFile(), Integer.toString(overviews.size() + 1).getBytes());
+	}
+
+	private void writeLevel(int level, BufferedImage img) throws IOException {
+		Path out = levelFile(level);
+		Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+		if (!ImageIO.write(img, "png", tmp.toFile())) {
+			throw new IOException("No png writer for overview " + out);
+		}
+		Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Halve the image repeatedly with a 2x2 box filter until it is SMALLEST_EDGE or smaller.  Excludes level 0. */
+	public static List<BufferedImage> buildOverviews(BufferedImage level0) {
+		List<BufferedImage> rr = Lists.newArrayList();
+		BufferedImage img = level0;
+		while (img.getWidth() > SMALLEST_EDGE || img.getHeight() > SMALLEST_EDGE) {
+			img = SwingUtil.halveImage(img);
+			rr.add(img);
+		}
+		return rr;
+	}
+
+	/** Overview level to draw at this many screen pixels per working pixel: 0 means the working image itself. */
+	public static int levelForScale(double scale, int numOverviews) {
+		int level = 0;
+		while (level < numOverviews && scale * (1 << (level + 1)) <= 1.0) {
+			level++;
+		}
+		return level;
+	}
+
+}
@@ -0,0 +1,181 @@
+package org.djf.mlpaint;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.djf.util.DistanceField;
+import org.djf.util.FrontierQueue;
+import org.djf.util.IntPositions;
+
+/** Delta-stepping growth of a Dijkstra suggestion, classifying newly reached cells in parallel.
+ * Each bucket of frontier costs within DELTA of the least is relaxed in rounds:  pop all of it, classify the
+ * cells it reaches for the first time in parallel, then lower what's cheaper via it, until nothing queued is
+ * within the bucket.  Its costs are then final, and it settles in cost order, so every level holds the same
+ * cells as sequential Dijkstra, though a cell popped early may be re-relaxed once a cheaper way in turns up.
+ * A step costs by the cell it enters, the same cost as SequentialGrowth, and cells are numbered as in history.
+ * Only the classifying, which is most of the time, runs in parallel; relaxing and settling stay serial.
+ */
+class ParallelGrowth implements SuggestionGrowth {
+
+	/** the width of a bucket in cost:  wider buckets classify more at once, at the price of more re-relaxation */
+	static final float DELTA = 1f / 32;
+
+	private static final byte QUEUED = 0, POPPED = 1, SETTLED = 2, FRESH = 3;
+	private static final int[] DX = {0, 0, 1, -1}, DY = {1, -1, 0, 0};
+
+	private final int width, height, step;
+	private final FrontierQueue queue;
+	private final SettledHistory history;
+	private final DistanceField distances;
+	private final StepCost stepCost;
+	/** pixel to discovery number */
+	private final IntPositions numbers = new IntPositions(1000);
+	// per discovery number
+	private float[] costs = new float[1024];
+	private double[] edges = new double[1024];
+	private byte[] states = new byte[1024];
+	/** the bucket each was last popped in */
+	private int[] buckets = new int[1024];
+	private int bucketNumber = 0;
+	// scratch, kept to reuse
+	private int[] bucket = new int[1024], round = new int[1024], fresh = new int[1024];
+	private int bucketSize, roundSize, freshSize;
+
+	ParallelGrowth(int width, int height, int step, FrontierQueue queue, SettledHistory history,
+			DistanceField distances, StepCost stepCost) {
+		this.width = width;
+		this.height = height;
+		this.step = step;
+		this.queue = queue;
+		this.history = history;
+		this.distances = distances;
+		this.stepCost = stepCost;
+	}
+
+	@Override
+	public void seed(int x, int y, float cost) {
+		if (numbers.get(y * width + x) >= 0) return;
+		int d = discover(y * width + x);
+		edges[d] = 0;
+		lower(d, cost);
+	}
+
+	private int discover(int pixel) {
+		int d = history.discover(pixel);
+		numbers.put(pixel, d);
+		if (d == costs.length) {
+			costs = Arrays.copyOf(costs, 2 * d);
+			edges = Arrays.copyOf(edges, 2 * d);
+			states = Arrays.copyOf(states, 2 * d);
+			buckets = Arrays.copyOf(buckets, 2 * d);
+		}
+		states[d] = FRESH;
+		buckets[d] = -1;
+		return d;
+	}
+
+	/** d now costs cost:  queue it, or lower it in the queue, and mark it in distances */
+	private void lower(int d, float cost) {
+		costs[d] = cost;
+		states[d] = QUEUED;
+		queue.offer(d, cost);
+		int pixel = history.pixel(d);
+		distances.fill(pixel % width, pixel / width, step, step, cost);
+	}
+
+	@Override
+	public void grow(int reps) {
+		int settled = 0;
+		while (settled < reps && !queue.isEmpty() && queue.peekCost() != Float.POSITIVE_INFINITY) {
+			float bound = queue.peekCost() + DELTA;
+			bucketNumber++;
+			bucketSize = 0;
+			while (!queue.isEmpty() && queue.peekCost() < bound) {
+				popRound(bound);
+				relaxRound();
+			}
+			settled += settleBucket(reps - settled);
+		}
+	}
+
+	/** pop everything queued under bound into round, and into bucket if not there yet */
+	private void popRound(float bound) {
+		roundSize = 0;
+		while (!queue.isEmpty() && queue.peekCost() < bound) {
+			int d = queue.poll();
+			states[d] = POPPED;
+			round = append(round, roundSize++, d);
+			if (buckets[d] != bucketNumber) {
+				buckets[d] = bucketNumber;
+				bucket = append(bucket, bucketSize++, d);
+			}
+		}
+	}
+
+	/** From each cell of round, reach its neighbours:  new ones are classified together, the rest lowered if cheaper. */
+	private void relaxRound() {
+		freshSize = 0;
+		for (int r = 0; r < roundSize; r++) {
+			int d = round[r];
+			int pixel = history.pixel(d);
+			int x = pixel % width, y = pixel / width;
+			for (int k = 0; k < DX.length; k++) {
+				int xn = x + DX[k] * step, yn = y + DY[k] * step;
+				if (xn < 0 || yn < 0 || xn >= width || yn >= height) continue;
+				int n = numbers.get(yn * width + xn);
+				if (n < 0) {
+					n = discover(yn * width + xn);
+					costs[n] = costs[d];// the cheapest way in so far, until classified
+					fresh = append(fresh, freshSize++, n);
+				} else if (states[n] == FRESH) {
+					costs[n] = Math.min(costs[n], costs[d]);
+				} else if (states[n] != SETTLED) {
+					float cost = (float) (edges[n] + costs[d]);
+					if (cost < costs[n]) {
+						lower(n, cost);
+					}
+				}
+			}
+		}
+		double[] edges = this.edges;
+		int[] fresh = this.fresh;
+		IntStream.range(0, freshSize).parallel().forEach(i -> {
+			int pixel = history.pixel(fresh[i]);
+			edges[fresh[i]] = stepCost.cost(pixel % width, pixel / width);
+		});
+		for (int i = 0; i < freshSize; i++) {
+			int n = fresh[i];
+			lower(n, (float) (edges[n] + costs[n]));
+		}
+	}
+
+	/** Settle the bucket's cells in cost order, up to most; queue the rest again.  Returns how many settled. */
+	private int settleBucket(int most) {
+		// costs are non-negative, so their bits sort as they do
+		long[] order = new long[bucketSize];
+		for (int i = 0; i < bucketSize; i++) {
+			order[i] = (long) Float.floatToIntBits(costs[bucket[i]]) << 32 | bucket[i];
+		}
+		Arrays.sort(order);
+		int n = Math.min(most, bucketSize);
+		for (int i = 0; i < bucketSize; i++) {
+			int d = (int) order[i];
+			if (i < n) {
+				states[d] = SETTLED;
+				history.settle(d);
+			} else {
+				lower(d, costs[d]);
+			}
+		}
+		return n;
+	}
+
+	private static int[] append(int[] a, int at, int value) {
+		if (at == a.length) {
+			a = Arrays.copyOf(a, 2 * at);
+		}
+		a[at] = value;
+		return a;
+	}
+
+}
@@ -0,0 +1,174 @@
+package org.djf.mlpaint;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.io.MoreFiles;
+
+/** Decoded working-resolution rasters, cached as raw planar samples so a reopen is an mmap page-in, not a TIFF decode.
+ *
+ * File layout, little-endian:  magic "MLPR", version, width, height, bands, sample type, then one plane per band.
+ * Keyed by the source file (it lives in the same .mlpaint directory as the OverviewPyramid),
+ * the source's modification time, and the samplingEdge.
+ */
+public class RasterCache {
+
+	private static final int MAGIC = 0x524c504d;// "MLPR" little-endian
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 6 * 4;
+	/** map at most this much at a time, well under the 2GB limit of one MappedByteBuffer */
+	private static final int MAP_CHUNK = 1 << 30;
+
+	public static final int TYPE_BYTE = 0;
+	public static final int TYPE_USHORT = 1;
+	public static final int TYPE_FLOAT = 2;
+
+	private final Path file;
+
+	public RasterCache(File source, int samplingEdge) {
+		this.file = OverviewPyramid.cacheDir(source).resolve(String.format("%s_%x_e%d.raster",
+				MoreFiles.getNameWithoutExtension(source.toPath()), source.lastModified(), samplingEdge));
+	}
+
+	public boolean isCached() {
+		return Files.isRegularFile(file);
+	}
+
+	/** Raster cache sample type for this image, or -1 if we don't know how to cache it. */
+	private static int sampleType(BufferedImage img) {
+		if (img.getType() == BufferedImage.TYPE_INT_RGB) return TYPE_BYTE;
+		if (img.getRaster().getNumBands() > 4) return -1;
+		switch (img.getRaster().getTransferType()) {
+			case DataBuffer.TYPE_BYTE: return TYPE_BYTE;
+			case DataBuffer.TYPE_USHORT: return TYPE_USHORT;
+			case DataBuffer.TYPE_FLOAT: return TYPE_FLOAT;
+			default: return -1;
+		}
+	}
+
+	private static int bytesPerSample(int sampleType) {
+		return sampleType == TYPE_BYTE ? 1 : sampleType == TYPE_USHORT ? 2 : 4;
+	}
+
+	/** Write the image's samples, plane by plane.  Returns false if this kind of image isn't cacheable. */
+	public boolean write(BufferedImage img) throws IOException {
+		int type = sampleType(img);
+		if (type < 0) return false;
+		Raster raster = img.getRaster();
+		int w = img.getWidth(), h = img.getHeight();
+		int bands = img.getType() == BufferedImage.TYPE_INT_RGB ? 3 : raster.getNumBands();
+		int bps = bytesPerSample(type);
+
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(w).putInt(h).putInt(bands).putInt(type).flip();
+			ch.write(header);
+
+			ByteBuffer row = ByteBuffer.allocate(w * bps).order(ByteOrder.LITTLE_ENDIAN);
+			int[] ints = new int[w];
+			float[] floats = new float[w];
+			for (int b = 0; b < bands; b++) {
+				for (int y = 0; y < h; y++) {
+					row.clear();
+					if (type == TYPE_FLOAT) {
+						raster.getSamples(0, y, w, 1, b, floats);
+						row.asFloatBuffer().put(floats);
+					} else if (img.getType() == BufferedImage.TYPE_INT_RGB) {
+						img.getRGB(0, y, w, 1, ints, 0, w);
+						int shift = 16 - 8 * b;// R, G, B planes
+						for (int x = 0; x < w; x++) {
+							row.put(x, (byte) (ints[x] >> shift));
+						}
+					} else {
+						raster.getSamples(0, y, w, 1, b, ints);
+						for (int x = 0; x < w; x++) {
+							if (bps == 1) row.put(x, (byte) ints[x]);
+							else row.putShort(2 * x, (short) ints[x]);
+						}
+					}
+					row.limit(w * bps).position(0);
+					while (row.hasRemaining()) {
+						ch.write(row);
+					}
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	/** Map the cache file and build a banded image straight from its planes.  3 byte bands are RGB, as in PixelStore. */
+	public BufferedImage read() throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not an MLPaint raster cache, or an old one: " + file);
+			}
+			int w = header.getInt(), h = header.getInt(), bands = header.getInt(), type = header.getInt();
+			int n = w * h;
+			long planeBytes = (long) n * bytesPerSample(type);
+
+			DataBuffer data;
+			if (type == TYPE_BYTE) {
+				byte[][] planes = new byte[bands][n];
+				for (int b = 0; b < bands; b++) readPlane(ch, HEADER_BYTES + b * planeBytes, planes[b]);
+				data = new DataBufferByte(planes, n);
+			} else if (type == TYPE_USHORT) {
+				short[][] planes = new short[bands][n];
+				for (int b = 0; b < bands; b++) {
+					for (long off = 0; off < planeBytes; off += MAP_CHUNK) {
+						int len = (int) Math.min(MAP_CHUNK, planeBytes - off);
+						map(ch, HEADER_BYTES + b * planeBytes + off, len).asShortBuffer().get(planes[b], (int) (off / 2), len / 2);
+					}
+				}
+				data = new DataBufferUShort(planes, n);
+			} else {
+				float[][] planes = new float[bands][n];
+				for (int b = 0; b < bands; b++) {
+					for (long off = 0; off < planeBytes; off += MAP_CHUNK) {
+						int len = (int) Math.min(MAP_CHUNK, planeBytes - off);
+						map(ch, HEADER_BYTES + b * planeBytes + off, len).asFloatBuffer().get(planes[b], (int) (off / 4), len / 4);
+					}
+				}
+				data = new DataBufferFloat(planes, n);
+			}
+			int[] bankIndices = new int[bands];
+			int[] offsets = new int[bands];
+			for (int b = 0; b < bands; b++) bankIndices[b] = b;
+			WritableRaster raster = Raster.createWritableRaster(
+					new BandedSampleModel(data.getDataType(), w, h, w, bankIndices, offsets), data, null);
+			ColorSpace cs = ColorSpace.getInstance(bands >= 3 ? ColorSpace.CS_sRGB : ColorSpace.CS_GRAY);
+			boolean alpha = bands == 2 || bands == 4;
+			ColorModel cm = new ComponentColorModel(cs, alpha, false,
+					alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, data.getDataType());
+			return new BufferedImage(cm, raster, false, null);
+		}
+	}
+
+	private static void readPlane(FileChannel ch, long offset, byte[] plane) throws IOException {
+		for (long off = 0; off < plane.length; off += MAP_CHUNK) {
+			int len = (int) Math.min(MAP_CHUNK, plane.length - off);
+			map(ch, offset + off, len).get(plane, (int) off, len);
+		}
+	}
+
+	private static ByteBuffer map(FileChannel ch, long offset, int len) throws IOException {
+		MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, offset, len);
+		return mapped.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+}
@@ -0,0 +1,63 @@
+package org.djf.mlpaint;
+
+import org.djf.util.DistanceField;
+import org.djf.util.FrontierQueue;
+
+/** Dijkstra one cell at a time.  Nothing is allocated per step, beyond the queue & history growing their arrays.
+ * A step costs by the cell it enters, so the first offer of a cell is already its least, least-cost first:
+ * no need to decrease-key, and re-run the classifier, for cells already on the frontier.
+ */
+class SequentialGrowth implements SuggestionGrowth {
+
+	private static final int[] DX = {0, 0, 1, -1}, DY = {1, -1, 0, 0};
+
+	private final int width, height, step;
+	private final FrontierQueue queue;
+	private final SettledHistory history;
+	private final DistanceField distances;
+	private final StepCost stepCost;
+
+	SequentialGrowth(int width, int height, int step, FrontierQueue queue, SettledHistory history,
+			DistanceField distances, StepCost stepCost) {
+		this.width = width;
+		this.height = height;
+		this.step = step;
+		this.queue = queue;
+		this.history = history;
+		this.distances = distances;
+		this.stepCost = stepCost;
+	}
+
+	@Override
+	public void seed(int x, int y, float cost) {
+		if (distances.get(x, y) != 0) return;
+		queue.offer(history.discover(y * width + x), cost);
+		distances.fill(x, y, step, step, cost);
+	}
+
+	@Override
+	public void grow(int reps) {
+		//https://math.mit.edu/~rothvoss/18.304.3PM/Presentations/1-Melissa.pdf
+		for (int i = 0; i < reps && !queue.isEmpty(); i++) {
+			if (queue.peekCost() == Float.POSITIVE_INFINITY) {
+				break;
+			}
+			float cost = queue.peekCost();// exact, where distances may be rounded
+			int choicePoint = history.settle(queue.poll());
+			int x = choicePoint % width, y = choicePoint / width;
+			//Maydo: 8-connectivity w/*sqrt2 penalty on diagonals
+			for (int k = 0; k < DX.length; k++) {
+				int xn = x + DX[k] * step, yn = y + DY[k] * step;
+				if (xn < 0 || yn < 0 || xn >= width || yn >= height) continue;
+				if (distances.get(xn, yn) == 0) { //Maydo: consider safer way to tell it's new
+					float proposedCost = (float) (stepCost.cost(xn, yn) + (double) cost);
+					queue.offer(history.discover(yn * width + xn), proposedCost);
+					// Labels & no_data within the patch are safe:  the step cost closes cells over them, and
+					// writeSuggestionToLabels skips them.
+					distances.fill(xn, yn, step, step, proposedCost);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,347 @@
+package org.djf.mlpaint;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.MoreFiles;
+
+/** The working state of a labeling session in one file beside the labels, to pick up exactly where we left off:
+ * the labels in bands of rows, the fresh paint and its areas, the trained classifiers, and the view.
+ *
+ * A header, then named sections appended as they change, then a table of contents.  The header points at
+ * the latest table, and patching that pointer commits a save, so a crash leaves the previous one intact.
+ * Superseded sections are dead space until there's more of it than live, when the file is rewritten.
+ * Loading maps the file and reads the sections straight out of the mapping.
+ * A bundle applies only over the labels file it was saved with, identified as LabelJournal does.
+ */
+public class SessionBundle implements Closeable {
+
+	public static final String LABELS = "labels";
+	/** rows per raster section, so a save rewrites only the bands of labels that changed */
+	public static final int BAND_ROWS = 256;
+
+	private static final int MAGIC = 0x4d4c5053;// "MLPS"
+	private static final int VERSION = 1;
+	/** magic, version, width, height, samplingEdge, then where the table of contents is */
+	private static final int HEADER = 28;
+	private static final String BASE = "base";
+
+	private final Path file;
+	public final int width, height, samplingEdge;
+	private FileChannel channel;
+	/** section name -> {offset, length} */
+	private final Map<String, long[]> toc = new TreeMap<>();
+	private long end;
+	/** still in the temp file, until the first commit moves it over the old bundle */
+	private boolean fresh;
+
+	private SessionBundle(Path file, int width, int height, int samplingEdge) {
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.samplingEdge = samplingEdge;
+	}
+
+	/** e.g. site05_RGB_MLPaintlabels.tif -> site05_RGB_MLPaintlabels.session */
+	public static Path pathFor(Path labelsFile) {
+		return labelsFile.resolveSibling(MoreFiles.getNameWithoutExtension(labelsFile) + ".session");
+	}
+
+	/** A new, empty bundle, in a temp file that replaces any old bundle at the first commit. */
+	public static SessionBundle create(Path file, int width, int height, int samplingEdge) throws IOException {
+		SessionBundle rr = new SessionBundle(file, width, height, samplingEdge);
+		rr.startFresh();
+		return rr;
+	}
+
+	private Path tmp() {
+		return file.resolveSibling(file.getFileName() + ".tmp");
+	}
+
+	private void startFresh() throws IOException {
+		channel = FileChannel.open(tmp(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(samplingEdge).putLong(0).flip();
+		end = append(header, 0);
+		fresh = true;
+	}
+
+	/** Add or replace a section.  Nothing is final until commit. */
+	public void put(String name, byte[] bytes) throws IOException {
+		toc.put(name, new long[] {end, bytes.length});
+		end = append(ByteBuffer.wrap(bytes), end);
+	}
+
+	public void putAll(Map<String, byte[]> sections) throws IOException {
+		for (Map.Entry<String, byte[]> e : sections.entrySet()) {
+			put(e.getKey(), e.getValue());
+		}
+	}
+
+	/** Note the labels file the bundle goes with, as it is now on disk. */
+	public void putBase(Path labelsFile) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		LabelJournal.writeBase(new DataOutputStream(bytes), labelsFile);
+		put(BASE, bytes.toByteArray());
+	}
+
+	/** Write the table of contents and point the header at it, first rewriting the file if it's mostly dead space. */
+	public void commit() throws IOException {
+		long live = HEADER;
+		for (long[] section : toc.values()) live += section[1];
+		if (!fresh && end > 2 * live + (1 << 20)) {
+			compact();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(toc.size());
+		for (Map.Entry<String, long[]> e : toc.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue()[0]);
+			out.writeLong(e.getValue()[1]);
+		}
+		long at = end;
+		end = append(ByteBuffer.wrap(bytes.toByteArray()), end);
+		channel.force(false);
+		ByteBuffer pointer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, at);
+		append(pointer, HEADER - 8);// commit
+		channel.force(false);
+		if (fresh) {
+			channel.close();
+			Files.move(tmp(), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			fresh = false;
+		}
+	}
+
+	/** copy just the live sections to a fresh temp file, for commit to move over this one */
+	private void compact() throws IOException {
+		FileChannel old = channel;
+		Map<String, long[]> oldToc = new TreeMap<>(toc);
+		toc.clear();
+		startFresh();
+		for (Map.Entry<String, long[]> e : oldToc.entrySet()) {
+			long[] section = e.getValue();
+			toc.put(e.getKey(), new long[] {end, section[1]});
+			for (long done = 0; done < section[1]; ) {
+				done += old.transferTo(section[0] + done, section[1] - done, channel.position(end + done));
+			}
+			end += section[1];
+		}
+		old.close();
+	}
+
+	private long append(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+		return position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		if (fresh) {
+			Files.deleteIfExists(tmp());
+		}
+	}
+
+	/** The sections of a saved bundle, mapped. */
+	public static class Contents {
+		private final MappedByteBuffer map;
+		private final Map<String, long[]> toc = new TreeMap<>();
+
+		private Contents(MappedByteBuffer map) {
+			this.map = map;
+		}
+
+		public boolean has(String name) {
+			return toc.containsKey(name);
+		}
+
+		/** the section's bytes, read-only, straight from the mapping */
+		public ByteBuffer section(String name) throws IOException {
+			long[] s = toc.get(name);
+			if (s == null) throw new IOException("No " + name + " in the session bundle");
+			ByteBuffer rr = map.duplicate();
+			rr.position((int) s[0]).limit((int) (s[0] + s[1]));
+			return rr.slice();
+		}
+
+		public DataInputStream input(String name) throws IOException {
+			ByteBuffer buf = section(name);
+			byte[] bytes = new byte[buf.remaining()];
+			buf.get(bytes);
+			return new DataInputStream(new ByteArrayInputStream(bytes));
+		}
+
+		/** Fill band 0 of the raster from the sections rasterSections made under this name. */
+		public void readRaster(String name, WritableRaster raster) throws IOException {
+			int bits = raster.getSampleModel().getSampleSize(0), rowBytes = (raster.getWidth() * bits + 7) / 8;
+			for (int band = 0; band * BAND_ROWS < raster.getHeight(); band++) {
+				int y0 = band * BAND_ROWS, rows = Math.min(BAND_ROWS, raster.getHeight() - y0);
+				ByteBuffer buf = section(name + "." + band);
+				if (buf.remaining() != rows * rowBytes) throw new IOException("Wrong size of " + name + " in the session bundle");
+				unpackRows(buf, raster, y0, rows, bits);
+			}
+		}
+	}
+
+	/** The bundle saved at this working size over the labels file base as it is now, mapped; else null. */
+	public static Contents load(Path file, int width, int height, int samplingEdge, Path base) throws IOException {
+		if (!Files.exists(file) || Files.size(file) < HEADER || Files.size(file) > Integer.MAX_VALUE) return null;
+		MappedByteBuffer map;
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());// stays valid after the channel closes
+		}
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != width || map.getInt(12) != height
+				|| map.getInt(16) != samplingEdge) {
+			return null;
+		}
+		long at = map.getLong(HEADER - 8);
+		if (at < HEADER || at >= map.capacity()) return null;// never committed
+		Contents rr = new Contents(map);
+		ByteBuffer tocBytes = map.duplicate();
+		tocBytes.position((int) at);
+		byte[] bytes = new byte[tocBytes.remaining()];
+		tocBytes.get(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		for (int n = in.readInt(); n > 0; n--) {
+			String name = in.readUTF();
+			long offset = in.readLong(), length = in.readLong();
+			if (offset < HEADER || length < 0 || offset + length > at) return null;
+			rr.toc.put(name, new long[] {offset, length});
+		}
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		LabelJournal.writeBase(new DataOutputStream(expected), base);
+		ByteBuffer actual = rr.has(BASE) ? rr.section(BASE) : ByteBuffer.allocate(0);
+		if (!actual.equals(ByteBuffer.wrap(expected.toByteArray()))) {
+			System.out.printf("SessionBundle: %s is for another save of the labels, ignoring it\n", file.getFileName());
+			return null;
+		}
+		return rr;
+	}
+
+	/** Band 0 of the raster as sections name.0, name.1... of BAND_ROWS rows each, packed as its sample size;
+	 * only the bands touching the dirty rectangles, or all if dirty is null.
+	 */
+	public static Map<String, byte[]> rasterSections(String name, Raster raster, List<Rectangle> dirty) {
+		Map<String, byte[]> rr = new LinkedHashMap<>();
+		for (int band = 0; band * BAND_ROWS < raster.getHeight(); band++) {
+			int y0 = band * BAND_ROWS, rows = Math.min(BAND_ROWS, raster.getHeight() - y0);
+			boolean changed = dirty == null;
+			for (int i = 0; !changed && i < dirty.size(); i++) {
+				Rectangle r = dirty.get(i);
+				changed = r.y < y0 + rows && r.y + r.height > y0 && !r.isEmpty();
+			}
+			if (changed) {
+				rr.put(name + "." + band, packRows(raster, y0, rows));
+			}
+		}
+		return rr;
+	}
+
+	/** rows y0... of band 0, packed MSB-first at the raster's sample size of 1, 2, 4 or 8 bits */
+	static byte[] packRows(Raster raster, int y0, int rows) {
+		int bits = raster.getSampleModel().getSampleSize(0);
+		Preconditions.checkArgument(8 % bits == 0, "Can't pack %s-bit samples", bits);
+		int w = raster.getWidth(), rowBytes = (w * bits + 7) / 8, perByte = 8 / bits, mask = (1 << bits) - 1;
+		byte[] rr = new byte[rows * rowBytes];
+		int[] row = new int[w];
+		for (int r = 0; r < rows; r++) {
+			raster.getSamples(raster.getMinX(), raster.getMinY() + y0 + r, w, 1, 0, row);
+			for (int x = 0, at = r * rowBytes; x < w; x++) {
+				rr[at + x / perByte] |= (row[x] & mask) << (perByte - 1 - x % perByte) * bits;
+			}
+		}
+		return rr;
+	}
+
+	/** the reverse of packRows:  a straight copy into a heap image of the same packing, else sample by sample */
+	private static void unpackRows(ByteBuffer buf, WritableRaster raster, int y0, int rows, int bits) {
+		int w = raster.getWidth(), rowBytes = (w * bits + 7) / 8;
+		if (raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof MultiPixelPackedSampleModel
+				&& raster.getParent() == null && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0) {
+			MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) raster.getSampleModel();
+			if (sm.getPixelBitStride() == bits && sm.getScanlineStride() == rowBytes && sm.getDataBitOffset() == 0) {
+				DataBufferByte data = (DataBufferByte) raster.getDataBuffer();
+				buf.get(data.getData(), data.getOffset() + y0 * rowBytes, rows * rowBytes);
+				return;
+			}
+		}
+		int perByte = 8 / bits, mask = (1 << bits) - 1;
+		byte[] packed = new byte[rowBytes];
+		int[] row = new int[w];
+		for (int r = 0; r < rows; r++) {
+			buf.get(packed);
+			for (int x = 0; x < w; x++) {
+				row[x] = packed[x / perByte] >> (perByte - 1 - x % perByte) * bits & mask;
+			}
+			raster.setSamples(raster.getMinX(), raster.getMinY() + y0 + r, w, 1, 0, row);
+		}
+	}
+
+	/** an Area as its path:  winding rule, then segments of type & points, ending with -1 */
+	static void writeArea(DataOutputStream out, Area area) throws IOException {
+		PathIterator it = area.getPathIterator(null);
+		out.writeByte(it.getWindingRule());
+		double[] coords = new double[6];
+		for (; !it.isDone(); it.next()) {
+			int type = it.currentSegment(coords);
+			out.writeByte(type);
+			for (int i = 0; i < 2 * points(type); i++) out.writeDouble(coords[i]);
+		}
+		out.writeByte(-1);
+	}
+
+	static Area readArea(DataInputStream in) throws IOException {
+		Path2D.Double path = new Path2D.Double(in.readByte());
+		double[] c = new double[6];
+		for (int type = in.readByte(); type >= 0; type = in.readByte()) {
+			for (int i = 0; i < 2 * points(type); i++) c[i] = in.readDouble();
+			switch (type) {
+				case PathIterator.SEG_MOVETO: path.moveTo(c[0], c[1]); break;
+				case PathIterator.SEG_LINETO: path.lineTo(c[0], c[1]); break;
+				case PathIterator.SEG_QUADTO: path.quadTo(c[0], c[1], c[2], c[3]); break;
+				case PathIterator.SEG_CUBICTO: path.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]); break;
+				default: path.closePath();
+			}
+		}
+		return new Area(path);
+	}
+
+	/** points in a PathIterator segment of each type:  MOVETO, LINETO, QUADTO, CUBICTO, CLOSE */
+	private static final int[] POINTS = {1, 1, 2, 3, 0};
+
+	private static int points(int segmentType) {
+		return POINTS[segmentType];
+	}
+
+}
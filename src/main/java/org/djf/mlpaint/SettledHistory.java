@@ -0,0 +1,131 @@
+package org.djf.mlpaint;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import com.google.common.base.Preconditions;
+
+/** The growth of a Dijkstra suggestion, recorded once as it happens rather than copying the frontier at every level.
+ * Pixels are numbered in the order they're discovered, i.e. first queued, and that number is what they're queued by;
+ * each records when it settled.  Per level we keep how many pixels had been discovered & settled, the least cost
+ * left on the frontier (the level's threshold) and the bounds of what had been discovered.
+ * So a level's threshold and bounds are lookups, and its frontier is what it had discovered but not yet settled.
+ * Memory goes with the pixels reached, plus a few numbers per level.
+ */
+public class SettledHistory {
+
+	private static final int UNSETTLED = Integer.MAX_VALUE;
+
+	private final int width;
+	// per discovered pixel
+	private int[] pixels, settledAt;
+	private int discovered = 0, settled = 0;
+	private int xmin = Integer.MAX_VALUE, ymin = Integer.MAX_VALUE, xmax = -1, ymax = -1;
+	// per level
+	private int[] levelDiscovered, levelSettled;
+	private float[] levelThreshold;
+	/** xmin, ymin, xmax, ymax per level */
+	private int[] levelBounds;
+	private int levels = 0;
+	/** the last frontier asked for, as paint asks again and again */
+	private int[] frontier = null;
+	private int frontierLevel = -1;
+
+	public SettledHistory(int width, int capacity) {
+		this.width = width;
+		capacity = Math.max(16, capacity);
+		pixels = new int[capacity];
+		settledAt = new int[capacity];
+		levelDiscovered = new int[64];
+		levelSettled = new int[64];
+		levelThreshold = new float[64];
+		levelBounds = new int[4 * 64];
+	}
+
+	/** A pixel, y * width + x, reached for the first time.  Returns its discovery number, to queue it by. */
+	public int discover(int pixel) {
+		if (discovered == pixels.length) {
+			pixels = Arrays.copyOf(pixels, 2 * discovered);
+			settledAt = Arrays.copyOf(settledAt, 2 * discovered);
+		}
+		int x = pixel % width, y = pixel / width;
+		xmin = Math.min(xmin, x);
+		ymin = Math.min(ymin, y);
+		xmax = Math.max(xmax, x);
+		ymax = Math.max(ymax, y);
+		pixels[discovered] = pixel;
+		settledAt[discovered] = UNSETTLED;
+		return discovered++;
+	}
+
+	/** the pixel with discovery number d */
+	public int pixel(int d) {
+		return pixels[d];
+	}
+
+	/** The pixel with discovery number d settled, i.e. came off the queue.  Returns the pixel. */
+	public int settle(int d) {
+		settledAt[d] = settled++;
+		return pixels[d];
+	}
+
+	/** Close a level, with threshold the least cost still queued, or infinite if none. */
+	public void endLevel(float threshold) {
+		if (levels == levelSettled.length) {
+			levelDiscovered = Arrays.copyOf(levelDiscovered, 2 * levels);
+			levelSettled = Arrays.copyOf(levelSettled, 2 * levels);
+			levelThreshold = Arrays.copyOf(levelThreshold, 2 * levels);
+			levelBounds = Arrays.copyOf(levelBounds, 8 * levels);
+		}
+		levelDiscovered[levels] = discovered;
+		levelSettled[levels] = settled;
+		levelThreshold[levels] = threshold;
+		int[] bounds = {xmin, ymin, xmax, ymax};
+		System.arraycopy(bounds, 0, levelBounds, 4 * levels, 4);
+		levels++;
+	}
+
+	public int levels() {
+		return levels;
+	}
+
+	/** the least cost on level's frontier:  what's within the suggestion costs less */
+	public float threshold(int level) {
+		Preconditions.checkElementIndex(level, levels, "level");
+		return levelThreshold[level];
+	}
+
+	/** xmin, ymin, xmax, ymax of all discovered by level, which encloses its frontier; empty has xmax < xmin */
+	public int[] bounds(int level) {
+		Preconditions.checkElementIndex(level, levels, "level");
+		return Arrays.copyOfRange(levelBounds, 4 * level, 4 * level + 4);
+	}
+
+	/** Each pixel settled by level, i.e. within its suggestion, whatever its recorded cost rounds to. */
+	public void forEachSettled(int level, IntConsumer action) {
+		Preconditions.checkElementIndex(level, levels, "level");
+		for (int d = 0; d < levelDiscovered[level]; d++) {
+			if (settledAt[d] < levelSettled[level]) {
+				action.accept(pixels[d]);
+			}
+		}
+	}
+
+	/** pixels on level's frontier:  discovered by then and not settled by then.  Kept for asking again. */
+	public int[] frontier(int level) {
+		Preconditions.checkElementIndex(level, levels, "level");
+		if (frontierLevel != level) {
+			int n = levelDiscovered[level] - levelSettled[level];
+			int[] rr = new int[n];
+			for (int d = 0, k = 0; k < n; d++) {
+				if (settledAt[d] >= levelSettled[level]) {
+					rr[k++] = pixels[d];
+				}
+			}
+			frontier = rr;
+			frontierLevel = level;
+		}
+		return frontier;
+	}
+
+}
@@ -0,0 +1,19 @@
+package org.djf.mlpaint;
+
+/** Grows a Dijkstra suggestion on a grid of step x step cells, recording it in a SettledHistory and its costs in a
+ * DistanceField.  SequentialGrowth and ParallelGrowth settle the same cells at the same costs, level by level.
+ */
+interface SuggestionGrowth {
+
+	/** the cost of stepping into (x, y), may be +infinity; called from many threads */
+	interface StepCost {
+		double cost(int x, int y);
+	}
+
+	/** Queue the pixel at (x, y) at cost, unless it's queued already. */
+	void seed(int x, int y, float cost);
+
+	/** Settle up to reps more cells, least cost first. */
+	void grow(int reps);
+
+}
@@ -0,0 +1,206 @@
+package org.djf.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/** Dial's bucket queue:  costs quantized to buckets of bucketWidth, in a ring covering range above the least cost,
+ * each bucket a doubly-linked list of entries, so offer, decrease-key and poll are O(1).
+ * Within a bucket entries come out newest first, so the order is exact only to a bucket.
+ * Costs beyond the ring, e.g. infinite, wait on an overflow list until the ring runs empty.  For Dijkstra with
+ * every step cost under range, finite costs never land there, as none is more than a step above the least.
+ * Entries are kept dense, the last moving into any gap, so index(k) and copy work as for FloatIndexHeap.
+ */
+public class BucketQueue implements FrontierQueue {
+
+	private static final int NONE = -1;
+
+	private final float bucketWidth;
+	private final int buckets;
+	/** per ring slot then overflow:  the first entry, or NONE */
+	private final int[] heads;
+	/** the bucket number of the least ring slot, which is slot base % buckets */
+	private long base = 0;
+	/** entries in the ring, not overflow */
+	private int inRing = 0;
+
+	// the entries
+	private int[] indexes, next, prev;
+	private float[] costs;
+	/** ring slot, or buckets for overflow */
+	private int[] slots;
+	private int size;
+	private final IntPositions positions;
+
+	public BucketQueue(float bucketWidth, float range, int capacity) {
+		Preconditions.checkArgument(bucketWidth > 0 && range >= bucketWidth, "Bad buckets: %s wide over %s", bucketWidth, range);
+		this.bucketWidth = bucketWidth;
+		buckets = (int) Math.ceil(range / bucketWidth) + 1;
+		heads = new int[buckets + 1];
+		Arrays.fill(heads, NONE);
+		capacity = Math.max(16, capacity);
+		indexes = new int[capacity];
+		next = new int[capacity];
+		prev = new int[capacity];
+		costs = new float[capacity];
+		slots = new int[capacity];
+		positions = new IntPositions(capacity);
+	}
+
+	private BucketQueue(BucketQueue other) {
+		bucketWidth = other.bucketWidth;
+		buckets = other.buckets;
+		heads = other.heads.clone();
+		base = other.base;
+		inRing = other.inRing;
+		int n = Math.max(16, other.size);
+		indexes = Arrays.copyOf(other.indexes, n);
+		next = Arrays.copyOf(other.next, n);
+		prev = Arrays.copyOf(other.prev, n);
+		costs = Arrays.copyOf(other.costs, n);
+		slots = Arrays.copyOf(other.slots, n);
+		size = other.size;
+		positions = other.positions.copy();
+	}
+
+	@Override
+	public FrontierQueue copy() {
+		return new BucketQueue(this);
+	}
+
+	/** cost's bucket number, or Long.MAX_VALUE if not finite */
+	private long bucket(float cost) {
+		return Float.isFinite(cost) ? (long) Math.floor(cost / bucketWidth) : Long.MAX_VALUE;
+	}
+
+	/** the ring slot for cost, overflow if beyond the ring; below the ring counts as its least bucket */
+	private int slotFor(float cost) {
+		long b = Math.max(bucket(cost), base);
+		return b - base < buckets ? (int) (b % buckets) : buckets;
+	}
+
+	@Override
+	public boolean offer(int index, float cost) {
+		int e = positions.get(index);
+		if (e >= 0 && !(cost < costs[e])) return false;
+		if (e >= 0) unlink(e);
+		long b = bucket(cost);
+		if (inRing == 0 && b != Long.MAX_VALUE && (b < base || b - base >= buckets)) {
+			base = b;// the ring's empty, so free to move to where the cost fits
+		}
+		if (e >= 0) {
+			costs[e] = cost;
+			link(e, slotFor(cost));
+			return true;
+		}
+		if (size == indexes.length) {
+			int n = 2 * size;
+			indexes = Arrays.copyOf(indexes, n);
+			next = Arrays.copyOf(next, n);
+			prev = Arrays.copyOf(prev, n);
+			costs = Arrays.copyOf(costs, n);
+			slots = Arrays.copyOf(slots, n);
+		}
+		e = size++;
+		indexes[e] = index;
+		costs[e] = cost;
+		positions.put(index, e);
+		link(e, slotFor(cost));
+		return true;
+	}
+
+	private void link(int e, int slot) {
+		if (slot != buckets) inRing++;
+		slots[e] = slot;
+		prev[e] = NONE;
+		next[e] = heads[slot];
+		if (next[e] != NONE) prev[next[e]] = e;
+		heads[slot] = e;
+	}
+
+	private void unlink(int e) {
+		if (slots[e] != buckets) inRing--;
+		if (prev[e] != NONE) next[prev[e]] = next[e];
+		else heads[slots[e]] = next[e];
+		if (next[e] != NONE) prev[next[e]] = prev[e];
+	}
+
+	/** the entry to dequeue next:  the head of the least non-empty ring slot, moving base up to it */
+	private int first() {
+		Preconditions.checkState(size > 0, "Empty queue");
+		if (inRing == 0) {
+			rebase();
+		}
+		for (int i = 0; inRing > 0 && i < buckets; i++, base++) {
+			int head = heads[(int) (base % buckets)];
+			if (head != NONE) return head;
+		}
+		return heads[buckets];// only infinities left
+	}
+
+	/** The ring is empty:  restart it at the least finite cost on the overflow list, if any, and move what now fits into it. */
+	private void rebase() {
+		long least = Long.MAX_VALUE;
+		for (int e = heads[buckets]; e != NONE; e = next[e]) {
+			least = Math.min(least, bucket(costs[e]));
+		}
+		if (least == Long.MAX_VALUE) return;
+		base = least;
+		for (int e = heads[buckets]; e != NONE; ) {
+			int after = next[e];
+			int slot = slotFor(costs[e]);
+			if (slot != buckets) {
+				unlink(e);
+				link(e, slot);
+			}
+			e = after;
+		}
+	}
+
+	@Override
+	public boolean contains(int index) {
+		return positions.get(index) >= 0;
+	}
+
+	@Override
+	public int peek() {
+		return indexes[first()];
+	}
+
+	@Override
+	public float peekCost() {
+		return costs[first()];
+	}
+
+	@Override
+	public int poll() {
+		int e = first();
+		int rr = indexes[e];
+		unlink(e);
+		positions.remove(rr);
+		int last = --size;
+		if (e != last) {// the last entry fills the gap
+			indexes[e] = indexes[last];
+			costs[e] = costs[last];
+			slots[e] = slots[last];
+			next[e] = next[last];
+			prev[e] = prev[last];
+			if (prev[e] != NONE) next[prev[e]] = e;
+			else heads[slots[e]] = e;
+			if (next[e] != NONE) prev[next[e]] = e;
+			positions.put(indexes[e], e);
+		}
+		return rr;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int index(int k) {
+		return indexes[k];
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.djf.util;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.BitSet;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/** Which cells of a width x height raster have changed since the last take(), on a grid of cellEdge squares.
+ * Lets a save rewrite only what changed.
+ */
+public class DirtyTiles {
+
+	public final int width, height, cellEdge;
+	private final int across, down;
+	private final BitSet cells;
+
+	public DirtyTiles(int width, int height, int cellEdge) {
+		this.width = width;
+		this.height = height;
+		this.cellEdge = cellEdge;
+		across = (width + cellEdge - 1) / cellEdge;
+		down = (height + cellEdge - 1) / cellEdge;
+		cells = new BitSet(across * down);
+	}
+
+	/** Mark every cell overlapping the rectangle. */
+	public synchronized void mark(Rectangle r) {
+		Rectangle clip = r.intersection(new Rectangle(width, height));
+		if (clip.isEmpty()) return;
+		int cx1 = (clip.x + clip.width - 1) / cellEdge;
+		for (int cy = clip.y / cellEdge; cy <= (clip.y + clip.height - 1) / cellEdge; cy++) {
+			cells.set(cy * across + clip.x / cellEdge, cy * across + cx1 + 1);
+		}
+	}
+
+	public synchronized void markAll() {
+		cells.set(0, across * down);
+	}
+
+	/** Mark the cells where band 0 of the two same-size rasters differ. */
+	public void markChanged(Raster before, Raster after) {
+		int[] a = new int[width], b = new int[width];
+		for (int cy = 0; cy < down; cy++) {
+			BitSet changed = new BitSet(across);
+			for (int y = cy * cellEdge; y < Math.min(height, (cy + 1) * cellEdge); y++) {
+				before.getSamples(before.getMinX(), before.getMinY() + y, width, 1, 0, a);
+				after.getSamples(after.getMinX(), after.getMinY() + y, width, 1, 0, b);
+				for (int x = 0; x < width; x++) {
+					if (a[x] != b[x]) {
+						changed.set(x / cellEdge);
+						x = (x / cellEdge + 1) * cellEdge - 1;// on to the next cell
+					}
+				}
+			}
+			synchronized (this) {
+				for (int cx = changed.nextSetBit(0); cx >= 0; cx = changed.nextSetBit(cx + 1)) {
+					cells.set(cy * across + cx);
+				}
+			}
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return cells.isEmpty();
+	}
+
+	public synchronized int count() {
+		return cells.cardinality();
+	}
+
+	/** The dirty cells as rectangles, runs along each row of cells merged, and clear them all. */
+	public synchronized List<Rectangle> take() {
+		List<Rectangle> rr = Lists.newArrayList();
+		for (int i = cells.nextSetBit(0); i >= 0; ) {
+			int end = Math.min(cells.nextClearBit(i), (i / across + 1) * across);
+			int cy = i / across, cx0 = i % across, cx1 = (end - 1) % across;
+			int x = cx0 * cellEdge, y = cy * cellEdge;
+			rr.add(new Rectangle(x, y, Math.min(width, (cx1 + 1) * cellEdge) - x, Math.min(height, y + cellEdge) - y));
+			i = cells.nextSetBit(end);
+		}
+		cells.clear();
+		return rr;
+	}
+
+}
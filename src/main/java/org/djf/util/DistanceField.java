@@ -0,0 +1,120 @@
+package org.djf.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/** A width x height grid of float costs, 0 where unset, stored in TILE x TILE tiles allocated only when first written.
+ * clear() is O(1):  it starts a new generation, and a tile from an older one reads as 0 until written again,
+ * when it's zeroed.  So a Dijkstra suggestion pays only for the neighbourhood it reaches, not the whole image.
+ * Optionally costs are kept in 16 bits as bfloat16, the top half of the float: 8 bits of mantissa,
+ * rounded up so a cost never reads below what was stored, so a cell still queued never reads as under the
+ * threshold, nor a positive cost as 0; infinity, 0 and small powers of 2 like SEED_COST stay exact.
+ * Rounded costs can't tell which cells settled, so that comes from SettledHistory.
+ */
+public class DistanceField {
+
+	private static final int SHIFT = 6;
+	public static final int TILE = 1 << SHIFT;
+	private static final int MASK = TILE - 1;
+
+	public final int width, height;
+	public final boolean quantized;
+	private final int across;
+	private final float[][] floatTiles;
+	private final short[][] shortTiles;
+	/** the generation each tile was last written in */
+	private final int[] written;
+	private int generation = 1;
+
+	public DistanceField(int width, int height, boolean quantized) {
+		Preconditions.checkArgument(width > 0 && height > 0, "Bad size %s x %s", width, height);
+		this.width = width;
+		this.height = height;
+		this.quantized = quantized;
+		across = (width + MASK) >> SHIFT;
+		int n = across * ((height + MASK) >> SHIFT);
+		floatTiles = quantized ? null : new float[n][];
+		shortTiles = quantized ? new short[n][] : null;
+		written = new int[n];
+	}
+
+	/** Every cost back to 0. */
+	public void clear() {
+		if (++generation == Integer.MAX_VALUE) {// so old stamps can't come back into date
+			Arrays.fill(written, 0);
+			generation = 1;
+		}
+	}
+
+	private int tile(int x, int y) {
+		return (y >> SHIFT) * across + (x >> SHIFT);
+	}
+
+	private static int within(int x, int y) {
+		return (y & MASK) << SHIFT | (x & MASK);
+	}
+
+	public float get(int x, int y) {
+		int t = tile(x, y);
+		if (written[t] != generation) return 0;
+		if (quantized) {
+			short[] s = shortTiles[t];
+			return s == null ? 0 : Float.intBitsToFloat(s[within(x, y)] << 16);
+		}
+		float[] f = floatTiles[t];
+		return f == null ? 0 : f[within(x, y)];
+	}
+
+	public void set(int x, int y, float cost) {
+		int t = ready(tile(x, y));
+		if (quantized) {
+			shortTiles[t][within(x, y)] = toBfloat16(cost);
+		} else {
+			floatTiles[t][within(x, y)] = cost;
+		}
+	}
+
+	/** the top 16 bits of the non-negative cost, rounded up:  carrying into the exponent is still the next bfloat16 */
+	private static short toBfloat16(float cost) {
+		int bits = Float.floatToRawIntBits(cost);
+		if ((bits & 0xffff) != 0 && !Float.isNaN(cost)) {
+			bits += 0x10000;
+		}
+		return (short) (bits >>> 16);
+	}
+
+	/** Set the w x h rectangle at x, y, clipped to the grid, to cost. */
+	public void fill(int x, int y, int w, int h, float cost) {
+		int xcap = Math.min(x + w, width), ycap = Math.min(y + h, height);
+		for (int j = Math.max(0, y); j < ycap; j++) {
+			for (int i = Math.max(0, x); i < xcap; i++) {
+				set(i, j, cost);
+			}
+		}
+	}
+
+	/** tile t, allocated and current, zeroing it if from an older generation */
+	private int ready(int t) {
+		if (written[t] == generation) return t;
+		if (quantized) {
+			if (shortTiles[t] == null) shortTiles[t] = new short[TILE * TILE];
+			else Arrays.fill(shortTiles[t], (short) 0);
+		} else {
+			if (floatTiles[t] == null) floatTiles[t] = new float[TILE * TILE];
+			else Arrays.fill(floatTiles[t], 0);
+		}
+		written[t] = generation;
+		return t;
+	}
+
+	/** bytes of tiles allocated so far */
+	public long allocatedBytes() {
+		long n = 0;
+		for (int t = 0; t < written.length; t++) {
+			if (quantized ? shortTiles[t] != null : floatTiles[t] != null) n += TILE * TILE * (quantized ? 2 : 4);
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.djf.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/** Binary min-heap of int indexes by float cost, in parallel primitive arrays, with decrease-key:
+ * a map from index to heap position says where to sift up from.  Exact order; O(log n) offer & poll.
+ */
+public class FloatIndexHeap implements FrontierQueue {
+
+	private int[] indexes;
+	private float[] costs;
+	private int size;
+	private final IntPositions positions;
+
+	public FloatIndexHeap(int capacity) {
+		indexes = new int[Math.max(16, capacity)];
+		costs = new float[indexes.length];
+		positions = new IntPositions(indexes.length);
+	}
+
+	private FloatIndexHeap(FloatIndexHeap other) {
+		indexes = Arrays.copyOf(other.indexes, Math.max(16, other.size));
+		costs = Arrays.copyOf(other.costs, indexes.length);
+		size = other.size;
+		positions = other.positions.copy();
+	}
+
+	@Override
+	public FrontierQueue copy() {
+		return new FloatIndexHeap(this);
+	}
+
+	@Override
+	public boolean offer(int index, float cost) {
+		int at = positions.get(index);
+		if (at >= 0) {
+			if (!(cost < costs[at])) return false;
+			costs[at] = cost;
+			siftUp(at);
+			return true;
+		}
+		if (size == indexes.length) {
+			indexes = Arrays.copyOf(indexes, 2 * size);
+			costs = Arrays.copyOf(costs, 2 * size);
+		}
+		indexes[size] = index;
+		costs[size] = cost;
+		positions.put(index, size);
+		siftUp(size++);
+		return true;
+	}
+
+	@Override
+	public boolean contains(int index) {
+		return positions.get(index) >= 0;
+	}
+
+	@Override
+	public int peek() {
+		Preconditions.checkState(size > 0, "Empty queue");
+		return indexes[0];
+	}
+
+	@Override
+	public float peekCost() {
+		Preconditions.checkState(size > 0, "Empty queue");
+		return costs[0];
+	}
+
+	@Override
+	public int poll() {
+		int rr = peek();
+		positions.remove(rr);
+		if (--size > 0) {
+			move(size, 0);
+			siftDown(0);
+		}
+		return rr;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int index(int k) {
+		return indexes[k];
+	}
+
+	private void siftUp(int at) {
+		int index = indexes[at];
+		float cost = costs[at];
+		while (at > 0) {
+			int parent = (at - 1) >>> 1;
+			if (!(cost < costs[parent])) break;
+			move(parent, at);
+			at = parent;
+		}
+		place(index, cost, at);
+	}
+
+	private void siftDown(int at) {
+		int index = indexes[at];
+		float cost = costs[at];
+		for (int child = 2 * at + 1; child < size; child = 2 * at + 1) {
+			if (child + 1 < size && costs[child + 1] < costs[child]) child++;
+			if (!(costs[child] < cost)) break;
+			move(child, at);
+			at = child;
+		}
+		place(index, cost, at);
+	}
+
+	private void move(int from, int to) {
+		place(indexes[from], costs[from], to);
+	}
+
+	private void place(int index, float cost, int at) {
+		indexes[at] = index;
+		costs[at] = cost;
+		positions.put(index, at);
+	}
+
+}
@@ -0,0 +1,35 @@
+package org.djf.util;
+
+/** Least-cost-first queue of int indexes (e.g. packed pixel positions) by float cost, for growing a region Dijkstra-style.
+ * Each index is queued at most once, and offering it again at a lower cost lowers it in place (decrease-key).
+ * Implementations keep everything in primitive arrays, so once grown they queue and dequeue without allocating.
+ */
+public interface FrontierQueue {
+
+	/** Queue index at cost, or lower it to cost if queued at more.  Returns whether anything changed. */
+	boolean offer(int index, float cost);
+
+	boolean contains(int index);
+
+	/** the least-cost index, still queued */
+	int peek();
+
+	/** the cost of peek() */
+	float peekCost();
+
+	/** remove and return the least-cost index */
+	int poll();
+
+	int size();
+
+	default boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** the k-th index queued, k < size(), in no particular order:  for iterating without an Iterator */
+	int index(int k);
+
+	/** an independent copy, e.g. to keep as a snapshot while this one grows on */
+	FrontierQueue copy();
+
+}
@@ -0,0 +1,176 @@
+package org.djf.util;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.google.common.base.Preconditions;
+
+/** On-demand tiles of a (possibly huge) image file, read by region instead of decoding the whole file.
+ *
+ * Tiles are addressed by a power-of-two subsampling level and a tile index.  A tile at level f covers
+ * TILE_EDGE*f source pixels on a side and is read via ImageReadParam.setSourceRegion with subsampling f,
+ * so it always decodes to at most TILE_EDGE x TILE_EDGE pixels.
+ * Decoded tiles are kept in an LRU cache bounded by bytes, so memory stays flat regardless of file size.
+ */
+public class ImageTileCache {
+
+	/** edge of a decoded tile, in tile pixels (not source pixels) */
+	public static final int TILE_EDGE = 512;
+
+	public final File file;
+	/** full-resolution dimensions of the source image */
+	public final int width, height;
+
+	private final long maxBytes;
+	private long cachedBytes = 0;
+	/** access-ordered, so iteration starts at the least recently used tile */
+	private final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+	private final Set<Long> pending = Collections.synchronizedSet(new HashSet<>());
+
+	/** ImageReader is not thread safe, so all decoding goes through this single reader and thread */
+	private final ImageInputStream inputStream;
+	private final ImageReader reader;
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "ImageTileCache loader");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public ImageTileCache(File file, long maxBytes) throws IOException {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.inputStream = ImageIO.createImageInputStream(file);
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(inputStream);
+		if (!readers.hasNext()) {
+			inputStream.close();
+			throw new IOException("No reader available for " + file);
+		}
+		this.reader = readers.next();
+		reader.setInput(inputStream, false, true);// tiles are read in any order; ignore metadata
+		this.width = reader.getWidth(0);
+		this.height = reader.getHeight(0);
+	}
+
+	/** Largest power-of-two subsampling level that still gives at least one tile pixel per screen pixel. */
+	public static int levelFor(double sourcePixelsPerScreenPixel) {
+		int f = 1;
+		while (f * 2 <= sourcePixelsPerScreenPixel) {
+			f *= 2;
+		}
+		return f;
+	}
+
+	/** Source pixels covered by one tile edge at level f */
+	public static int tileSpan(int f) {
+		return TILE_EDGE * f;
+	}
+
+	/** Return the tile if already decoded, else null.  Never touches the disk. */
+	public synchronized BufferedImage getCached(int f, int tx, int ty) {
+		return tiles.get(key(f, tx, ty));
+	}
+
+	/** Decode the tile in the background unless cached or already on its way; then run onLoaded. */
+	public void request(int f, int tx, int ty, Runnable onLoaded) {
+		long key = key(f, tx, ty);
+		synchronized (this) {
+			if (tiles.containsKey(key)) return;
+		}
+		if (!pending.add(key)) return;
+		loader.submit(() -> {
+			try {
+				getTile(f, tx, ty);
+				onLoaded.run();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			} finally {
+				pending.remove(key);
+			}
+		});
+	}
+
+	/** Return the tile, reading it from the file if needed.  Blocks while decoding. */
+	public BufferedImage getTile(int f, int tx, int ty) throws IOException {
+		BufferedImage tile = getCached(f, tx, ty);
+		if (tile != null) return tile;
+		tile = readRegion(f, tx, ty);
+		put(key(f, tx, ty), tile);
+		return tile;
+	}
+
+	private BufferedImage readRegion(int f, int tx, int ty) throws IOException {
+		Preconditions.checkArgument(f >= 1 && Integer.bitCount(f) == 1, "Level must be a power of two: %s", f);
+		int span = tileSpan(f);
+		Rectangle region = new Rectangle(tx * span, ty * span, span, span)
+				.intersection(new Rectangle(0, 0, width, height));
+		Preconditions.checkArgument(!region.isEmpty(), "Tile %s,%s at level %s is outside the image", tx, ty, f);
+		BufferedImage raw;
+		synchronized (reader) {
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(region);
+			param.setSourceSubsampling(f, f, 0, 0);
+			raw = reader.read(0, param);
+		}
+		return SwingUtil.setRGBNoAlpha(raw);// same look as the working image
+	}
+
+	private synchronized void put(long key, BufferedImage tile) {
+		BufferedImage old = tiles.put(key, tile);
+		if (old != null) cachedBytes -= bytesOf(old);
+		cachedBytes += bytesOf(tile);
+		Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+		while (cachedBytes > maxBytes && tiles.size() > 1 && it.hasNext()) {
+			Map.Entry<Long, BufferedImage> eldest = it.next();
+			if (eldest.getKey() == key) continue;
+			cachedBytes -= bytesOf(eldest.getValue());
+			it.remove();
+		}
+	}
+
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	/** Drop all tiles and release the reader. */
+	public void close() {
+		loader.shutdownNow();
+		synchronized (this) {
+			tiles.clear();
+			cachedBytes = 0;
+		}
+		synchronized (reader) {
+			reader.dispose();
+			try {
+				inputStream.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private static long bytesOf(BufferedImage img) {
+		return 4L * img.getWidth() * img.getHeight();// TYPE_INT_RGB
+	}
+
+	/** pack level (exponent), tx, ty into one long */
+	private static long key(int f, int tx, int ty) {
+		long level = Integer.numberOfTrailingZeros(f);
+		return (level << 56) | ((long) tx << 28) | ty;
+	}
+
+}
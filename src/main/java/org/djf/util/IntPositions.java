@@ -0,0 +1,95 @@
+package org.djf.util;
+
+import java.util.Arrays;
+
+/** Open-addressing map from non-negative int keys to ints, e.g. where each queued index sits in a FrontierQueue's arrays.
+ * Linear probing, with backward-shift deletion so there are no tombstones; doubles at half full.
+ */
+public class IntPositions {
+
+	private static final int EMPTY = -1;
+
+	private int[] keys, values;
+	private int size, mask, shift;
+
+	public IntPositions(int capacity) {
+		int n = Integer.highestOneBit(Math.max(16, 2 * capacity - 1)) << 1;
+		keys = new int[n];
+		values = new int[n];
+		Arrays.fill(keys, EMPTY);
+		mask = n - 1;
+		shift = Integer.numberOfLeadingZeros(mask);
+	}
+
+	private IntPositions(IntPositions other) {
+		keys = other.keys.clone();
+		values = other.values.clone();
+		size = other.size;
+		mask = other.mask;
+		shift = other.shift;
+	}
+
+	public IntPositions copy() {
+		return new IntPositions(this);
+	}
+
+	/** Fibonacci hashing, so neighbouring pixels spread out */
+	private int slot(int key) {
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	/** the position of key, or -1 */
+	public int get(int key) {
+		for (int i = slot(key); ; i = i + 1 & mask) {
+			if (keys[i] == key) return values[i];
+			if (keys[i] == EMPTY) return -1;
+		}
+	}
+
+	public void put(int key, int value) {
+		int i = slot(key);
+		for (; keys[i] != EMPTY; i = i + 1 & mask) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length / 2) {
+			rehash(2 * keys.length);
+		}
+	}
+
+	public void remove(int key) {
+		int i = slot(key);
+		for (; keys[i] != key; i = i + 1 & mask) {
+			if (keys[i] == EMPTY) return;
+		}
+		size--;
+		// shift back any later key in the run that would no longer be found past the gap
+		for (int j = i + 1 & mask; keys[j] != EMPTY; j = j + 1 & mask) {
+			int home = slot(keys[j]);
+			if ((j - home & mask) >= (j - i & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		keys[i] = EMPTY;
+	}
+
+	private void rehash(int n) {
+		int[] oldKeys = keys, oldValues = values;
+		keys = new int[n];
+		values = new int[n];
+		Arrays.fill(keys, EMPTY);
+		mask = n - 1;
+		shift = Integer.numberOfLeadingZeros(mask);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package org.djf.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/** Extra single-band layers (DEM, NIR, slope...) as aligned primitive planes of exactly width x height,
+ * so reading layer k at a pixel is one array index, with no Raster or exception in the way.
+ *
+ * Byte layers stay bytes; 16-bit layers stay shorts; int, float & double layers are quantized
+ * linearly into 16 bits over their range, so no layer costs more than 2 bytes per pixel.
+ * Layers a few pixels smaller than the image are padded with nodata, and nodata reads as NODATA_FEATURE.
+ */
+public class LayerStack {
+
+	/** feature value for nodata & padding, as the old out-of-bounds fallback gave */
+	public static final double NODATA_FEATURE = 0.0;
+	/** quantized sample reserved for nodata; real values map to 0..QUANTIZED_MAX */
+	private static final int QUANTIZED_NODATA = 0xffff;
+	private static final int QUANTIZED_MAX = 0xfffe;
+
+	private enum Kind { BYTE, USHORT, SHORT, QUANTIZED }
+
+	private static class Layer {
+		final String name;
+		final Kind kind;
+		final byte[] bytes;
+		final short[] shorts;
+		/** stored sample that means nodata, or Integer.MIN_VALUE if none */
+		final int nodata;
+		/** value = offset + scale * sample, for QUANTIZED */
+		final double offset, scale;
+
+		Layer(String name, Kind kind, byte[] bytes, short[] shorts, int nodata, double offset, double scale) {
+			this.name = name;
+			this.kind = kind;
+			this.bytes = bytes;
+			this.shorts = shorts;
+			this.nodata = nodata;
+			this.offset = offset;
+			this.scale = scale;
+		}
+	}
+
+	public final int width, height;
+	private final List<Layer> layers = Lists.newArrayList();
+
+	public LayerStack(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	public int size() {
+		return layers.size();
+	}
+
+	public String getName(int k) {
+		return layers.get(k).name;
+	}
+
+	public long getBytes() {
+		long rr = 0;
+		for (Layer layer : layers) {
+			rr += layer.bytes != null ? layer.bytes.length : 2L * layer.shorts.length;
+		}
+		return rr;
+	}
+
+	/** Add band 0 of img, which may be up to `slack` pixels off in each dimension.
+	 * nodata is in the layer's own units; NaN if it declares none (float NaNs are nodata regardless).
+	 */
+	public void add(String name, BufferedImage img, double nodata, int slack) {
+		Raster raster = img.getRaster();
+		int w = raster.getWidth(), h = raster.getHeight();
+		Preconditions.checkArgument(Math.abs(w - width) < slack && Math.abs(h - height) < slack,
+				"The extra layer size does not match the image size, is not within %s pixels.", slack);
+		int cw = Math.min(w, width), ch = Math.min(h, height);
+		int n = width * height;
+		switch (raster.getTransferType()) {
+			case DataBuffer.TYPE_BYTE: {
+				boolean hasNodata = nodata == (int) nodata && nodata >= 0 && nodata <= 255;
+				byte[] plane = new byte[n];
+				int code = hasNodata ? (int) nodata : Integer.MIN_VALUE;
+				fillInts(raster, cw, ch, hasNodata ? code : 0, (i, v) -> plane[i] = (byte) v);
+				layers.add(new Layer(name, Kind.BYTE, plane, null, code, 0, 1));
+				break;
+			}
+			case DataBuffer.TYPE_USHORT:
+			case DataBuffer.TYPE_SHORT: {
+				boolean signed = raster.getTransferType() == DataBuffer.TYPE_SHORT;
+				int lo = signed ? Short.MIN_VALUE : 0, hi = signed ? Short.MAX_VALUE : 0xffff;
+				boolean hasNodata = nodata == (int) nodata && nodata >= lo && nodata <= hi;
+				short[] plane = new short[n];
+				int code = hasNodata ? (int) nodata : Integer.MIN_VALUE;
+				fillInts(raster, cw, ch, hasNodata ? code : 0, (i, v) -> plane[i] = (short) v);
+				layers.add(new Layer(name, signed ? Kind.SHORT : Kind.USHORT, null, plane, code, 0, 1));
+				break;
+			}
+			default:
+				layers.add(quantize(name, raster, cw, ch, nodata));
+		}
+	}
+
+	private interface IntSink {
+		void put(int index, int value);
+	}
+
+	/** copy the cw x ch overlap row by row, padding the rest with `pad` */
+	private void fillInts(Raster raster, int cw, int ch, int pad, IntSink sink) {
+		int[] row = new int[cw];
+		for (int y = 0; y < height; y++) {
+			if (y < ch) {
+				raster.getSamples(raster.getMinX(), raster.getMinY() + y, cw, 1, 0, row);
+			}
+			for (int x = 0; x < width; x++) {
+				sink.put(y * width + x, y < ch && x < cw ? row[x] : pad);
+			}
+		}
+	}
+
+	/** NaN, or nodata compared as float32:  GDAL's nodata text, e.g. -3.4028234663852886e+38, parses to a double
+	 * that a float sample widened to double never equals.  NaN nodata declares none, but NaN samples are nodata anyway. */
+	private static boolean isNodata(double v, double nodata) {
+		return Double.isNaN(v) || !Double.isNaN(nodata) && (float) v == (float) nodata;
+	}
+
+	/** two passes: find the range of the valid values, then map them to 0..QUANTIZED_MAX */
+	private Layer quantize(String name, Raster raster, int cw, int ch, double nodata) {
+		double[] row = new double[cw];
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (int y = 0; y < ch; y++) {
+			raster.getSamples(raster.getMinX(), raster.getMinY() + y, cw, 1, 0, row);
+			for (double v : row) {
+				if (isNodata(v, nodata)) continue;
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+		}
+		if (min > max) {// nothing valid
+			min = max = 0;
+		}
+		double scale = max > min ? (max - min) / QUANTIZED_MAX : 1;
+		short[] plane = new short[width * height];
+		Arrays.fill(plane, (short) QUANTIZED_NODATA);
+		for (int y = 0; y < ch; y++) {
+			raster.getSamples(raster.getMinX(), raster.getMinY() + y, cw, 1, 0, row);
+			for (int x = 0; x < cw; x++) {
+				double v = row[x];
+				if (isNodata(v, nodata)) continue;
+				plane[y * width + x] = (short) Math.round((v - min) / scale);
+			}
+		}
+		System.out.printf("LayerStack: quantized %s over [%g, %g] in steps of %g\n", name, min, max, scale);
+		return new Layer(name, Kind.QUANTIZED, null, plane, QUANTIZED_NODATA, min, scale);
+	}
+
+	/** Layer k's value at pixel index y * width + x, in the layer's units; NODATA_FEATURE where nodata. */
+	public double value(int k, int index) {
+		Layer layer = layers.get(k);
+		int sample;
+		switch (layer.kind) {
+			case BYTE: sample = layer.bytes[index] & 0xff; break;
+			case SHORT: sample = layer.shorts[index]; break;
+			default: sample = layer.shorts[index] & 0xffff; break;
+		}
+		if (sample == layer.nodata) return NODATA_FEATURE;
+		return layer.kind == Kind.QUANTIZED ? layer.offset + layer.scale * sample : sample;
+	}
+
+	/** Write every layer's value at x, y into fv from offset on. */
+	public void fill(int x, int y, double[] fv, int offset) {
+		int index = y * width + x;
+		for (int k = 0; k < layers.size(); k++) {
+			fv[offset + k] = value(k, index);
+		}
+	}
+
+}
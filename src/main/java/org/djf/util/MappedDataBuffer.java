@@ -0,0 +1,138 @@
+package org.djf.util;
+
+import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.base.Preconditions;
+
+/** A TYPE_BYTE DataBuffer whose banks live in memory-mapped scratch files instead of the Java heap.
+ *
+ * Drop-in for DataBufferByte under any byte SampleModel, so a BufferedImage over it works with the usual
+ * Raster, ColorModel and Graphics2D code, just via getElem/setElem rather than a byte[].
+ * The OS page cache decides what stays in RAM, so big sessions are limited by disk rather than -Xmx.
+ * Each bank is mapped in MAP_CHUNK pieces; the scratch file is unlinked once mapped where the OS allows.
+ */
+public class MappedDataBuffer extends DataBuffer {
+
+	private static final int CHUNK_BITS = 30;
+	/** bytes per mapping, well under the 2GB limit of one MappedByteBuffer */
+	public static final int MAP_CHUNK = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = MAP_CHUNK - 1;
+
+	/** [bank][chunk] */
+	private final MappedByteBuffer[][] chunks;
+
+	/** numBanks banks of size bytes each, zero-filled, in scratch files in dir */
+	public MappedDataBuffer(Path dir, int size, int numBanks) throws IOException {
+		super(TYPE_BYTE, size, numBanks);
+		Files.createDirectories(dir);
+		chunks = new MappedByteBuffer[numBanks][];
+		for (int b = 0; b < numBanks; b++) {
+			chunks[b] = mapScratch(dir, size);
+		}
+	}
+
+	private static MappedByteBuffer[] mapScratch(Path dir, int size) throws IOException {
+		Path file = Files.createTempFile(dir, "mlpaint", ".scratch");
+		int n = Math.max(1, (size + MAP_CHUNK - 1) >>> CHUNK_BITS);
+		MappedByteBuffer[] rr = new MappedByteBuffer[n];
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			for (int c = 0; c < n; c++) {
+				long offset = (long) c << CHUNK_BITS;
+				rr[c] = ch.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(MAP_CHUNK, size - offset));
+			}
+		}
+		try {
+			Files.delete(file);// the mappings keep it alive
+		} catch (IOException ex) {
+			file.toFile().deleteOnExit();// e.g. Windows, which won't delete a mapped file
+		}
+		return rr;
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		return chunks[bank][i >>> CHUNK_BITS].get(i & CHUNK_MASK) & 0xff;
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		chunks[bank][i >>> CHUNK_BITS].put(i & CHUNK_MASK, (byte) val);
+	}
+
+	/** Copy all of src's banks into ours, in bulk.  src must be TYPE_BYTE with the same banks & size. */
+	public void copyFrom(DataBuffer src) {
+		Preconditions.checkArgument(src.getDataType() == TYPE_BYTE && src.getNumBanks() == getNumBanks()
+				&& src.getSize() == getSize(), "Incompatible DataBuffer");
+		for (int b = 0; b < getNumBanks(); b++) {
+			for (int c = 0; c < chunks[b].length; c++) {
+				ByteBuffer to = chunks[b][c].duplicate();
+				to.clear();
+				if (src instanceof MappedDataBuffer) {
+					ByteBuffer from = ((MappedDataBuffer) src).chunks[b][c].duplicate();
+					from.clear();
+					to.put(from);
+				} else if (src instanceof DataBufferByte) {
+					to.put(((DataBufferByte) src).getData(b), src.getOffsets()[b] + (c << CHUNK_BITS), to.remaining());
+				} else {
+					int base = c << CHUNK_BITS;
+					for (int i = 0; i < to.capacity(); i++) {
+						to.put(i, (byte) src.getElem(b, base + i));
+					}
+				}
+			}
+		}
+	}
+
+	/** a TYPE_BYTE_BINARY-style image (1, 2 or 4 bits per pixel, per the colormap), zero-filled */
+	public static BufferedImage newBinaryImage(Path dir, int width, int height, IndexColorModel icm) throws IOException {
+		SampleModel sm = new MultiPixelPackedSampleModel(TYPE_BYTE, width, height, icm.getPixelSize());
+		MappedDataBuffer data = new MappedDataBuffer(dir, ((MultiPixelPackedSampleModel) sm).getScanlineStride() * height, 1);
+		return new BufferedImage(icm, Raster.createWritableRaster(sm, data, new Point(0, 0)), false, null);
+	}
+
+	/** like TYPE_BYTE_GRAY, zero-filled */
+	public static BufferedImage newGrayImage(Path dir, int width, int height) throws IOException {
+		SampleModel sm = new PixelInterleavedSampleModel(TYPE_BYTE, width, height, 1, width, new int[] {0});
+		MappedDataBuffer data = new MappedDataBuffer(dir, width * height, 1);
+		ComponentColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+				Transparency.OPAQUE, TYPE_BYTE);
+		return new BufferedImage(cm, Raster.createWritableRaster(sm, data, new Point(0, 0)), false, null);
+	}
+
+	/** A mapped copy of a byte image whose raster is not a child, keeping its SampleModel & ColorModel. */
+	public static BufferedImage copyOf(Path dir, BufferedImage img) {
+		WritableRaster raster = img.getRaster();
+		Preconditions.checkArgument(raster.getParent() == null && raster.getTransferType() == TYPE_BYTE,
+				"Can only map whole byte rasters");
+		DataBuffer src = raster.getDataBuffer();
+		try {
+			MappedDataBuffer data = new MappedDataBuffer(dir, src.getSize(), src.getNumBanks());
+			data.copyFrom(src);
+			WritableRaster copy = Raster.createWritableRaster(raster.getSampleModel(), data, new Point(0, 0));
+			return new BufferedImage(img.getColorModel(), copy, img.isAlphaPremultiplied(), null);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+}
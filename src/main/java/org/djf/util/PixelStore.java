@@ -0,0 +1,210 @@
+package org.djf.util;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import com.google.common.base.Preconditions;
+
+/** An RGB image as planar byte arrays, one per band, indexed y * width + x:  3 bytes per pixel instead of 4,
+ * and per-pixel reads that are a single array index, with no Color or int[] allocated.
+ *
+ * asImage() is a BufferedImage over the very same planes (BandedSampleModel, sRGB ComponentColorModel),
+ * for code that wants a BufferedImage.  Java2D has no fast path to draw it, so to draw, copyRGB what's visible.  Bands after the first 3 are optional extras,
+ * ignored by the color model.  The planes may instead be off-heap in a MappedDataBuffer, see mapped().
+ */
+public class PixelStore {
+
+	public static final int RED = 0, GREEN = 1, BLUE = 2;
+
+	public final int width, height;
+	/** null when the planes are off-heap */
+	private final byte[][] planes;
+	private final DataBuffer data;
+	private final BufferedImage image;
+
+	/** blank, with 3 bands or more */
+	public PixelStore(int width, int height, int bands) {
+		this(width, height, newPlanes(bands, (long) width * height));
+	}
+
+	/** over these planes, without copying */
+	public PixelStore(int width, int height, byte[][] planes) {
+		Preconditions.checkArgument(planes.length >= 3, "Need at least R, G, B planes: %s", planes.length);
+		for (byte[] plane : planes) {
+			Preconditions.checkArgument(plane.length >= width * height, "Plane too small for %s x %s", width, height);
+		}
+		this.width = width;
+		this.height = height;
+		this.planes = planes;
+		this.data = new DataBufferByte(planes, width * height);
+		this.image = newImage(width, height, data);
+	}
+
+	private PixelStore(BufferedImage image, DataBuffer data) {
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.planes = data instanceof DataBufferByte ? ((DataBufferByte) data).getBankData() : null;
+		this.data = data;
+		this.image = image;
+	}
+
+	/** A copy of src with its planes off the heap, in scratch files in dir. */
+	public static PixelStore mapped(PixelStore src, Path dir) throws IOException {
+		MappedDataBuffer data = new MappedDataBuffer(dir, src.width * src.height, src.getNumBands());
+		data.copyFrom(src.data);
+		return new PixelStore(newImage(src.width, src.height, data), data);
+	}
+
+	private static byte[][] newPlanes(int bands, long n) {
+		Preconditions.checkArgument(n <= Integer.MAX_VALUE, "Too many pixels for one plane: %s", n);
+		return new byte[bands][(int) n];
+	}
+
+	/** A BufferedImage showing banks 0-2 of the data as sRGB. */
+	private static BufferedImage newImage(int width, int height, DataBuffer data) {
+		int bands = data.getNumBanks();
+		int[] bankIndices = new int[bands];
+		int[] offsets = new int[bands];
+		for (int b = 0; b < bands; b++) bankIndices[b] = b;
+		SampleModel sm = new BandedSampleModel(DataBuffer.TYPE_BYTE, width, height, width, bankIndices, offsets);
+		WritableRaster raster = Raster.createWritableRaster(sm, data, null);
+		if (bands > 3) {// the color model only knows about R, G, B
+			raster = raster.createWritableChild(0, 0, width, height, 0, 0, new int[] {RED, GREEN, BLUE});
+		}
+		ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		return new BufferedImage(cm, raster, false, null);
+	}
+
+	/** The store behind an image made by asImage() (or laid out just like one) without copying; else a planar copy. */
+	public static PixelStore wrap(BufferedImage img) {
+		DataBuffer data = sharedData(img);
+		return data != null ? new PixelStore(img, data) : fromImage(img);
+	}
+
+	/** the image's data, if it is 3 unpadded byte banks in R, G, B order, on or off the heap */
+	private static DataBuffer sharedData(BufferedImage img) {
+		Raster raster = img.getRaster();
+		DataBuffer data = raster.getDataBuffer();
+		if (!(data instanceof DataBufferByte || data instanceof MappedDataBuffer) || !(raster.getSampleModel() instanceof BandedSampleModel)
+				|| !(img.getColorModel() instanceof ComponentColorModel) || img.getColorModel().hasAlpha()
+				|| raster.getNumBands() != 3 || raster.getParent() != null) {
+			return null;
+		}
+		BandedSampleModel sm = (BandedSampleModel) raster.getSampleModel();
+		if (sm.getScanlineStride() != img.getWidth() || data.getNumBanks() != 3) return null;
+		for (int b = 0; b < 3; b++) {
+			if (sm.getBankIndices()[b] != b || sm.getBandOffsets()[b] != 0 || data.getOffsets()[b] != 0) return null;
+		}
+		return data;
+	}
+
+	/** Copy any image into planes, compositing translucent pixels over white as SwingUtil.setRGBNoAlpha does. */
+	public static PixelStore fromImage(BufferedImage img) {
+		int w = img.getWidth(), h = img.getHeight();
+		PixelStore rr = new PixelStore(w, h, 3);
+		byte[] r = rr.planes[RED], g = rr.planes[GREEN], b = rr.planes[BLUE];
+		boolean alpha = img.getColorModel().hasAlpha();
+		int[] row = new int[w];
+		for (int y = 0; y < h; y++) {
+			img.getRGB(0, y, w, 1, row, 0, w);
+			int i = y * w;
+			for (int x = 0; x < w; x++, i++) {
+				int argb = row[x];
+				if (alpha) {
+					int a = argb >>> 24, white = 255 * (255 - a);
+					r[i] = (byte) ((((argb >> 16) & 0xff) * a + white) / 255);
+					g[i] = (byte) ((((argb >> 8) & 0xff) * a + white) / 255);
+					b[i] = (byte) (((argb & 0xff) * a + white) / 255);
+				} else {
+					r[i] = (byte) (argb >> 16);
+					g[i] = (byte) (argb >> 8);
+					b[i] = (byte) argb;
+				}
+			}
+		}
+		return rr;
+	}
+
+	public BufferedImage asImage() {
+		return image;
+	}
+
+	public int getNumBands() {
+		return data.getNumBanks();
+	}
+
+	/** the band's samples, indexed y * width + x; writes show in asImage().  null if mapped. */
+	public byte[] plane(int band) {
+		return planes == null ? null : planes[band];
+	}
+
+	public boolean isMapped() {
+		return planes == null;
+	}
+
+	public int index(int x, int y) {
+		return y * width + x;
+	}
+
+	/** sample of the band at index y * width + x */
+	public int get(int band, int index) {
+		return planes != null ? planes[band][index] & 0xff : data.getElem(band, index);
+	}
+
+	public int get(int band, int x, int y) {
+		return get(band, y * width + x);
+	}
+
+	public int red(int x, int y) {
+		return get(RED, y * width + x);
+	}
+
+	public int green(int x, int y) {
+		return get(GREEN, y * width + x);
+	}
+
+	public int blue(int x, int y) {
+		return get(BLUE, y * width + x);
+	}
+
+	/** packed 0xRRGGBB, as BufferedImage.getRGB without the alpha */
+	public int getRGB(int x, int y) {
+		int i = y * width + x;
+		return get(RED, i) << 16 | get(GREEN, i) << 8 | get(BLUE, i);
+	}
+
+	/** Pack the w x h rectangle at x, y into dst as 0xRRGGBB, rows stride apart:  e.g. into a TYPE_INT_RGB image,
+	 * which Java2D draws fast, unlike asImage(). */
+	public void copyRGB(int x, int y, int w, int h, int[] dst, int stride) {
+		for (int j = 0; j < h; j++) {
+			int i = (y + j) * width + x, o = j * stride;
+			if (planes != null) {
+				byte[] r = planes[RED], g = planes[GREEN], b = planes[BLUE];
+				for (int k = 0; k < w; k++, i++) {
+					dst[o + k] = (r[i] & 0xff) << 16 | (g[i] & 0xff) << 8 | (b[i] & 0xff);
+				}
+			} else {
+				for (int k = 0; k < w; k++, i++) {
+					dst[o + k] = data.getElem(RED, i) << 16 | data.getElem(GREEN, i) << 8 | data.getElem(BLUE, i);
+				}
+			}
+		}
+	}
+
+	public long getBytes() {
+		return (long) getNumBands() * width * height;
+	}
+
+}
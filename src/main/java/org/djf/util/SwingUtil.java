@@ -7,17 +7,18 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.event.IIOReadProgressListener;
 import javax.imageio.metadata.IIOMetadata;
-import javax.imageio.plugins.tiff.TIFFDirectory;
 import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 
@@ -25,7 +26,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.units.qual.C;
 import org.djf.mlpaint.ImageResamplingDims;
-import org.djf.mlpaint.MyPoint;
 import org.djf.mlpaint.MLPaintPanel;
 
 import static org.djf.util.SwingApp.reportTime;
@@ -35,6 +35,9 @@ import static org.djf.util.SwingApp.reportTime;
  */
 public class SwingUtil {
 
+	/** target size of one strip in boxDownsampleImage, in source pixels */
+	private static final int STRIP_PIXELS = 1 << 22;
+
 	public static final Color TRANSPARENT = new Color(0,0,0,0f);
 	public static final Color ALPHARED    = new Color(1,0,0,.2f);
 	public static final Color ALPHAGREEN = new Color(0,1,0,.2f);
@@ -331,7 +334,142 @@ public class SwingUtil {
 		IIOReadProgressListener progressListener = null;
 		return subsampleImage(inputStream, xy, progressListener, metadata);
 	}
+
+	/** Subsample the file, reporting progress to the listener (may be null), and close the file afterwards. */
+	public static BufferedImage	subsampleImageFile(File file, ImageResamplingDims xy, IIOReadProgressListener progressListener) throws IOException {
+		try (ImageInputStream inputStream = ImageIO.createImageInputStream(file)) {
+			return subsampleImage(inputStream, xy, progressListener, null);
+		}
+	}
 	
+	/** Box-filter the file down by xy.samplingEdge, reading a strip at a time.  See boxDownsampleImage. */
+	public static BufferedImage boxDownsampleImageFile(File file, ImageResamplingDims xy, double nodata,
+			IIOReadProgressListener progressListener) throws IOException {
+		try (ImageInputStream inputStream = ImageIO.createImageInputStream(file)) {
+			return boxDownsampleImage(inputStream, xy, nodata, progressListener);
+		}
+	}
+
+	/** Downsample by averaging each samplingEdge x samplingEdge block, instead of keeping one pixel per block.
+	 * The source is read in horizontal strips via setSourceRegion, so peak memory is one strip plus the result.
+	 * Samples that are NaN or nodata (NaN if none), and pixels of alpha 0, are left out of the averages;
+	 * a block with nothing else is nodata, or NaN if none and the samples are floats, or transparent if alpha.
+	 * Palette images can't be averaged, so those fall back to subsampleImage.
+	 * Progress of the strips is reported as one read; aborting the reader stops at the current strip.
+	 */
+	public static BufferedImage boxDownsampleImage(ImageInputStream inputStream, ImageResamplingDims xy, double nodata,
+			IIOReadProgressListener progressListener) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(inputStream);
+		if (!readers.hasNext()) {
+			throw new IOException("No reader available for supplied image stream.");
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(inputStream, false, true);
+		ImageTypeSpecifier rawType = reader.getRawImageType(0);
+		int edge = xy.samplingEdge;
+		if (edge == 1 || rawType == null || rawType.getColorModel() instanceof IndexColorModel) {
+			reader.dispose();
+			inputStream.seek(0);
+			return subsampleImage(inputStream, xy, progressListener, null);
+		}
+
+		// this layer's own size, which may be a few pixels off the image's:  LayerStack pads the difference
+		int width = reader.getWidth(0), height = reader.getHeight(0);
+		int outWidth = (width + edge - 1) / edge, outHeight = (height + edge - 1) / edge;
+		int blocksPerStrip = Math.max(1, STRIP_PIXELS / (width * edge));
+		int stripRows = blocksPerStrip * edge;
+		int nStrips = (height + stripRows - 1) / stripRows;
+		boolean[] aborted = {false};
+		int[] stripIndex = {0};
+		reader.addIIOReadProgressListener(new IIOReadProgressListener() {// the strips, reported as one read
+			public void imageProgress(ImageReader source, float percentageDone) {
+				if (progressListener != null) {
+					progressListener.imageProgress(source, (stripIndex[0] + percentageDone / 100.0f) * 100.0f / nStrips);
+				}
+			}
+			public void readAborted(ImageReader source) {
+				aborted[0] = true;
+				if (progressListener != null) progressListener.readAborted(source);
+			}
+			public void sequenceStarted(ImageReader source, int minIndex) {}
+			public void sequenceComplete(ImageReader source) {}
+			public void imageStarted(ImageReader source, int imageIndex) {}
+			public void imageComplete(ImageReader source) {}
+			public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+			public void thumbnailProgress(ImageReader source, float percentageDone) {}
+			public void thumbnailComplete(ImageReader source) {}
+		});
+
+		try {
+			ColorModel cm = null;
+			WritableRaster out = null;
+			double[][] sums = null;
+			int[][] counts = null;
+			double[] row = new double[width];
+			double[] alphaRow = null;
+			double[] outRow = new double[outWidth];
+			for (int s = 0; s < nStrips; s++) {
+				stripIndex[0] = s;
+				int y0 = s * stripRows;
+				int rows = Math.min(stripRows, height - y0);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceRegion(new Rectangle(0, y0, width, rows));
+				BufferedImage strip = reader.read(0, param);
+				if (aborted[0]) {
+					throw new IIOException("Read aborted.");
+				}
+				Raster raster = strip.getRaster();
+				if (out == null) {
+					cm = strip.getColorModel();
+					out = cm.createCompatibleWritableRaster(outWidth, outHeight);
+					sums = new double[raster.getNumBands()][outWidth];
+					counts = new int[raster.getNumBands()][outWidth];
+					if (cm.hasAlpha()) alphaRow = new double[width];
+				}
+				boolean isInteger = raster.getTransferType() != DataBuffer.TYPE_FLOAT && raster.getTransferType() != DataBuffer.TYPE_DOUBLE;
+				int alphaBand = raster.getNumBands() - 1;// where the color models put it
+				double empty = alphaRow != null ? 0 : !Double.isNaN(nodata) ? nodata : isInteger ? 0 : Double.NaN;
+				for (int by = 0; by * edge < rows; by++) {
+					int blockRows = Math.min(edge, rows - by * edge);
+					for (int b = 0; b < sums.length; b++) {
+						Arrays.fill(sums[b], 0.0);
+						Arrays.fill(counts[b], 0);
+					}
+					for (int r = 0; r < blockRows; r++) {
+						if (alphaRow != null) {
+							raster.getSamples(0, by * edge + r, width, 1, alphaBand, alphaRow);
+						}
+						for (int b = 0; b < sums.length; b++) {
+							raster.getSamples(0, by * edge + r, width, 1, b, row);
+							for (int x = 0; x < width; x++) {
+								if (alphaRow != null && alphaRow[x] == 0 || isNodata(row[x], nodata)) continue;
+								sums[b][x / edge] += row[x];
+								counts[b][x / edge]++;
+							}
+						}
+					}
+					for (int b = 0; b < sums.length; b++) {
+						for (int ox = 0; ox < outWidth; ox++) {
+							double mean = sums[b][ox] / counts[b][ox];
+							outRow[ox] = counts[b][ox] == 0 ? empty : isInteger ? Math.round(mean) : mean;
+						}
+						out.setSamples(0, y0 / edge + by, outWidth, 1, b, outRow);
+					}
+				}
+			}
+			return new BufferedImage(cm, out, cm.isAlphaPremultiplied(), null);
+		} finally {
+			reader.removeAllIIOReadProgressListeners();
+			reader.dispose();
+		}
+	}
+
+	/** NaN, or nodata compared as float32, as LayerStack does:  GDAL's nodata text parses to a double that a
+	 * float sample widened to double never equals. */
+	private static boolean isNodata(double v, double nodata) {
+		return Double.isNaN(v) || !Double.isNaN(nodata) && (float) v == (float) nodata;
+	}
+
 	// https://stackoverflow.com/questions/3294388/make-a-bufferedimage-use-less-ram, altered mildly
 	public static BufferedImage subsampleImage(ImageInputStream inputStream, ImageResamplingDims xy,
 			IIOReadProgressListener progressListener, IIOMetadata metadata) throws IOException {
@@ -355,10 +493,6 @@ public class SwingUtil {
 
 		reader.addIIOReadProgressListener(progressListener);
 
-		IIOMetadata m = reader.getImageMetadata(0);
-		TIFFDirectory m1 = TIFFDirectory.createFromMetadata(m);
-		System.out.printf("We got the image metadata: %s", m1);
-
 		System.out.println("Here is the reader \n");
 		System.out.print(reader);
 		System.out.println("Here are the reader params. \n");
@@ -417,6 +551,38 @@ public class SwingUtil {
 		return bigImg;
 	}
 
+	/** Half-size TYPE_INT_RGB copy, each pixel the average of a 2x2 block (odd edges average what's there). */
+	public static BufferedImage halveImage(BufferedImage img) {
+		int w = img.getWidth(), h = img.getHeight();
+		int hw = (w + 1) / 2, hh = (h + 1) / 2;
+		BufferedImage half = new BufferedImage(hw, hh, BufferedImage.TYPE_INT_RGB);
+		int[] row0 = new int[w];
+		int[] row1 = new int[w];
+		int[] out = new int[hw];
+		for (int y = 0; y < hh; y++) {
+			img.getRGB(0, 2 * y, w, 1, row0, 0, w);
+			int rows = 2 * y + 1 < h ? 2 : 1;
+			if (rows == 2) {
+				img.getRGB(0, 2 * y + 1, w, 1, row1, 0, w);
+			}
+			for (int x = 0; x < hw; x++) {
+				int r = 0, g = 0, b = 0, n = 0;
+				for (int i = 2 * x; i < Math.min(2 * x + 2, w); i++) {
+					for (int k = 0; k < rows; k++) {
+						int rgb = k == 0 ? row0[i] : row1[i];
+						r += (rgb >> 16) & 0xff;
+						g += (rgb >> 8) & 0xff;
+						b += rgb & 0xff;
+						n++;
+					}
+				}
+				out[x] = (r / n) << 16 | (g / n) << 8 | (b / n);
+			}
+			half.setRGB(0, y, hw, 1, out, 0, hw);
+		}
+		return half;
+	}
+
 	public static void save2Bit(BufferedImage in, File outFile) throws IOException {
 		//https://stackoverflow.com/a/12672467/13773745
 		int w = in.getWidth(), h = in.getHeight();
@@ -0,0 +1,740 @@
+package org.djf.util;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.zip.Deflater;
+
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/** Writes a single-band 1, 2, 4 or 8-bit TIFF strip by strip, so only a few strips are ever in memory,
+ * whatever the size of the image.  Palette if given a colormap, else BlackIsZero gray.
+ * Or tile by tile, one row of tiles in memory, after setTileSize.
+ *
+ * Little-endian classic TIFF:  header, then the compressed strips as they come, then the IFD at the end,
+ * whose offset is patched into the header on close.  Readable by ImageIO, GDAL, QGIS...
+ * rewriteTiles updates chosen tiles of a tiled file, appending them and a new IFD that replaces the old at once.
+ * writeCloudOptimized instead lays out a cloud-optimized GeoTIFF:  all the IFDs first, the image's then its overviews',
+ * then the tiles from the smallest overview to the full image, so a reader gets the layout in one range read.
+ *
+ * The rows are read in order on the calling thread, but each strip or tile is compressed on a pool of threads,
+ * a bounded number in flight, and written in order as it comes back:  Deflate scales with the cores.
+ */
+public class TiffWriter implements Closeable {
+
+	public enum Compression {
+		NONE(1), DEFLATE(8), PACKBITS(32773);
+
+		public final int code;
+
+		Compression(int code) {
+			this.code = code;
+		}
+	}
+
+	/** Fills `packed` with row y, packed MSB-first at bitsPerSample, as TIFF wants it. */
+	public interface RowSource {
+		void getRow(int y, byte[] packed);
+	}
+
+	/** target uncompressed bytes per strip */
+	public static final int STRIP_BYTES = 1 << 18;
+
+	// TIFF field types
+	public static final int BYTE = 1, ASCII = 2, SHORT = 3, LONG = 4, DOUBLE = 12;
+
+	public static final int THREADS = Runtime.getRuntime().availableProcessors();
+	/** chunks being compressed or waiting to be written, per writer:  bounds memory at a few MB */
+	private static final int IN_FLIGHT = 2 * THREADS;
+	private static final ExecutorService compressors = Executors.newFixedThreadPool(THREADS, r -> {
+		Thread t = new Thread(r, "TiffWriter compress");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final FileChannel out;
+	private final int width, height, bitsPerSample;
+	private final Compression compression;
+	private final int rowBytes, rowsPerStrip;
+	/** 0 for strips */
+	private int tileSize = 0;
+	/** tag -> encoded entry, sorted as the IFD requires */
+	private final TreeMap<Integer, Field> fields = new TreeMap<>();
+	/** the overviews' IFDs, chained after the image's at the start of the file, by writeCloudOptimized */
+	private final List<TreeMap<Integer, Field>> overviews = Lists.newArrayList();
+	private long position;
+
+	private static class Field {
+		final int type, count;
+		final byte[] value;
+
+		Field(int type, int count, byte[] value) {
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+	}
+
+	/** palette may be null for gray */
+	public TiffWriter(Path file, int width, int height, int bitsPerSample, IndexColorModel palette,
+			Compression compression) throws IOException {
+		Preconditions.checkArgument(bitsPerSample == 1 || bitsPerSample == 2 || bitsPerSample == 4 || bitsPerSample == 8,
+				"Unsupported bits per sample: %s", bitsPerSample);
+		this.width = width;
+		this.height = height;
+		this.bitsPerSample = bitsPerSample;
+		this.compression = compression;
+		this.rowBytes = (width * bitsPerSample + 7) / 8;
+		this.rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / Math.max(1, rowBytes)));
+		out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		// "II", 42, IFD offset patched on close
+		write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putShort((short) 0x4949).putShort((short) 42).putInt(0).flip());
+
+		setField(256, LONG, width);// ImageWidth
+		setField(257, LONG, height);// ImageLength
+		setField(258, SHORT, bitsPerSample);
+		setField(259, SHORT, compression.code);
+		setField(262, SHORT, palette != null ? 3 : 1);// Photometric: palette or BlackIsZero
+		setField(277, SHORT, 1);// SamplesPerPixel
+		setField(278, LONG, rowsPerStrip);
+		setField(284, SHORT, 1);// PlanarConfiguration: chunky
+		if (palette != null) {
+			setField(320, SHORT, colorMap(palette, bitsPerSample));
+		}
+	}
+
+	/** TIFF ColorMap: all reds, then greens, then blues, 16 bits each */
+	private static int[] colorMap(IndexColorModel palette, int bitsPerSample) {
+		int n = 1 << bitsPerSample;
+		int[] rr = new int[3 * n];
+		for (int i = 0; i < Math.min(n, palette.getMapSize()); i++) {
+			rr[i] = palette.getRed(i) * 257;
+			rr[n + i] = palette.getGreen(i) * 257;
+			rr[2 * n + i] = palette.getBlue(i) * 257;
+		}
+		return rr;
+	}
+
+	/** Add or replace an IFD entry of type BYTE, SHORT or LONG. */
+	public void setField(int tag, int type, int... values) {
+		fields.put(tag, field(type, values));
+	}
+
+	private static Field field(int type, int... values) {
+		int size = type == SHORT ? 2 : type == LONG ? 4 : 1;
+		ByteBuffer buf = ByteBuffer.allocate(size * values.length).order(ByteOrder.LITTLE_ENDIAN);
+		for (int v : values) {
+			if (type == SHORT) buf.putShort((short) v);
+			else if (type == LONG) buf.putInt(v);
+			else buf.put((byte) v);
+		}
+		return new Field(type, values.length, buf.array());
+	}
+
+	/** Add or replace an IFD entry of type DOUBLE. */
+	public void setField(int tag, double... values) {
+		ByteBuffer buf = ByteBuffer.allocate(8 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+		for (double v : values) buf.putDouble(v);
+		fields.put(tag, new Field(DOUBLE, values.length, buf.array()));
+	}
+
+	/** Add or replace an ASCII IFD entry. */
+	public void setField(int tag, String value) {
+		byte[] bytes = Arrays.copyOf(value.getBytes(StandardCharsets.US_ASCII), value.length() + 1);
+		fields.put(tag, new Field(ASCII, bytes.length, bytes));
+	}
+
+	/** Copy a field read by ImageIO, e.g. a source image's GeoTIFF tags.  Floats & rationals become doubles;
+	 * types we don't write are skipped.
+	 */
+	public void setField(TIFFField f) {
+		int tag = f.getTagNumber();
+		switch (f.getType()) {
+			case TIFFTag.TIFF_ASCII: {
+				String[] strings = new String[f.getCount()];
+				for (int i = 0; i < strings.length; i++) strings[i] = f.getAsString(i);
+				setField(tag, String.join("\0", strings));
+				break;
+			}
+			case TIFFTag.TIFF_BYTE: case TIFFTag.TIFF_SHORT: case TIFFTag.TIFF_LONG: {
+				int[] values = new int[f.getCount()];
+				for (int i = 0; i < values.length; i++) values[i] = (int) f.getAsLong(i);
+				setField(tag, f.getType() == TIFFTag.TIFF_BYTE ? BYTE : f.getType() == TIFFTag.TIFF_SHORT ? SHORT : LONG, values);
+				break;
+			}
+			case TIFFTag.TIFF_DOUBLE: case TIFFTag.TIFF_FLOAT: case TIFFTag.TIFF_RATIONAL: {
+				double[] values = new double[f.getCount()];
+				for (int i = 0; i < values.length; i++) values[i] = f.getAsDouble(i);
+				setField(tag, values);
+				break;
+			}
+			default:
+				System.out.printf("TiffWriter: not copying tag %d of type %d\n", tag, f.getType());
+		}
+	}
+
+	public int getRowBytes() {
+		return rowBytes;
+	}
+
+	/** Write tiles of this edge (a multiple of 16) rather than strips. */
+	public void setTileSize(int tileSize) {
+		Preconditions.checkArgument(tileSize > 0 && tileSize % 16 == 0, "TIFF tiles must be multiples of 16: %s", tileSize);
+		this.tileSize = tileSize;
+		fields.remove(278);// RowsPerStrip
+		setField(322, LONG, tileSize);// TileWidth
+		setField(323, LONG, tileSize);// TileLength
+	}
+
+	/** Write all the rows, strip by strip or tile by tile. */
+	public void write(RowSource rows) throws IOException {
+		if (tileSize > 0) {
+			writeTiles(rows);
+			return;
+		}
+		int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+		int[] offsets = new int[strips];
+		int[] counts = new int[strips];
+		byte[] row = new byte[rowBytes];
+		Pipeline pipeline = new Pipeline(compression, (s, chunk) -> {
+			offsets[s] = checkedOffset(position);
+			counts[s] = chunk.length;
+			write(ByteBuffer.wrap(chunk));
+		});
+		for (int s = 0; s < strips; s++) {
+			int y0 = s * rowsPerStrip;
+			int n = Math.min(rowsPerStrip, height - y0);
+			byte[] strip = new byte[n * rowBytes];// its own, as it's compressed meanwhile
+			for (int r = 0; r < n; r++) {
+				rows.getRow(y0 + r, row);
+				System.arraycopy(row, 0, strip, r * rowBytes, rowBytes);
+			}
+			pipeline.add(s, strip, rowBytes);
+		}
+		pipeline.finish();
+		setField(273, LONG, offsets);// StripOffsets
+		setField(279, LONG, counts);// StripByteCounts
+	}
+
+	private void writeTiles(RowSource rows) throws IOException {
+		writeTiles(rows, width, height, fields);
+	}
+
+	/** rows of width x height as tiles, their offsets & byte counts into ifd */
+	private void writeTiles(RowSource rows, int width, int height, TreeMap<Integer, Field> ifd) throws IOException {
+		int across = (width + tileSize - 1) / tileSize, down = (height + tileSize - 1) / tileSize;
+		int[] offsets = new int[across * down];
+		int[] counts = new int[across * down];
+		byte[][] band = new byte[tileSize][(width * bitsPerSample + 7) / 8];
+		Pipeline pipeline = new Pipeline(compression, (t, chunk) -> {
+			offsets[t] = checkedOffset(position);
+			counts[t] = chunk.length;
+			write(ByteBuffer.wrap(chunk));
+		});
+		for (int ty = 0; ty < down; ty++) {
+			readBand(rows, ty * tileSize, height, band);
+			for (int tx = 0; tx < across; tx++) {
+				byte[] tile = new byte[tileSize * tileSize * bitsPerSample / 8];
+				cutTile(band, tx, tileSize, bitsPerSample, tile);
+				pipeline.add(ty * across + tx, tile, tileSize * bitsPerSample / 8);
+			}
+		}
+		pipeline.finish();
+		ifd.put(324, field(LONG, offsets));// TileOffsets
+		ifd.put(325, field(LONG, counts));// TileByteCounts
+	}
+
+	/** Write the image tiled, with overviews each half the size of the last until one fits in a tile, as a cloud-optimized
+	 * GeoTIFF.  levels gives the rows of each:  0 the image, k the image reduced 2^k times, see reduced.
+	 * Only the baseline fields go in the overviews' IFDs, not e.g. the geo tags, which describe the image.
+	 */
+	public void writeCloudOptimized(IntFunction<RowSource> levels) throws IOException {
+		Preconditions.checkState(tileSize > 0 && position == 8 && overviews.isEmpty(), "Set a tile size, and write nothing else");
+		List<Dimension> sizes = Lists.newArrayList(new Dimension(width, height));
+		for (Dimension d = sizes.get(0); d.width > tileSize || d.height > tileSize; sizes.add(d)) {
+			d = new Dimension((d.width + 1) / 2, (d.height + 1) / 2);
+		}
+		List<TreeMap<Integer, Field>> ifds = Lists.newArrayList();
+		ifds.add(fields);
+		for (Dimension d : sizes.subList(1, sizes.size())) {
+			TreeMap<Integer, Field> ifd = new TreeMap<>(fields.headMap(32768));// private tags, like GeoTIFF's, are the image's
+			ifd.put(254, field(LONG, 1));// NewSubfileType: reduced resolution
+			ifd.put(256, field(LONG, d.width));
+			ifd.put(257, field(LONG, d.height));
+			overviews.add(ifd);
+			ifds.add(ifd);
+		}
+		// the tile arrays' lengths are known now, so the IFDs' sizes are:  leave room for them all up front
+		long room = 0;
+		for (int k = 0; k < ifds.size(); k++) {
+			int n = ((sizes.get(k).width + tileSize - 1) / tileSize) * ((sizes.get(k).height + tileSize - 1) / tileSize);
+			ifds.get(k).put(324, field(LONG, new int[n]));
+			ifds.get(k).put(325, field(LONG, new int[n]));
+			room += encodeIFD(ifds.get(k), 0, 0).remaining();
+		}
+		position += room;
+		for (int k = ifds.size() - 1; k >= 0; k--) {// smallest first, so a viewer zoomed out reads the start of the file
+			writeTiles(levels.apply(k), sizes.get(k).width, sizes.get(k).height, ifds.get(k));
+		}
+	}
+
+	/** rows y0... of the band, zero beyond the image */
+	private static void readBand(RowSource rows, int y0, int height, byte[][] band) {
+		for (int r = 0; r < band.length; r++) {
+			if (y0 + r < height) {
+				rows.getRow(y0 + r, band[r]);
+			} else {
+				Arrays.fill(band[r], (byte) 0);
+			}
+		}
+	}
+
+	/** copy tile column tx out of the band's packed rows, zero beyond the image */
+	private static void cutTile(byte[][] band, int tx, int tileSize, int bitsPerSample, byte[] tile) {
+		int tileRowBytes = tileSize * bitsPerSample / 8, x0 = tx * tileRowBytes;
+		for (int r = 0; r < tileSize; r++) {
+			int n = Math.max(0, Math.min(tileRowBytes, band[r].length - x0));
+			System.arraycopy(band[r], x0, tile, r * tileRowBytes, n);
+			Arrays.fill(tile, r * tileRowBytes + n, (r + 1) * tileRowBytes, (byte) 0);
+		}
+	}
+
+	/** Re-encode just the tiles overlapping these regions of a tiled file we wrote, from rows.
+	 * The new tiles, tile offsets & byte counts and a new IFD are all appended, then committed at once
+	 * by pointing the header at the new IFD:  a reader or a crash sees all the old tiles or all the new.
+	 * Returns false, having changed nothing, if the file isn't laid out as expected, or is over half dead tiles:
+	 * time for a full rewrite.
+	 */
+	public static boolean rewriteTiles(Path file, RowSource rows, List<Rectangle> regions) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			IFD ifd = IFD.read(ch);
+			if (ifd == null || !ifd.tags.containsKey(324) || !ifd.tags.containsKey(325) || !ifd.tags.containsKey(322)) return false;
+			int width = (int) ifd.value(256), height = (int) ifd.value(257), bits = (int) ifd.value(258);
+			int tileSize = (int) ifd.value(322);
+			Compression compression = null;
+			for (Compression c : Compression.values()) {
+				if (c.code == ifd.value(259)) compression = c;
+			}
+			int across = (width + tileSize - 1) / tileSize, down = (height + tileSize - 1) / tileSize, n = across * down;
+			if (compression == null || ifd.value(323) != tileSize || ifd.tags.get(324)[0] != n || n < 2) return false;
+
+			ByteBuffer offsets = ByteBuffer.allocate(4 * n).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer counts = ByteBuffer.allocate(4 * n).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(ch, offsets, ifd.tags.get(324)[2]);
+			readFully(ch, counts, ifd.tags.get(325)[2]);
+			long live = 12L * n;
+			for (int t = 0; t < n; t++) live += counts.getInt(4 * t) & 0xffffffffL;
+			if (ch.size() > 2 * live + STRIP_BYTES) return false;
+
+			BitSet dirty = new BitSet(n);
+			for (Rectangle r : regions) {
+				Rectangle clip = r.intersection(new Rectangle(width, height));
+				if (clip.isEmpty()) continue;
+				for (int ty = clip.y / tileSize; ty <= (clip.y + clip.height - 1) / tileSize; ty++) {
+					dirty.set(ty * across + clip.x / tileSize, ty * across + (clip.x + clip.width - 1) / tileSize + 1);
+				}
+			}
+			if (dirty.isEmpty()) return true;
+			byte[][] band = new byte[tileSize][(width * bits + 7) / 8];
+			long[] end = {ch.size()};
+			Pipeline pipeline = new Pipeline(compression, (t, chunk) -> {
+				offsets.putInt(4 * t, checkedOffset(end[0]));
+				counts.putInt(4 * t, chunk.length);
+				end[0] = append(ch, ByteBuffer.wrap(chunk), end[0]);
+			});
+			for (int ty = 0; ty < down; ty++) {
+				int first = dirty.nextSetBit(ty * across);
+				if (first < 0) break;
+				if (first >= (ty + 1) * across) continue;
+				readBand(rows, ty * tileSize, height, band);
+				for (int t = first; t >= 0 && t < (ty + 1) * across; t = dirty.nextSetBit(t + 1)) {
+					byte[] tile = new byte[tileSize * tileSize * bits / 8];
+					cutTile(band, t % across, tileSize, bits, tile);
+					pipeline.add(t, tile, tileSize * bits / 8);
+				}
+			}
+			pipeline.finish();
+			// the new arrays, then a copy of the IFD pointing at them
+			long newOffsets = end[0] + (end[0] & 1);
+			long newCounts = append(ch, offsets, newOffsets);
+			long newIFD = append(ch, counts, newCounts);
+			ifd.setValuesAt(324, checkedOffset(newOffsets));
+			ifd.setValuesAt(325, checkedOffset(newCounts));
+			append(ch, ifd.entries, newIFD);
+			ch.force(false);
+			ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, checkedOffset(newIFD));
+			ch.write(header, 4);// commit
+			ch.force(false);
+			System.out.printf("TiffWriter: rewrote %d of %d tiles of %s\n", dirty.cardinality(), n, file.getFileName());
+			return true;
+		}
+	}
+
+	/** Takes each compressed chunk, in the order they were added. */
+	private interface ChunkSink {
+		void accept(int index, byte[] chunk) throws IOException;
+	}
+
+	/** Compresses chunks on the pool, at most IN_FLIGHT at once, and passes them to the sink in order. */
+	private static class Pipeline {
+		private final Compression compression;
+		private final ChunkSink sink;
+		private final ArrayDeque<Integer> indexes = new ArrayDeque<>();
+		private final ArrayDeque<Future<byte[]>> chunks = new ArrayDeque<>();
+
+		Pipeline(Compression compression, ChunkSink sink) {
+			this.compression = compression;
+			this.sink = sink;
+		}
+
+		/** Compress all of data, rows of lineBytes, as chunk index:  it's no longer the caller's. */
+		void add(int index, byte[] data, int lineBytes) throws IOException {
+			if (chunks.size() >= IN_FLIGHT) {
+				next();
+			}
+			indexes.add(index);
+			chunks.add(compressors.submit(() -> compress(compression, data, data.length, lineBytes)));
+		}
+
+		/** Wait for all the chunks and write them. */
+		void finish() throws IOException {
+			while (!chunks.isEmpty()) {
+				next();
+			}
+		}
+
+		private void next() throws IOException {
+			try {
+				sink.accept(indexes.remove(), chunks.peek().get());
+				chunks.remove();
+			} catch (InterruptedException ex) {
+				cancel();
+				throw new InterruptedIOException("Interrupted writing TIFF");
+			} catch (ExecutionException ex) {
+				cancel();
+				if (ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+				throw new IOException(ex.getCause());
+			} catch (IOException | RuntimeException ex) {
+				cancel();
+				throw ex;
+			}
+		}
+
+		private void cancel() {
+			for (Future<byte[]> f : chunks) f.cancel(false);
+			chunks.clear();
+			indexes.clear();
+		}
+	}
+
+	/** write all of buf at position, returning the position after it */
+	private static long append(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+		buf.rewind();
+		while (buf.hasRemaining()) position += ch.write(buf, position);
+		return position;
+	}
+
+	/** The first IFD of a little-endian TIFF, raw, with the tags parsed out. */
+	private static class IFD {
+		/** entry count, entries & next-IFD offset, as on disk */
+		final ByteBuffer entries;
+		/** tag -> {count, first value, where the values are, where the entry is in entries} */
+		final Map<Integer, long[]> tags = new TreeMap<>();
+
+		private IFD(ByteBuffer entries) {
+			this.entries = entries;
+		}
+
+		/** null if not a little-endian TIFF */
+		static IFD read(FileChannel ch) throws IOException {
+			if (ch.size() < 8) return null;
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(ch, header, 0);
+			if (header.getShort(0) != 0x4949 || header.getShort(2) != 42) return null;
+			long offset = header.getInt(4) & 0xffffffffL;
+			ByteBuffer count = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(ch, count, offset);
+			int n = count.getShort(0) & 0xffff;
+			IFD rr = new IFD(ByteBuffer.allocate(2 + 12 * n + 4).order(ByteOrder.LITTLE_ENDIAN));
+			readFully(ch, rr.entries, offset);
+			for (int i = 0; i < n; i++) {
+				int at = 2 + 12 * i;
+				int tag = rr.entries.getShort(at) & 0xffff, type = rr.entries.getShort(at + 2);
+				long cnt = rr.entries.getInt(at + 4) & 0xffffffffL;
+				int size = type == SHORT ? 2 : type == LONG ? 4 : type == DOUBLE ? 8 : 1;
+				long valuesAt = size * cnt <= 4 ? offset + at + 8 : rr.entries.getInt(at + 8) & 0xffffffffL;
+				long first = type == SHORT ? rr.entries.getShort(at + 8) & 0xffff : rr.entries.getInt(at + 8) & 0xffffffffL;
+				rr.tags.put(tag, new long[] {cnt, first, valuesAt, at});
+			}
+			return rr;
+		}
+
+		/** the tag's first value, or -1 if absent */
+		long value(int tag) {
+			long[] t = tags.get(tag);
+			return t == null ? -1 : t[1];
+		}
+
+		/** point an array-valued entry at new values */
+		void setValuesAt(int tag, int offset) {
+			entries.putInt((int) tags.get(tag)[3] + 8, offset);
+		}
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, position + buf.position()) < 0) throw new IOException("Truncated TIFF");
+		}
+		buf.flip();
+	}
+
+	private static byte[] compress(Compression compression, byte[] data, int length, int lineBytes) {
+		switch (compression) {
+			case DEFLATE: {
+				Deflater deflater = new Deflater();// zlib-wrapped, as TIFF compression 8 expects
+				deflater.setInput(data, 0, length);
+				deflater.finish();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+				byte[] buf = new byte[8192];
+				while (!deflater.finished()) {
+					bytes.write(buf, 0, deflater.deflate(buf));
+				}
+				deflater.end();
+				return bytes.toByteArray();
+			}
+			case PACKBITS: {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+				for (int start = 0; start < length; start += lineBytes) {
+					packBits(data, start, lineBytes, bytes);// rows are packed separately
+				}
+				return bytes.toByteArray();
+			}
+			default:
+				return Arrays.copyOf(data, length);
+		}
+	}
+
+	/** PackBits:  runs of 2-128 equal bytes as (1 - n, b), anything else as literals (n - 1, b...) */
+	private static void packBits(byte[] data, int start, int length, ByteArrayOutputStream out) {
+		int i = start, end = start + length;
+		while (i < end) {
+			int run = 1;
+			while (i + run < end && run < 128 && data[i + run] == data[i]) run++;
+			if (run > 1) {
+				out.write(1 - run);
+				out.write(data[i]);
+				i += run;
+				continue;
+			}
+			int lit = 1;
+			while (i + lit < end && lit < 128 && !(i + lit + 1 < end && data[i + lit] == data[i + lit + 1])) lit++;
+			out.write(lit - 1);
+			out.write(data, i, lit);
+			i += lit;
+		}
+	}
+
+	/** append buf's remaining bytes */
+	private void write(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			position += out.write(buf, position);
+		}
+	}
+
+	/** classic TIFF has 32-bit offsets */
+	private static int checkedOffset(long position) throws IOException {
+		if (position > 0xffffffffL) {
+			throw new IOException("TIFF over 4GB even compressed; would need BigTIFF");
+		}
+		return (int) position;
+	}
+
+	/** The IFD as it goes at offset at:  entries, the next-IFD offset, then the values too big for their entries. */
+	private static ByteBuffer encodeIFD(TreeMap<Integer, Field> fields, long at, long next) throws IOException {
+		int n = fields.size();
+		long valuesAt = at + 2 + 12L * n + 4;
+		ByteBuffer dir = ByteBuffer.allocate(2 + 12 * n + 4).order(ByteOrder.LITTLE_ENDIAN);
+		ByteArrayOutputStream values = new ByteArrayOutputStream();
+		dir.putShort((short) n);
+		for (Map.Entry<Integer, Field> e : fields.entrySet()) {
+			Field f = e.getValue();
+			dir.putShort(e.getKey().shortValue()).putShort((short) f.type).putInt(f.count);
+			if (f.value.length <= 4) {
+				dir.put(Arrays.copyOf(f.value, 4));
+			} else {
+				dir.putInt(checkedOffset(valuesAt + values.size()));
+				values.write(f.value, 0, f.value.length);
+				if ((values.size() & 1) != 0) values.write(0);
+			}
+		}
+		dir.putInt(checkedOffset(next));
+		dir.flip();
+		return ByteBuffer.allocate(dir.remaining() + values.size()).put(dir).put(values.toByteArray()).flip();
+	}
+
+	/** Write the IFDs and point the header at the first:  at the end, or in the room left at the start by writeCloudOptimized. */
+	@Override
+	public void close() throws IOException {
+		try {
+			Preconditions.checkState(fields.containsKey(273) || fields.containsKey(324), "No image data written");
+			long ifd;
+			if (overviews.isEmpty()) {
+				position += position & 1;// IFD on a word boundary
+				ifd = position;
+				write(encodeIFD(fields, ifd, 0));
+			} else {
+				ifd = 8;
+				List<TreeMap<Integer, Field>> chain = Lists.newArrayList(fields);
+				chain.addAll(overviews);
+				long at = ifd;
+				for (int k = 0; k < chain.size(); k++) {
+					long size = encodeIFD(chain.get(k), at, 0).remaining();// the same whatever the offsets
+					ByteBuffer buf = encodeIFD(chain.get(k), at, k + 1 < chain.size() ? at + size : 0);
+					at = append(out, buf, at);
+				}
+			}
+			ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(checkedOffset(ifd));
+			header.flip();
+			out.write(header, 4);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Rows of a working-resolution single-band image, each pixel & row replicated samplingEdge times,
+	 * cropped to bigDim.  Only one packed row is kept, reused for the samplingEdge rows it repeats.
+	 */
+	public static RowSource upsampled(Raster small, Dimension bigDim, int samplingEdge, int bitsPerSample) {
+		Preconditions.checkArgument(small.getWidth() * samplingEdge >= bigDim.width
+				&& small.getHeight() * samplingEdge >= bigDim.height, "The working image doesn't cover %s", bigDim);
+		int[] samples = new int[small.getWidth()];
+		int[] big = new int[bigDim.width];
+		byte[] packedRow = new byte[(bigDim.width * bitsPerSample + 7) / 8];
+		int[] cachedY = {-1};
+		return (y, packed) -> {
+			int sy = y / samplingEdge;
+			if (sy != cachedY[0]) {
+				small.getSamples(small.getMinX(), small.getMinY() + sy, samples.length, 1, 0, samples);
+				for (int x = 0; x < bigDim.width; x++) {
+					big[x] = samples[x / samplingEdge];
+				}
+				pack(big, bitsPerSample, packedRow);
+				cachedY[0] = sy;
+			}
+			System.arraycopy(packedRow, 0, packed, 0, packedRow.length);
+		};
+	}
+
+	/** Rows of the full-resolution image that upsampled gives, reduced factor times:  each pixel the mode of the
+	 * working pixels under it (ties to a nonzero value, then the lower), e.g. for labels, or else their mean.
+	 */
+	public static RowSource reduced(Raster small, Dimension bigDim, int samplingEdge, int factor, int bitsPerSample, boolean mode) {
+		int width = (bigDim.width + factor - 1) / factor, height = (bigDim.height + factor - 1) / factor;
+		// the working columns under each reduced column
+		int[] x0 = new int[width], x1 = new int[width];
+		for (int x = 0; x < width; x++) {
+			x0[x] = x * factor / samplingEdge;
+			x1[x] = (Math.min(bigDim.width, (x + 1) * factor) - 1) / samplingEdge;
+		}
+		int[] samples = new int[small.getWidth()], row = new int[width];
+		int[][] counts = new int[width][mode ? 1 << bitsPerSample : 2];// histogram, or {sum, n}
+		return (y, packed) -> {
+			for (int[] c : counts) Arrays.fill(c, 0);
+			int y1 = (Math.min(bigDim.height, (y + 1) * factor) - 1) / samplingEdge;
+			for (int sy = y * factor / samplingEdge; sy <= y1; sy++) {
+				small.getSamples(small.getMinX(), small.getMinY() + sy, samples.length, 1, 0, samples);
+				for (int x = 0; x < width; x++) {
+					int[] c = counts[x];
+					for (int sx = x0[x]; sx <= x1[x]; sx++) {
+						if (mode) {
+							c[samples[sx] & c.length - 1]++;
+						} else {
+							c[0] += samples[sx];
+							c[1]++;
+						}
+					}
+				}
+			}
+			for (int x = 0; x < width; x++) {
+				int[] c = counts[x];
+				if (mode) {
+					int best = 0;
+					for (int k = 1; k < c.length; k++) {
+						if (c[k] > c[best] || c[k] == c[best] && best == 0 && c[k] > 0) best = k;
+					}
+					row[x] = best;
+				} else {
+					row[x] = (c[0] + c[1] / 2) / c[1];
+				}
+			}
+			pack(row, bitsPerSample, packed);
+		};
+	}
+
+	/** samples packed MSB-first at bitsPerSample */
+	private static void pack(int[] samples, int bitsPerSample, byte[] packed) {
+		int perByte = 8 / bitsPerSample, mask = (1 << bitsPerSample) - 1;
+		Arrays.fill(packed, 0, (samples.length * bitsPerSample + 7) / 8, (byte) 0);
+		for (int x = 0; x < samples.length; x++) {
+			packed[x / perByte] |= (samples[x] & mask) << (perByte - 1 - x % perByte) * bitsPerSample;
+		}
+	}
+
+	/** bits per sample for writing this image:  4 for labels' palette, else 8 */
+	public static int bitsFor(BufferedImage img) {
+		return img.getColorModel() instanceof IndexColorModel && img.getColorModel().getPixelSize() <= 4 ? 4 : 8;
+	}
+
+	/** Write a working-resolution labels or gray image at full resolution bigDim, Deflate-compressed, with these extra
+	 * fields, e.g. geo tags.  4-bit palette for an IndexColorModel image, else 8-bit gray.  Tiled if tileSize > 0,
+	 * so rewriteTiles can update it; or if cloudOptimized, tiled with overviews (mode for a palette, else mean).
+	 */
+	public static void writeUpsampled(Path file, BufferedImage small, Dimension bigDim, int samplingEdge, int tileSize,
+			List<TIFFField> extra, boolean cloudOptimized) throws IOException {
+		IndexColorModel palette = small.getColorModel() instanceof IndexColorModel ? (IndexColorModel) small.getColorModel() : null;
+		int bits = bitsFor(small);
+		try (TiffWriter w = new TiffWriter(file, bigDim.width, bigDim.height, bits, palette, Compression.DEFLATE)) {
+			for (TIFFField f : extra) {
+				w.setField(f);
+			}
+			if (tileSize > 0) {
+				w.setTileSize(tileSize);
+			}
+			if (cloudOptimized) {
+				w.writeCloudOptimized(level -> level == 0 ? upsampled(small.getRaster(), bigDim, samplingEdge, bits)
+						: reduced(small.getRaster(), bigDim, samplingEdge, 1 << level, bits, palette != null));
+			} else {
+				w.write(upsampled(small.getRaster(), bigDim, samplingEdge, bits));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+package org.djf.mlpaint;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/** LabelJournal's files:  round trips, a torn last record, a changed base, and restarting after a save. */
+public class LabelJournalTest {
+
+	private static final int WIDTH = 40, HEIGHT = 30, EDGE = 2;
+
+	private static WritableRaster blank() {
+		return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY).getRaster();
+	}
+
+	/** paint value into r of labels, and journal it */
+	private static void edit(LabelJournal journal, WritableRaster labels, byte type, int value, Rectangle... regions)
+			throws IOException {
+		for (Rectangle r : regions) {
+			for (int y = r.y; y < r.y + r.height; y++) {
+				for (int x = r.x; x < r.x + r.width; x++) {
+					labels.setSample(x, y, 0, (x + y) % 3 == 0 ? 0 : value);// runs of both
+				}
+			}
+		}
+		journal.append(type, value, List.of(regions), labels);
+	}
+
+	private static void assertSameLabels(Raster expected, Raster actual) {
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				assertEquals(String.format("label at %d,%d", x, y), expected.getSample(x, y, 0), actual.getSample(x, y, 0));
+			}
+		}
+	}
+
+	private static WritableRaster replay(List<LabelJournal.Record> records) {
+		WritableRaster rr = blank();
+		for (LabelJournal.Record record : records) {
+			record.apply(rr);
+		}
+		return rr;
+	}
+
+	private static Path tempDir() throws IOException {
+		return Files.createTempDirectory("LabelJournalTest");
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(p);
+			}
+		}
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path file = dir.resolve("labels.journal");
+			WritableRaster labels = blank();
+			try (LabelJournal journal = LabelJournal.start(file, WIDTH, HEIGHT, EDGE, null)) {
+				edit(journal, labels, LabelJournal.SUGGESTION, 1, new Rectangle(3, 4, 10, 5), new Rectangle(30, 0, 10, 30));
+				edit(journal, labels, LabelJournal.NO_DATA, 3, new Rectangle(0, 0, 0, 7), new Rectangle(5, 6, 1, 1));
+				edit(journal, labels, LabelJournal.UNDO, 0, new Rectangle(0, 0, WIDTH, HEIGHT));
+				assertEquals(3, journal.getNumRecords());
+				assertEquals(Files.size(file), journal.size());
+			}
+			LabelJournal.Contents contents = LabelJournal.read(file, WIDTH, HEIGHT, EDGE, null);
+			assertNotNull(contents);
+			assertEquals(3, contents.records.size());
+			LabelJournal.Record first = contents.records.get(0);
+			assertEquals(0, first.seq);
+			assertEquals(LabelJournal.SUGGESTION, first.type);
+			assertEquals(1, first.labelIndex);
+			assertEquals(List.of(new Rectangle(3, 4, 10, 5), new Rectangle(30, 0, 10, 30)), first.regions);
+			assertEquals("the empty region dropped", 1, contents.records.get(1).regions.size());
+			assertEquals(2, contents.records.get(2).seq);
+			assertSameLabels(labels, replay(contents.records));
+
+			assertNull("another working size", LabelJournal.read(file, WIDTH, HEIGHT, EDGE + 1, null));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void dropsATornLastRecord() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path file = dir.resolve("labels.journal");
+			WritableRaster labels = blank();
+			long whole;
+			try (LabelJournal journal = LabelJournal.start(file, WIDTH, HEIGHT, EDGE, null)) {
+				edit(journal, labels, LabelJournal.SUGGESTION, 1, new Rectangle(3, 4, 10, 5));
+				whole = journal.size();
+				edit(journal, blank(), LabelJournal.SUGGESTION, 2, new Rectangle(0, 0, 20, 20));
+			}
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ch.truncate(Files.size(file) - 3);// as a crash mid-write leaves it
+			}
+			LabelJournal.Contents contents = LabelJournal.read(file, WIDTH, HEIGHT, EDGE, null);
+			assertEquals(1, contents.records.size());
+			assertSameLabels(labels, replay(contents.records));
+
+			// resuming cuts off the torn record and carries on after the good one
+			try (LabelJournal journal = LabelJournal.resume(file, WIDTH, HEIGHT, EDGE, contents)) {
+				assertEquals(whole, journal.size());
+				assertEquals(1, journal.getNumRecords());
+				edit(journal, labels, LabelJournal.NO_DATA, 3, new Rectangle(20, 20, 5, 5));
+			}
+			contents = LabelJournal.read(file, WIDTH, HEIGHT, EDGE, null);
+			assertEquals(2, contents.records.size());
+			assertEquals(1, contents.records.get(1).seq);
+			assertSameLabels(labels, replay(contents.records));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void ignoresAJournalOverAnotherSaveOfTheBase() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path file = dir.resolve("labels.journal");
+			Path base = Files.write(dir.resolve("labels.tif"), new byte[] {1, 2, 3});
+			try (LabelJournal journal = LabelJournal.start(file, WIDTH, HEIGHT, EDGE, base)) {
+				edit(journal, blank(), LabelJournal.SUGGESTION, 1, new Rectangle(3, 4, 10, 5));
+			}
+			assertEquals(1, LabelJournal.read(file, WIDTH, HEIGHT, EDGE, base).records.size());
+			assertNull("no base", LabelJournal.read(file, WIDTH, HEIGHT, EDGE, null));
+
+			FileTime saved = Files.getLastModifiedTime(base);
+			Files.setLastModifiedTime(base, FileTime.fromMillis(saved.toMillis() + 60_000));
+			assertNull("modified later", LabelJournal.read(file, WIDTH, HEIGHT, EDGE, base));
+
+			Files.write(base, new byte[] {1, 2, 3, 4});
+			Files.setLastModifiedTime(base, saved);
+			assertNull("another size", LabelJournal.read(file, WIDTH, HEIGHT, EDGE, base));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void restartKeepsTheRecordsSinceTheMark() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path file = dir.resolve("labels.journal");
+			Path saved = Files.write(dir.resolve("labels.tif"), new byte[] {1, 2, 3});
+			WritableRaster labels = blank();
+			try (LabelJournal journal = LabelJournal.start(file, WIDTH, HEIGHT, EDGE, null)) {
+				edit(journal, labels, LabelJournal.SUGGESTION, 1, new Rectangle(3, 4, 10, 5));
+				long mark = journal.mark();// the labels snapshot for the save
+				edit(journal, labels, LabelJournal.SUGGESTION, 2, new Rectangle(20, 10, 5, 5));
+				edit(journal, labels, LabelJournal.NO_DATA, 3, new Rectangle(0, 20, 40, 3));
+				// only the later edits, over the saved labels
+				WritableRaster after = blank();
+				after.setRect(labels.createChild(20, 10, 5, 5, 20, 10, null));
+				after.setRect(labels.createChild(0, 20, 40, 3, 0, 20, null));
+				journal.restart(saved, mark);
+				assertEquals(2, journal.getNumRecords());
+
+				LabelJournal.Contents contents = LabelJournal.read(file, WIDTH, HEIGHT, EDGE, saved);
+				assertEquals(2, contents.records.size());
+				assertEquals(1, contents.records.get(0).seq);
+				assertSameLabels(after, replay(contents.records));
+
+				// appends carry on after the kept records
+				edit(journal, after, LabelJournal.UNDO, 0, new Rectangle(3, 4, 2, 2));
+				assertEquals(3, LabelJournal.read(file, WIDTH, HEIGHT, EDGE, saved).records.size());
+
+				journal.restart(saved);
+				assertEquals(0, journal.getNumRecords());
+				assertEquals(0, LabelJournal.read(file, WIDTH, HEIGHT, EDGE, saved).records.size());
+			}
+			assertFalse(Files.exists(dir.resolve("labels.journal.tmp")));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void keepsJournalingWhenARestartFails() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path file = dir.resolve("labels.journal");
+			WritableRaster labels = blank();
+			try (LabelJournal journal = LabelJournal.start(file, WIDTH, HEIGHT, EDGE, null)) {
+				edit(journal, labels, LabelJournal.SUGGESTION, 1, new Rectangle(3, 4, 10, 5));
+				Path tmp = Files.createDirectories(dir.resolve("labels.journal.tmp"));
+				Files.write(tmp.resolve("in the way"), new byte[1]);
+				try {
+					journal.restart(null);
+					fail("restarted over a directory");
+				} catch (IOException expected) {
+				}
+				edit(journal, labels, LabelJournal.SUGGESTION, 2, new Rectangle(20, 10, 5, 5));
+				journal.sync();
+				assertEquals(2, journal.getNumRecords());
+			}
+			LabelJournal.Contents contents = LabelJournal.read(file, WIDTH, HEIGHT, EDGE, null);
+			assertEquals(2, contents.records.size());
+			assertSameLabels(labels, replay(contents.records));
+		} finally {
+			delete(dir);
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.djf.mlpaint;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+/** LabelVectorizer on small labels drawn as digits:  pinches, nested holes & islands, areas, and 16-bit codes. */
+public class LabelVectorizerTest {
+
+	/** labels of these rows of digits, one pixel each */
+	private static WritableRaster labels(int type, String... rows) {
+		WritableRaster rr = new BufferedImage(rows[0].length(), rows.length, type).getRaster();
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < rows[y].length(); x++) {
+				rr.setSample(x, y, 0, rows[y].charAt(x) - '0');
+			}
+		}
+		return rr;
+	}
+
+	private static List<LabelVectorizer.Polygon> polygons(WritableRaster labels, double tolerance, int... classes) {
+		LabelVectorizer vectorizer = new LabelVectorizer(labels.getWidth(), labels.getHeight(), classes);
+		vectorizer.trace(LabelVectorizer.rowsOf(labels));
+		return vectorizer.polygons(tolerance);
+	}
+
+	/** the class's polygons, largest first */
+	private static List<LabelVectorizer.Polygon> ofClass(List<LabelVectorizer.Polygon> polygons, int cls) {
+		return polygons.stream().filter(p -> p.cls == cls)
+				.sorted(Comparator.comparingDouble((LabelVectorizer.Polygon p) -> p.area).reversed())
+				.collect(Collectors.toList());
+	}
+
+	private static int count(WritableRaster labels, int cls) {
+		int rr = 0;
+		for (int y = 0; y < labels.getHeight(); y++) {
+			for (int x = 0; x < labels.getWidth(); x++) {
+				if (labels.getSample(x, y, 0) == cls) rr++;
+			}
+		}
+		return rr;
+	}
+
+	/** the ring's corners' bounds:  minX, minY, maxX, maxY */
+	private static double[] bounds(double[] ring) {
+		double[] rr = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (int i = 0; i < ring.length; i += 2) {
+			rr[0] = Math.min(rr[0], ring[i]);
+			rr[1] = Math.min(rr[1], ring[i + 1]);
+			rr[2] = Math.max(rr[2], ring[i]);
+			rr[3] = Math.max(rr[3], ring[i + 1]);
+		}
+		return rr;
+	}
+
+	@Test
+	public void diagonalPinchMakesTwoPolygons() {
+		WritableRaster labels = labels(BufferedImage.TYPE_BYTE_GRAY,
+				"1100",
+				"1100",
+				"0011",
+				"0011");
+		List<LabelVectorizer.Polygon> polygons = polygons(labels, 0, 0, 1);
+		for (int cls = 0; cls <= 1; cls++) {
+			List<LabelVectorizer.Polygon> ofClass = ofClass(polygons, cls);
+			assertEquals("4-connected, so apart at the corner", 2, ofClass.size());
+			for (LabelVectorizer.Polygon p : ofClass) {
+				assertEquals(4, p.outer.length / 2);
+				assertEquals(4, p.area, 0);
+				assertTrue(p.holes.isEmpty());
+			}
+		}
+		double[] first = bounds(ofClass(polygons, 1).get(0).outer), second = bounds(ofClass(polygons, 1).get(1).outer);
+		assertEquals("they meet at 2, 2", 2, Math.max(first[0], second[0]), 0);
+		assertEquals(2, Math.min(first[2], second[2]), 0);
+	}
+
+	@Test
+	public void singlePixelCheckerboard() {
+		WritableRaster labels = labels(BufferedImage.TYPE_BYTE_GRAY,
+				"1010",
+				"0101",
+				"1010");
+		List<LabelVectorizer.Polygon> polygons = polygons(labels, 0, 1);
+		assertEquals(6, polygons.size());
+		for (LabelVectorizer.Polygon p : polygons) {
+			assertEquals(1, p.area, 0);
+		}
+	}
+
+	@Test
+	public void islandWithAHoleInAHole() {
+		WritableRaster labels = labels(BufferedImage.TYPE_BYTE_GRAY,
+				"333333333333",
+				"311111111113",
+				"311111111113",
+				"311000000113",
+				"311011110113",
+				"311010010113",
+				"311010010113",
+				"311011110113",
+				"311000000113",
+				"311111111113",
+				"311111111113",
+				"333333333333");
+		List<LabelVectorizer.Polygon> polygons = polygons(labels, 0.75, 0, 1);
+
+		List<LabelVectorizer.Polygon> ones = ofClass(polygons, 1);
+		assertEquals(2, ones.size());
+		LabelVectorizer.Polygon frame = ones.get(0), island = ones.get(1);
+		assertEquals(100 - 36, frame.area, 0);
+		assertEquals(1, frame.holes.size());
+		assertArrayEquals(new double[] {1, 1, 11, 11}, bounds(frame.outer), 0);
+		assertArrayEquals(new double[] {3, 3, 9, 9}, bounds(frame.holes.get(0)), 0);
+		assertEquals("its hole, not the frame's", 16 - 4, island.area, 0);
+		assertEquals(1, island.holes.size());
+		assertArrayEquals(new double[] {4, 4, 8, 8}, bounds(island.outer), 0);
+		assertArrayEquals(new double[] {5, 5, 7, 7}, bounds(island.holes.get(0)), 0);
+
+		List<LabelVectorizer.Polygon> zeros = ofClass(polygons, 0);
+		assertEquals(2, zeros.size());
+		assertEquals(36 - 16, zeros.get(0).area, 0);
+		assertEquals(1, zeros.get(0).holes.size());
+		assertEquals(4, zeros.get(1).area, 0);
+		assertTrue(zeros.get(1).holes.isEmpty());
+
+		assertTrue("only the traced classes", ofClass(polygons, 3).isEmpty());
+	}
+
+	@Test
+	public void areasAddUpToTheLabels() {
+		WritableRaster labels = labels(BufferedImage.TYPE_BYTE_GRAY,
+				"1122203",
+				"1020213",
+				"1112013",
+				"0021110",
+				"2221311");
+		List<LabelVectorizer.Polygon> polygons = polygons(labels, 0.75, 0, 1, 2, 3);
+		for (int cls = 0; cls <= 3; cls++) {
+			double area = 0;
+			for (LabelVectorizer.Polygon p : ofClass(polygons, cls)) {
+				double shoelace = LabelVectorizer.signedArea(p.outer);
+				assertTrue("outer rings clockwise", shoelace > 0);
+				for (double[] hole : p.holes) {
+					assertTrue("holes anti-clockwise", LabelVectorizer.signedArea(hole) < 0);
+				}
+				area += p.area;
+			}
+			assertEquals("class " + cls, count(labels, cls), area, 0);
+		}
+	}
+
+	@Test
+	public void sixteenBitLabels() {
+		WritableRaster labels = labels(BufferedImage.TYPE_USHORT_GRAY,
+				"0000",
+				"0110",
+				"0110",
+				"0000");
+		labels.setSample(0, 0, 0, 1000);
+		labels.setSample(3, 3, 0, 65535);
+		List<LabelVectorizer.Polygon> polygons = polygons(labels, 0, 1);
+		assertEquals(1, polygons.size());
+		assertEquals(4, polygons.get(0).area, 0);
+
+		// the ring of 0s, cut at two corners by the codes beyond
+		List<LabelVectorizer.Polygon> zeros = ofClass(polygons(labels, 0, 0, 1), 0);
+		assertEquals(2, zeros.size());
+		assertEquals(5, zeros.get(0).area, 0);
+		assertEquals(5, zeros.get(1).area, 0);
+	}
+
+}
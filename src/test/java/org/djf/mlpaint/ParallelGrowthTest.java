@@ -0,0 +1,87 @@
+package org.djf.mlpaint;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.djf.util.DistanceField;
+import org.djf.util.FloatIndexHeap;
+import org.junit.Test;
+
+/** ParallelGrowth against SequentialGrowth on synthetic step costs:  the same threshold and settled cells at every level. */
+public class ParallelGrowthTest {
+
+	private static final int WIDTH = 240, HEIGHT = 180, LEVELS = 40;
+
+	/** random step costs, like a classifier's, with a few walls of infinite cost and a rim of cheap ones */
+	private static float[] costGrid(long seed) {
+		Random rand = new Random(seed);
+		float[] rr = new float[WIDTH * HEIGHT];
+		for (int i = 0; i < rr.length; i++) {
+			rr[i] = rand.nextFloat() * rand.nextFloat();
+		}
+		for (int y = 20; y < HEIGHT - 20; y++) {
+			rr[y * WIDTH + WIDTH / 3] = Float.POSITIVE_INFINITY;
+		}
+		for (int x = 0; x < WIDTH; x++) {
+			rr[40 * WIDTH + x] = rand.nextInt(4) == 0 ? rr[40 * WIDTH + x] : Float.POSITIVE_INFINITY;
+			rr[x] = 1e-4f * rand.nextFloat();
+		}
+		return rr;
+	}
+
+	private static SettledHistory grow(boolean parallel, float[] grid, int step, int[][] seeds, int reps) {
+		FloatIndexHeap queue = new FloatIndexHeap(100);
+		SettledHistory history = new SettledHistory(WIDTH, 100);
+		DistanceField distances = new DistanceField(WIDTH, HEIGHT, false);
+		SuggestionGrowth.StepCost cost = (x, y) -> grid[y * WIDTH + x];
+		SuggestionGrowth growth = parallel
+				? new ParallelGrowth(WIDTH, HEIGHT, step, queue, history, distances, cost)
+				: new SequentialGrowth(WIDTH, HEIGHT, step, queue, history, distances, cost);
+		for (int[] xy : seeds) {
+			growth.seed(xy[0], xy[1], 1.0f);
+		}
+		history.endLevel(queue.isEmpty() ? Float.POSITIVE_INFINITY : queue.peekCost());
+		for (int level = 1; level < LEVELS; level++) {
+			growth.grow(reps);
+			history.endLevel(queue.isEmpty() ? Float.POSITIVE_INFINITY : queue.peekCost());
+		}
+		return history;
+	}
+
+	private static BitSet settled(SettledHistory history, int level) {
+		BitSet rr = new BitSet();
+		history.forEachSettled(level, rr::set);
+		return rr;
+	}
+
+	private static void assertSameGrowth(float[] grid, int step, int[][] seeds, int reps) {
+		SettledHistory sequential = grow(false, grid, step, seeds, reps);
+		SettledHistory parallel = grow(true, grid, step, seeds, reps);
+		assertEquals(sequential.levels(), parallel.levels());
+		for (int level = 0; level < sequential.levels(); level++) {
+			assertEquals("threshold at level " + level, sequential.threshold(level), parallel.threshold(level), 0f);
+			assertEquals("settled at level " + level, settled(sequential, level), settled(parallel, level));
+		}
+	}
+
+	@Test
+	public void sameLevelsOnPixels() {
+		assertSameGrowth(costGrid(1), 1, new int[][] {{60, 90}, {61, 90}, {200, 30}}, 500);
+	}
+
+	@Test
+	public void sameLevelsOnGridSteps() {
+		assertSameGrowth(costGrid(2), 3, new int[][] {{30, 90}, {150, 120}}, 60);
+	}
+
+	@Test
+	public void sameLevelsToExhaustion() {
+		// levels big enough to settle all that can be reached, and then nothing more
+		SettledHistory sequential = grow(false, costGrid(3), 2, new int[][] {{10, 100}}, 2000);
+		assertEquals(Float.POSITIVE_INFINITY, sequential.threshold(LEVELS - 1), 0f);
+		assertSameGrowth(costGrid(3), 2, new int[][] {{10, 100}}, 2000);
+	}
+
+}
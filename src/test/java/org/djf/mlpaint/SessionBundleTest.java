@@ -0,0 +1,280 @@
+package org.djf.mlpaint;
+
+import static org.junit.Assert.*;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+/** SessionBundle's files:  raster sections, areas and serialized classifiers back as saved, across commits and
+ * compaction, and only over the labels file they were saved with.
+ */
+public class SessionBundleTest {
+
+	private static final int WIDTH = 37, HEIGHT = 600, EDGE = 4;// 3 bands of rows, the last short
+
+	private static Path tempDir() throws IOException {
+		return Files.createTempDirectory("SessionBundleTest");
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (Stream<Path> files = Files.walk(dir)) {
+			for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(p);
+			}
+		}
+	}
+
+	/** a 1, 2 or 4-bit packed image, or 8-bit gray */
+	private static BufferedImage image(int bits) {
+		if (bits == 8) {
+			return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+		}
+		byte[] gray = new byte[1 << bits];
+		return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(bits, gray.length, gray, gray, gray));
+	}
+
+	private static void fill(WritableRaster raster, int bits, long seed) {
+		Random rand = new Random(seed);
+		for (int y = 0; y < raster.getHeight(); y++) {
+			for (int x = 0; x < raster.getWidth(); x++) {
+				raster.setSample(x, y, 0, rand.nextInt(1 << bits));
+			}
+		}
+	}
+
+	private static void assertSameRaster(WritableRaster expected, WritableRaster actual) {
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				assertEquals(String.format("sample at %d,%d", x, y), expected.getSample(x, y, 0), actual.getSample(x, y, 0));
+			}
+		}
+	}
+
+	private static SessionBundle.Contents load(Path file, Path base) throws IOException {
+		return SessionBundle.load(file, WIDTH, HEIGHT, EDGE, base);
+	}
+
+	@Test
+	public void rasterSectionsRoundTrip() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path base = Files.write(dir.resolve("labels.tif"), new byte[] {1});
+			Path file = SessionBundle.pathFor(base);
+			for (int bits : new int[] {1, 2, 4, 8}) {
+				BufferedImage saved = image(bits);
+				fill(saved.getRaster(), bits, bits);
+				try (SessionBundle bundle = SessionBundle.create(file, WIDTH, HEIGHT, EDGE)) {
+					Map<String, byte[]> sections = SessionBundle.rasterSections(SessionBundle.LABELS, saved.getRaster(), null);
+					assertEquals(List.of("labels.0", "labels.1", "labels.2"), new ArrayList<>(sections.keySet()));
+					bundle.putAll(sections);
+					bundle.putBase(base);
+					bundle.commit();
+				}
+				SessionBundle.Contents contents = load(file, base);
+				assertNotNull(contents);
+				// into a heap image of the same packing, copied straight in, and into a child raster, sample by sample
+				BufferedImage loaded = image(bits);
+				contents.readRaster(SessionBundle.LABELS, loaded.getRaster());
+				assertSameRaster(saved.getRaster(), loaded.getRaster());
+				WritableRaster child = image(bits).getRaster().createWritableChild(0, 0, WIDTH, HEIGHT, 0, 0, null);
+				contents.readRaster(SessionBundle.LABELS, child);
+				assertSameRaster(saved.getRaster(), child);
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void dirtyBandsReplaceOnlyThemselves() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path base = Files.write(dir.resolve("labels.tif"), new byte[] {1});
+			Path file = SessionBundle.pathFor(base);
+			BufferedImage labels = image(4);
+			fill(labels.getRaster(), 4, 1);
+			try (SessionBundle bundle = SessionBundle.create(file, WIDTH, HEIGHT, EDGE)) {
+				bundle.putAll(SessionBundle.rasterSections(SessionBundle.LABELS, labels.getRaster(), null));
+				bundle.putBase(base);
+				bundle.commit();
+
+				for (int x = 0; x < WIDTH; x++) labels.getRaster().setSample(x, 300, 0, 15);
+				List<Rectangle> dirty = List.of(new Rectangle(0, 300, WIDTH, 1), new Rectangle(5, 10, 0, 0));
+				Map<String, byte[]> sections = SessionBundle.rasterSections(SessionBundle.LABELS, labels.getRaster(), dirty);
+				assertEquals(List.of("labels.1"), new ArrayList<>(sections.keySet()));
+				bundle.putAll(sections);
+				bundle.putBase(base);
+				bundle.commit();
+			}
+			BufferedImage loaded = image(4);
+			load(file, base).readRaster(SessionBundle.LABELS, loaded.getRaster());
+			assertSameRaster(labels.getRaster(), loaded.getRaster());
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void areasRoundTrip() throws IOException {
+		Area ring = new Area(new Ellipse2D.Double(10, 20, 100, 60));
+		ring.subtract(new Area(new Rectangle(40, 40, 20, 10)));// with a hole
+		Area island = new Area(new Rectangle(45, 42, 5, 5));// in the hole
+		Area both = new Area(ring);
+		both.add(island);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		SessionBundle.writeArea(out, both);
+		SessionBundle.writeArea(out, new Area());
+		SessionBundle.writeArea(out, island);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		Area read = SessionBundle.readArea(in);
+		assertTrue(both.equals(read));
+		assertTrue(read.contains(47, 44));
+		assertFalse(read.contains(41, 41));
+		assertTrue(SessionBundle.readArea(in).isEmpty());
+		assertTrue(island.equals(SessionBundle.readArea(in)));
+		assertEquals(0, in.available());
+	}
+
+	@Test
+	public void classifierBytesRoundTrip() throws IOException, ClassNotFoundException {
+		Path dir = tempDir();
+		try {
+			Path base = Files.write(dir.resolve("labels.tif"), new byte[] {1});
+			Path file = SessionBundle.pathFor(base);
+			TreeMap<String, double[]> model = new TreeMap<>();// stands in for the classifiers' object graph
+			Random rand = new Random(18);
+			for (int k = 0; k < 50; k++) {
+				model.put("tree" + k, rand.doubles(500).toArray());
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+				objects.writeObject(model);
+				objects.writeObject(null);// no spare classifier
+			}
+			try (SessionBundle bundle = SessionBundle.create(file, WIDTH, HEIGHT, EDGE)) {
+				bundle.put("state", new byte[] {1, 2, 3});
+				bundle.put("classifiers", bytes.toByteArray());
+				bundle.putBase(base);
+				bundle.commit();
+			}
+			SessionBundle.Contents contents = load(file, base);
+			assertTrue(contents.has("classifiers"));
+			assertFalse(contents.has("paint"));
+			byte[] section = new byte[contents.section("classifiers").remaining()];
+			contents.section("classifiers").get(section);
+			assertArrayEquals(bytes.toByteArray(), section);
+			try (ObjectInputStream objects = new ObjectInputStream(contents.input("classifiers"))) {
+				@SuppressWarnings("unchecked")
+				TreeMap<String, double[]> read = (TreeMap<String, double[]>) objects.readObject();
+				assertEquals(model.keySet(), read.keySet());
+				for (String key : model.keySet()) {
+					assertTrue(Arrays.equals(model.get(key), read.get(key)));
+				}
+				assertNull(objects.readObject());
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void loadsAfterCompaction() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path base = Files.write(dir.resolve("labels.tif"), new byte[] {1});
+			Path file = SessionBundle.pathFor(base);
+			byte[] big = new byte[400_000];
+			try (SessionBundle bundle = SessionBundle.create(file, WIDTH, HEIGHT, EDGE)) {
+				bundle.put("state", new byte[] {7});
+				boolean compacted = false;
+				for (int save = 0; save < 8; save++) {
+					long before = Files.exists(file) ? Files.size(file) : 0;
+					Arrays.fill(big, (byte) save);
+					bundle.put("classifiers", big);
+					bundle.putBase(base);
+					bundle.commit();
+					if (Files.size(file) < before) {
+						compacted = true;
+						assertTrue("just the live sections", Files.size(file) < big.length + 1000);
+					}
+					assertEquals(save, load(file, base).section("classifiers").get(123));
+				}
+				assertTrue(compacted);
+				assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+
+				// and carries on appending to the compacted file
+				bundle.put("state", new byte[] {8});
+				bundle.putBase(base);
+				bundle.commit();
+			}
+			SessionBundle.Contents contents = load(file, base);
+			assertEquals(8, contents.section("state").get(0));
+			assertEquals(7, contents.section("classifiers").get(big.length - 1));
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void rejectsAStaleOrMismatchedBase() throws IOException {
+		Path dir = tempDir();
+		try {
+			Path base = Files.write(dir.resolve("labels.tif"), new byte[] {1, 2, 3});
+			Path file = SessionBundle.pathFor(base);
+			try (SessionBundle bundle = SessionBundle.create(file, WIDTH, HEIGHT, EDGE)) {
+				bundle.put("state", new byte[] {1});
+				bundle.putBase(base);
+				bundle.commit();
+			}
+			assertNotNull(load(file, base));
+			assertNull("another working size", SessionBundle.load(file, WIDTH, HEIGHT, EDGE * 2, base));
+			assertNull("no labels", load(file, null));
+			Path other = Files.write(dir.resolve("other.tif"), new byte[] {1, 2, 3});
+			Files.setLastModifiedTime(other, Files.getLastModifiedTime(base));
+			assertNull("another labels file", load(file, other));
+
+			// the labels saved again, but the bundle not brought up to date
+			FileTime saved = Files.getLastModifiedTime(base);
+			Files.setLastModifiedTime(base, FileTime.fromMillis(saved.toMillis() + 60_000));
+			assertNull("a later save of the labels", load(file, base));
+			Files.write(base, new byte[] {1, 2, 3, 4});
+			Files.setLastModifiedTime(base, saved);
+			assertNull("another size of labels", load(file, base));
+
+			// a bundle committed without its base applies to no labels
+			try (SessionBundle bundle = SessionBundle.create(file, WIDTH, HEIGHT, EDGE)) {
+				bundle.put("state", new byte[] {1});
+				bundle.commit();
+			}
+			assertNull("no base section", load(file, base));
+		} finally {
+			delete(dir);
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.djf.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/** BucketQueue against a PriorityQueue, under Dijkstra's pattern:  offers at most range above the least cost polled. */
+public class BucketQueueTest {
+
+	private static final float WIDTH = 1f / 1024, RANGE = 2f;
+
+	private static long bucket(float cost) {
+		return (long) Math.floor(cost / WIDTH);
+	}
+
+	@Test
+	public void matchesPriorityQueueToABucket() {
+		Random rand = new Random(21);
+		BucketQueue queue = new BucketQueue(WIDTH, RANGE, 4);
+		FloatIndexHeapTest.Reference ref = new FloatIndexHeapTest.Reference();
+		float polled = 1f;// the least cost settled, as a Dijkstra frontier grows from it
+		assertTrue(queue.offer(0, polled) && ref.offer(0, polled));// a seed, where the ring starts
+		for (int op = 0; op < 200_000; op++) {
+			int r = rand.nextInt(10);
+			if (r < 5 || ref.costs.isEmpty()) {
+				int index = rand.nextInt(5000);
+				float cost = rand.nextInt(50) == 0 ? Float.POSITIVE_INFINITY : polled + rand.nextFloat() * RANGE * 0.99f;
+				assertEquals(ref.offer(index, cost), queue.offer(index, cost));
+			} else if (r < 7) {// decrease one queued, though not below what's settled
+				int index = queue.index(rand.nextInt(queue.size()));
+				float was = ref.costs.get(index);
+				float cost = Float.isInfinite(was) ? polled + rand.nextFloat() : polled + (was - polled) * rand.nextFloat();
+				assertEquals(ref.offer(index, cost), queue.offer(index, cost));
+			} else {
+				float least = ref.leastCost();
+				float cost = queue.peekCost();
+				int index = queue.poll();
+				assertEquals(cost, ref.costs.remove(index), 0f);
+				assertEquals("polled from the least bucket", bucket(least), bucket(cost));
+				assertFalse(queue.contains(index));
+				if (Float.isFinite(cost)) polled = Math.max(polled, cost);
+			}
+			assertEquals(ref.costs.size(), queue.size());
+		}
+		while (!queue.isEmpty()) {
+			float least = ref.leastCost();
+			int index = queue.poll();
+			assertEquals(bucket(least), bucket(ref.costs.remove(index)));
+		}
+	}
+
+	@Test
+	public void overflowWaitsForTheRingToEmpty() {
+		BucketQueue queue = new BucketQueue(WIDTH, RANGE, 4);
+		queue.offer(1, 1f);
+		queue.offer(2, 10f);// beyond the ring
+		queue.offer(3, Float.POSITIVE_INFINITY);
+		queue.offer(4, 1.5f);
+		assertEquals(1, queue.poll());
+		assertEquals(4, queue.poll());
+		assertEquals(10f, queue.peekCost(), 0f);// the ring rebased onto the overflow
+		queue.offer(5, 11f);
+		queue.offer(2, 9f);// decrease-key after rebasing
+		assertEquals(2, queue.poll());
+		assertEquals(5, queue.poll());
+		assertEquals(Float.POSITIVE_INFINITY, queue.peekCost(), 0f);
+		assertEquals(3, queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void emptyRingMovesToTheNextCost() {
+		BucketQueue queue = new BucketQueue(WIDTH, RANGE, 4);
+		queue.offer(1, 100f);
+		assertEquals(1, queue.poll());
+		queue.offer(2, 3f);// below where the ring was, but it's empty
+		queue.offer(3, 4f);
+		assertEquals(2, queue.poll());
+		assertEquals(3, queue.poll());
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		BucketQueue queue = new BucketQueue(WIDTH, RANGE, 4);
+		for (int i = 0; i < 100; i++) {
+			queue.offer(i, 1 + i / 64f);
+		}
+		FrontierQueue copy = queue.copy();
+		while (!queue.isEmpty()) {
+			queue.poll();
+		}
+		assertEquals(100, copy.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(1 + i / 64f, copy.peekCost(), 0f);
+			assertEquals(i, copy.poll());
+		}
+	}
+
+}
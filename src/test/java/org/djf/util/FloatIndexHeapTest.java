@@ -0,0 +1,100 @@
+package org.djf.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** FloatIndexHeap against a PriorityQueue, over random offers, decreases and polls. */
+public class FloatIndexHeapTest {
+
+	/** the queue's contents kept alongside:  costs by index, and a PriorityQueue of {cost, index} with stale entries skipped */
+	static class Reference {
+		final Map<Integer, Float> costs = new HashMap<>();
+		final PriorityQueue<float[]> heap = new PriorityQueue<>((a, b) -> Float.compare(a[0], b[0]));
+
+		boolean offer(int index, float cost) {
+			Float was = costs.get(index);
+			if (was != null && !(cost < was)) return false;
+			costs.put(index, cost);
+			heap.add(new float[] {cost, index});
+			return true;
+		}
+
+		float leastCost() {
+			while (costs.get((int) heap.peek()[1]) == null || costs.get((int) heap.peek()[1]) != heap.peek()[0]) {
+				heap.poll();
+			}
+			return heap.peek()[0];
+		}
+	}
+
+	@Test
+	public void matchesPriorityQueue() {
+		Random rand = new Random(21);
+		FloatIndexHeap queue = new FloatIndexHeap(4);
+		Reference ref = new Reference();
+		for (int op = 0; op < 200_000; op++) {
+			int r = rand.nextInt(10);
+			if (r < 5 || ref.costs.isEmpty()) {// a new index, or maybe one queued already
+				int index = rand.nextInt(5000);
+				float cost = rand.nextInt(8) == 0 ? rand.nextInt(4) : rand.nextFloat() * 100;// ties too
+				assertEquals(ref.offer(index, cost), queue.offer(index, cost));
+			} else if (r < 7) {// decrease one queued
+				int index = queue.index(rand.nextInt(queue.size()));
+				float cost = ref.costs.get(index) * rand.nextFloat();
+				assertEquals(ref.offer(index, cost), queue.offer(index, cost));
+			} else {
+				float least = ref.leastCost();
+				assertEquals(least, queue.peekCost(), 0f);
+				int index = queue.poll();
+				assertEquals(least, ref.costs.remove(index), 0f);
+				assertFalse(queue.contains(index));
+			}
+			assertEquals(ref.costs.size(), queue.size());
+		}
+		while (!queue.isEmpty()) {
+			float least = ref.leastCost();
+			int index = queue.poll();
+			assertEquals(least, ref.costs.remove(index), 0f);
+		}
+		assertTrue(ref.costs.isEmpty());
+	}
+
+	@Test
+	public void offerHigherChangesNothing() {
+		FloatIndexHeap queue = new FloatIndexHeap(4);
+		assertTrue(queue.offer(7, 2f));
+		assertFalse(queue.offer(7, 3f));
+		assertFalse(queue.offer(7, 2f));
+		assertTrue(queue.offer(7, 1f));
+		assertEquals(1, queue.size());
+		assertEquals(1f, queue.peekCost(), 0f);
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		FloatIndexHeap queue = new FloatIndexHeap(4);
+		for (int i = 0; i < 100; i++) {
+			queue.offer(i, 100 - i);
+		}
+		FrontierQueue copy = queue.copy();
+		queue.offer(50, -1f);
+		assertEquals(50, queue.poll());
+		assertEquals(100, copy.size());
+		assertTrue(copy.contains(50));
+		for (int i = 99; i >= 0; i--) {
+			assertEquals(i, copy.poll());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void pollEmpty() {
+		new FloatIndexHeap(4).poll();
+	}
+
+}
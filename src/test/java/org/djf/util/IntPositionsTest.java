@@ -0,0 +1,92 @@
+package org.djf.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** IntPositions against a HashMap:  puts, removes through collision runs, and rehashing as it grows. */
+public class IntPositionsTest {
+
+	@Test
+	public void matchesHashMap() {
+		Random rand = new Random(21);
+		IntPositions positions = new IntPositions(1);
+		Map<Integer, Integer> ref = new HashMap<>();
+		for (int op = 0; op < 300_000; op++) {
+			// keys from a small range, for runs of collisions; sometimes big ones, as pixel numbers are
+			int key = rand.nextInt(4) == 0 ? rand.nextInt(Integer.MAX_VALUE) : rand.nextInt(3000);
+			switch (rand.nextInt(3)) {
+				case 0:
+					positions.put(key, op);
+					ref.put(key, op);
+					break;
+				case 1:
+					positions.remove(key);
+					ref.remove(key);
+					break;
+				default:
+					assertEquals(ref.getOrDefault(key, -1).intValue(), positions.get(key));
+			}
+		}
+		for (int key = 0; key < 3000; key++) {
+			assertEquals(ref.getOrDefault(key, -1).intValue(), positions.get(key));
+		}
+		for (Map.Entry<Integer, Integer> e : ref.entrySet()) {
+			assertEquals(e.getValue().intValue(), positions.get(e.getKey()));
+		}
+	}
+
+	@Test
+	public void removeKeepsTheRestOfTheRun() {
+		// keys whose slots in a 16-slot table collide, so they fill one run of linear probing
+		IntPositions positions = new IntPositions(1);
+		List<Integer> run = new ArrayList<>();
+		for (int key = 0; run.size() < 5; key++) {
+			if ((key * 0x9E3779B9) >>> 28 == 3) run.add(key);
+		}
+		for (int i = 0; i < run.size(); i++) {
+			positions.put(run.get(i), i);
+		}
+		positions.remove(run.get(1));
+		assertEquals(-1, positions.get(run.get(1)));
+		for (int i = 0; i < run.size(); i++) {
+			if (i != 1) assertEquals(i, positions.get(run.get(i)));
+		}
+		positions.remove(run.get(0));
+		positions.remove(run.get(4));
+		assertEquals(2, positions.get(run.get(2)));
+		assertEquals(3, positions.get(run.get(3)));
+		positions.remove(12345);// absent
+		assertEquals(3, positions.get(run.get(3)));
+	}
+
+	@Test
+	public void rehashKeepsEverything() {
+		IntPositions positions = new IntPositions(1);
+		for (int key = 0; key < 100_000; key++) {
+			positions.put(key * 7, key);
+		}
+		for (int key = 0; key < 100_000; key++) {
+			assertEquals(key, positions.get(key * 7));
+			assertEquals(-1, positions.get(key * 7 + 1));
+		}
+	}
+
+	@Test
+	public void copyIsIndependent() {
+		IntPositions positions = new IntPositions(4);
+		positions.put(1, 10);
+		IntPositions copy = positions.copy();
+		positions.put(1, 11);
+		positions.put(2, 20);
+		assertEquals(10, copy.get(1));
+		assertEquals(-1, copy.get(2));
+	}
+
+}
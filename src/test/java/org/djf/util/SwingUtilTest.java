@@ -0,0 +1,101 @@
+package org.djf.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.Dimension;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.djf.mlpaint.ImageResamplingDims;
+import org.junit.Test;
+
+/** boxDownsampleImage, on small images written to memory and read back through ImageIO. */
+public class SwingUtilTest {
+
+	private static final float NODATA = -3.4028235e38f;
+
+	private static BufferedImage downsample(BufferedImage img, String format, int edge, double nodata) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		assertTrue(ImageIO.write(img, format, bytes));
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			ImageResamplingDims xy = new ImageResamplingDims(new Dimension(img.getWidth(), img.getHeight()), edge);
+			return SwingUtil.boxDownsampleImage(in, xy, nodata, null);
+		}
+	}
+
+	/** a float elevation 6 x 5, 10 + x, with a nodata border on the left & top, and a NaN */
+	private static BufferedImage elevation() {
+		ComponentColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_FLOAT);
+		WritableRaster raster = cm.createCompatibleWritableRaster(6, 5);
+		for (int y = 0; y < 5; y++) {
+			for (int x = 0; x < 6; x++) {
+				raster.setSample(x, y, 0, x < 2 || y < 1 ? NODATA : 10 + x);
+			}
+		}
+		raster.setSample(4, 2, 0, Float.NaN);
+		return new BufferedImage(cm, raster, false, null);
+	}
+
+	@Test
+	public void leavesNodataOutOfTheAverage() throws IOException {
+		Raster out = downsample(elevation(), "tiff", 2, NODATA).getRaster();
+		assertEquals(3, out.getWidth());
+		assertEquals(3, out.getHeight());
+		for (int oy = 0; oy < 3; oy++) {
+			assertEquals("all nodata", NODATA, out.getSampleFloat(0, oy, 0), 0f);
+		}
+		assertEquals("valid row only", 12.5f, out.getSampleFloat(1, 0, 0), 0f);
+		assertEquals(12.5f, out.getSampleFloat(1, 1, 0), 0f);
+		assertEquals("without the NaN", (14 + 15 + 15) / 3f, out.getSampleFloat(2, 1, 0), 1e-5f);
+		assertEquals("the odd last row", 14.5f, out.getSampleFloat(2, 2, 0), 0f);
+	}
+
+	@Test
+	public void noNodataDeclaredStillSkipsNaN() throws IOException {
+		Raster out = downsample(elevation(), "tiff", 2, Double.NaN).getRaster();
+		assertEquals((14 + 15 + 15) / 3f, out.getSampleFloat(2, 1, 0), 1e-5f);
+	}
+
+	@Test
+	public void leavesTransparentPixelsOut() throws IOException {
+		BufferedImage img = new BufferedImage(4, 4, BufferedImage.TYPE_4BYTE_ABGR);
+		for (int y = 0; y < 4; y++) {
+			for (int x = 0; x < 4; x++) {
+				img.setRGB(x, y, x == 0 ? 0x00000000 : x == 1 ? 0xff204060 : 0xff80a0c0);
+			}
+		}
+		BufferedImage result = downsample(img, "png", 2, Double.NaN);
+		assertEquals(2, result.getWidth());
+		assertEquals("not darkened by the transparent edge", 0xff204060, result.getRGB(0, 0));
+		assertEquals(0xff80a0c0, result.getRGB(1, 1));
+
+		img.setRGB(2, 0, 0);
+		img.setRGB(3, 0, 0);
+		img.setRGB(2, 1, 0);
+		img.setRGB(3, 1, 0);
+		assertEquals("all transparent", 0, downsample(img, "png", 2, Double.NaN).getRGB(1, 0) >>> 24);
+	}
+
+	@Test
+	public void integerNodata() throws IOException {
+		BufferedImage img = new BufferedImage(4, 2, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster raster = img.getRaster();
+		raster.setSamples(0, 0, 4, 2, 0, new int[] {0, 0, 0, 100, 0, 0, 50, 101});
+		Raster out = downsample(img, "tiff", 2, 0).getRaster();
+		assertEquals(0, out.getSample(0, 0, 0));
+		assertEquals(84, out.getSample(1, 0, 0));// (100 + 50 + 101) / 3, rounded
+	}
+
+}
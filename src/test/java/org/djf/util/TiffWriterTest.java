@@ -0,0 +1,179 @@
+package org.djf.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.IntBinaryOperator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.djf.util.TiffWriter.Compression;
+import org.djf.util.TiffWriter.RowSource;
+import org.junit.Test;
+
+/** TiffWriter's files read back by the JDK's TIFF reader:  strips & tiles, both compressions, rewriteTiles and COGs. */
+public class TiffWriterTest {
+
+	private static final int TILE = 16;
+
+	private static final IndexColorModel PALETTE;
+	static {
+		byte[] rgb = new byte[16];
+		for (int i = 0; i < 16; i++) rgb[i] = (byte) (i * 17);
+		PALETTE = new IndexColorModel(4, 16, rgb, rgb, rgb);
+	}
+
+	/** 4-bit labels in 8 x 8 blocks, so the overviews' modes are the blocks' values too */
+	private static int labels(int x, int y) {
+		return (x / 8 * 3 + y / 8 * 5) & 15;
+	}
+
+	/** rows of f, packed MSB-first at 4 bits */
+	private static RowSource rows(int width, IntBinaryOperator f) {
+		return (y, packed) -> {
+			for (int x = 0; x < width; x += 2) {
+				int hi = f.applyAsInt(x, y), lo = x + 1 < width ? f.applyAsInt(x + 1, y) : 0;
+				packed[x / 2] = (byte) (hi << 4 | lo);
+			}
+		};
+	}
+
+	private static void write(Path file, int width, int height, int tileSize, Compression compression,
+			IntBinaryOperator f) throws IOException {
+		try (TiffWriter w = new TiffWriter(file, width, height, 4, PALETTE, compression)) {
+			if (tileSize > 0) w.setTileSize(tileSize);
+			w.write(rows(width, f));
+		}
+	}
+
+	/** all the images in the file, as the JDK reads them */
+	private static BufferedImage[] read(Path file) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+			ImageReader reader = ImageIO.getImageReadersByFormatName("tiff").next();
+			try {
+				reader.setInput(in);
+				BufferedImage[] images = new BufferedImage[reader.getNumImages(true)];
+				for (int i = 0; i < images.length; i++) {
+					images[i] = reader.read(i);
+				}
+				return images;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private static void assertPixels(String what, BufferedImage img, int width, int height, IntBinaryOperator f) {
+		assertEquals(what, width, img.getWidth());
+		assertEquals(what, height, img.getHeight());
+		Raster raster = img.getRaster();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (raster.getSample(x, y, 0) != f.applyAsInt(x, y)) {
+					fail(String.format("%s: pixel %d,%d is %d, not %d", what, x, y, raster.getSample(x, y, 0), f.applyAsInt(x, y)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void roundTripsLabelsNotAMultipleOfTheTileSize() throws IOException {
+		int width = 37, height = 21;// odd, so the last byte of each row is half padding, and tiles hang over both edges
+		Path file = Files.createTempFile("TiffWriterTest", ".tif");
+		try {
+			for (Compression compression : Compression.values()) {
+				for (int tileSize : new int[] {0, TILE}) {
+					String what = compression + (tileSize > 0 ? " tiles" : " strips");
+					write(file, width, height, tileSize, compression, TiffWriterTest::labels);
+					BufferedImage[] images = read(file);
+					assertEquals(what, 1, images.length);
+					assertTrue(what, images[0].getColorModel() instanceof IndexColorModel);
+					assertPixels(what, images[0], width, height, TiffWriterTest::labels);
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void rewriteTilesChangesOnlyTheDirtyTiles() throws IOException {
+		int width = 50, height = 40;// 4 x 3 tiles
+		IntBinaryOperator edited = (x, y) -> (labels(x, y) + 1) & 15;// every pixel differs, but only some tiles are dirty
+		// the second hangs off the image, and is clipped to tile 3, 2
+		List<Rectangle> regions = List.of(new Rectangle(20, 5, 3, 3), new Rectangle(48, 33, 10, 10));
+		for (Compression compression : new Compression[] {Compression.DEFLATE, Compression.PACKBITS}) {
+			Path file = Files.createTempFile("TiffWriterTest", ".tif");
+			try {
+				write(file, width, height, TILE, compression, TiffWriterTest::labels);
+				assertTrue(TiffWriter.rewriteTiles(file, rows(width, edited), regions));
+				IntBinaryOperator expected = (x, y) -> {
+					int tx = x / TILE, ty = y / TILE;
+					boolean dirty = tx == 1 && ty == 0 || tx == 3 && ty == 2;
+					return dirty ? edited.applyAsInt(x, y) : labels(x, y);
+				};
+				BufferedImage[] images = read(file);
+				assertEquals(1, images.length);
+				assertPixels(compression + " rewritten", images[0], width, height, expected);
+
+				// and again, over the tiles appended the first time
+				assertTrue(TiffWriter.rewriteTiles(file, rows(width, TiffWriterTest::labels), regions));
+				assertPixels(compression + " restored", read(file)[0], width, height, TiffWriterTest::labels);
+			} finally {
+				Files.delete(file);
+			}
+		}
+	}
+
+	@Test
+	public void rewriteTilesRefusesStrips() throws IOException {
+		Path file = Files.createTempFile("TiffWriterTest", ".tif");
+		try {
+			write(file, 37, 21, 0, Compression.DEFLATE, TiffWriterTest::labels);
+			byte[] before = Files.readAllBytes(file);
+			assertFalse(TiffWriter.rewriteTiles(file, rows(37, (x, y) -> 0), List.of(new Rectangle(0, 0, 5, 5))));
+			assertArrayEquals(before, Files.readAllBytes(file));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void cloudOptimizedOverviewsOpen() throws IOException {
+		int width = 100, height = 70;// overviews 50 x 35, 25 x 18, 13 x 9
+		Path file = Files.createTempFile("TiffWriterTest", ".tif");
+		try {
+			BufferedImage small = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, PALETTE);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					small.getRaster().setSample(x, y, 0, labels(x, y));
+				}
+			}
+			Dimension dim = new Dimension(width, height);
+			try (TiffWriter w = new TiffWriter(file, width, height, 4, PALETTE, Compression.DEFLATE)) {
+				w.setTileSize(TILE);
+				w.writeCloudOptimized(level -> level == 0 ? TiffWriter.upsampled(small.getRaster(), dim, 1, 4)
+						: TiffWriter.reduced(small.getRaster(), dim, 1, 1 << level, 4, true));
+			}
+			BufferedImage[] images = read(file);
+			assertEquals(4, images.length);
+			for (int k = 0; k < images.length; k++) {
+				int shift = k, w = (width + (1 << k) - 1) >> k, h = (height + (1 << k) - 1) >> k;
+				assertPixels("level " + k, images[k], w, h, (x, y) -> labels(x << shift, y << shift));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}